@@ -0,0 +1,196 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.types.ObjectID;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Document shapes for the decode benchmarks. Each is generated from a fixed
+ * seed, so runs are comparable with each other.
+ */
+public enum Corpus {
+
+	/** A dozen mixed fields, like a typical user or session record. */
+	SMALL_FLAT {
+		@Override
+		Map<String, Object> document(Random rnd) {
+			return record(rnd);
+		}
+	},
+
+	/** 250 fields of mixed types. */
+	WIDE {
+		@Override
+		Map<String, Object> document(Random rnd) {
+			final Map<String, Object> d = new LinkedHashMap<String, Object>();
+			d.put("_id", new ObjectID());
+			for (int i = 0; i < 250; i++) {
+				switch (i % 5) {
+				case 0:
+					d.put("field" + i, rnd.nextInt());
+					break;
+				case 1:
+					d.put("field" + i, rnd.nextLong());
+					break;
+				case 2:
+					d.put("field" + i, rnd.nextDouble());
+					break;
+				case 3:
+					d.put("field" + i, ascii(rnd, 16));
+					break;
+				default:
+					d.put("field" + i, rnd.nextBoolean());
+				}
+			}
+			return d;
+		}
+	},
+
+	/** A record nested 50 documents deep. */
+	DEEP {
+		@Override
+		Map<String, Object> document(Random rnd) {
+			Map<String, Object> d = record(rnd);
+			for (int i = 0; i < 50; i++) {
+				final Map<String, Object> outer = new LinkedHashMap<String, Object>();
+				outer.put("level", i);
+				outer.put("child", d);
+				d = outer;
+			}
+			return d;
+		}
+	},
+
+	/** Arrays of 10000 ints and 10000 doubles, like an embedding vector. */
+	LARGE_ARRAYS {
+		@Override
+		Map<String, Object> document(Random rnd) {
+			final Map<String, Object> d = new LinkedHashMap<String, Object>();
+			d.put("_id", new ObjectID());
+			final List<Object> ints = new ArrayList<Object>();
+			final List<Object> dbls = new ArrayList<Object>();
+			for (int i = 0; i < 10000; i++) {
+				ints.add(rnd.nextInt());
+				dbls.add(rnd.nextDouble());
+			}
+			d.put("ints", ints);
+			d.put("vector", dbls);
+			return d;
+		}
+	},
+
+	/** Four 64k binary chunks and a few UUIDs, GridFS style. */
+	BINARY {
+		@Override
+		Map<String, Object> document(Random rnd) {
+			final Map<String, Object> d = new LinkedHashMap<String, Object>();
+			d.put("_id", new ObjectID());
+			d.put("files_id", new ObjectID());
+			for (int i = 0; i < 4; i++) {
+				final byte[] chunk = new byte[64 * 1024];
+				rnd.nextBytes(chunk);
+				d.put("data" + i, chunk);
+				d.put("uuid" + i, new java.util.UUID(rnd.nextLong(), rnd.nextLong()));
+			}
+			return d;
+		}
+	},
+
+	/** Forty strings, mostly ASCII keys with non-ASCII values. */
+	UTF8_STRINGS {
+		@Override
+		Map<String, Object> document(Random rnd) {
+			final Map<String, Object> d = new LinkedHashMap<String, Object>();
+			d.put("_id", new ObjectID());
+			for (int i = 0; i < 40; i++) {
+				d.put("text" + i, i % 2 == 0 ? ascii(rnd, 64) : utf8(rnd, 64));
+			}
+			return d;
+		}
+	};
+
+	abstract Map<String, Object> document(Random rnd);
+
+	/**
+	 * @param direct
+	 *            whether to copy the encoded document into a direct buffer
+	 * @return the document, encoded, in a buffer positioned at its start
+	 */
+	public ByteBuffer encode(boolean direct) {
+		final ByteBuffer heap = ByteBuffer.allocate(4 * 1024 * 1024);
+		new BSONWriter(heap).putDocument(document(new Random(42)));
+		heap.flip();
+		if (!direct)
+			return heap.slice();
+		final ByteBuffer d = ByteBuffer.allocateDirect(heap.remaining());
+		d.put(heap);
+		d.flip();
+		return d;
+	}
+
+	static Map<String, Object> record(Random rnd) {
+		final Map<String, Object> d = new LinkedHashMap<String, Object>();
+		d.put("_id", new ObjectID());
+		d.put("name", ascii(rnd, 12));
+		d.put("email", ascii(rnd, 20));
+		d.put("age", rnd.nextInt(100));
+		d.put("score", rnd.nextDouble());
+		d.put("visits", rnd.nextLong());
+		d.put("active", rnd.nextBoolean());
+		d.put("created", new Date(1330000000000L + rnd.nextInt()));
+		d.put("city", ascii(rnd, 10));
+		d.put("zip", ascii(rnd, 5));
+		d.put("balance", rnd.nextDouble() * 1000);
+		d.put("tag", ascii(rnd, 8));
+		return d;
+	}
+
+	static String ascii(Random rnd, int len) {
+		final char[] c = new char[len];
+		for (int i = 0; i < len; i++)
+			c[i] = (char) ('a' + rnd.nextInt(26));
+		return new String(c);
+	}
+
+	static String utf8(Random rnd, int len) {
+		final char[] c = new char[len];
+		for (int i = 0; i < len; i++) {
+			switch (rnd.nextInt(4)) {
+			case 0:
+				c[i] = (char) ('a' + rnd.nextInt(26));
+				break;
+			case 1:
+				c[i] = (char) (0xe0 + rnd.nextInt(32)); // latin-1 accents
+				break;
+			case 2:
+				c[i] = (char) (0x3040 + rnd.nextInt(96)); // hiragana
+				break;
+			default:
+				c[i] = (char) (0x0410 + rnd.nextInt(32)); // cyrillic
+			}
+		}
+		return new String(c);
+	}
+}
@@ -0,0 +1,127 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.doc.Document;
+import net.evilmonkeylabs.mag7.bson.doc.LazyDocument;
+import net.evilmonkeylabs.mag7.bson.doc.PrimitiveDocument;
+import net.evilmonkeylabs.mag7.bson.types.ObjectID;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Decode throughput over each {@link Corpus}, from heap and direct buffers,
+ * against the 10gen driver's decoder as a baseline.
+ *
+ * Run with "-prof gc" to get allocation rates alongside the timings. The 10gen
+ * decoder only reads byte arrays, so for direct input it pays for a copy out
+ * first, as it would in practice.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class DecodeBenchmark {
+
+	@Param
+	public Corpus corpus;
+
+	@Param({ "heap", "direct" })
+	public String buffer;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		input = corpus.encode("direct".equals(buffer));
+		bytes = new byte[input.remaining()];
+		input.duplicate().get(bytes);
+	}
+
+	@Benchmark
+	public Document mag7Default() {
+		return new DefaultBSONDocParser(input.duplicate()).result();
+	}
+
+	/**
+	 * The thread's reusable parser, reset per document.
+	 */
+	@Benchmark
+	public Document mag7Reused() {
+		return DefaultBSONDocParser.decode(input.duplicate());
+	}
+
+	@Benchmark
+	public Document mag7CompactArrays() {
+		final DefaultBSONDocParser p = new DefaultBSONDocParser(input.duplicate());
+		p.setCompactArrays(true);
+		return p.result();
+	}
+
+	@Benchmark
+	public PrimitiveDocument mag7Primitive() {
+		return new PrimitiveBSONDocParser(input.duplicate()).result();
+	}
+
+	/**
+	 * Lazy decode of the one field routing code usually wants.
+	 */
+	@Benchmark
+	public Object mag7LazyId() {
+		final LazyDocument d = new LazyBSONDocParser(input.duplicate()).result();
+		return d.get("_id");
+	}
+
+	/**
+	 * The same field through a compiled path over the raw bytes.
+	 */
+	@Benchmark
+	public ObjectID mag7PathId() {
+		return ID.getObjectID(input);
+	}
+
+	@Benchmark
+	public BSONObject javaDriver() {
+		if (input.hasArray())
+			return decoder.readObject(bytes);
+		final byte[] copy = new byte[input.remaining()];
+		input.duplicate().get(copy);
+		return decoder.readObject(copy);
+	}
+
+	private static final BSONPath ID = BSONPath.compile("_id");
+
+	private ByteBuffer input;
+	private byte[] bytes;
+	private final BasicBSONDecoder decoder = new BasicBSONDecoder();
+}
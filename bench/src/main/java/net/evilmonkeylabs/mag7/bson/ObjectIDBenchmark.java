@@ -0,0 +1,74 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.types.ObjectID;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * ObjectID generation, hex formatting and parsing. Generation runs on several
+ * threads at once, which is where a single shared counter would hurt; pass
+ * "-t" to try other thread counts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ObjectIDBenchmark {
+
+	@Benchmark
+	@Threads(8)
+	public ObjectID generate() {
+		return new ObjectID();
+	}
+
+	@Benchmark
+	public String toHexString() {
+		return oid.toString();
+	}
+
+	@Benchmark
+	public ObjectID parseHexString() {
+		return new ObjectID(hex);
+	}
+
+	@Benchmark
+	public ByteBuffer writeTo() {
+		out.clear();
+		oid.writeTo(out);
+		return out;
+	}
+
+	private final ObjectID oid = new ObjectID();
+	private final String hex = oid.toString();
+	private final ByteBuffer out = ByteBuffer.allocate(12);
+}
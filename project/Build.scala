@@ -0,0 +1,26 @@
+import sbt._
+import Keys._
+
+object Mag7Build extends Build {
+
+  // Settings for the library itself live in build.sbt
+  lazy val root = Project("mag7", file("."))
+
+  /**
+   * JMH benchmarks. Kept out of the main project so the library doesn't pick
+   * up JMH or the 10gen driver as compile dependencies.
+   *
+   *   sbt "mag7-bench/run -prof gc"
+   */
+  lazy val bench = Project("mag7-bench", file("bench")) dependsOn(root) settings(
+    libraryDependencies ++= Seq(
+      "org.openjdk.jmh" % "jmh-core" % "1.21",
+      "org.openjdk.jmh" % "jmh-generator-annprocess" % "1.21",
+      // baseline to compare against
+      "org.mongodb" % "mongo-java-driver" % "2.9.1"
+    ),
+    fork in run := true,
+    javaOptions in run ++= Seq("-Xms1g", "-Xmx1g"),
+    mainClass in (Compile, run) := Some("org.openjdk.jmh.Main")
+  )
+}
@@ -0,0 +1,182 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.doc.Document;
+import net.evilmonkeylabs.mag7.bson.io.BSONException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Decodes a batch of documents, such as a reply from the server, on every
+ * core of a ForkJoinPool at once. The batch is split on document boundaries
+ * into runs of roughly equal size in bytes, each run is decoded by one pool
+ * thread with the parser {@link DefaultBSONDocParser#decode(ByteBuffer)}
+ * keeps for it, and the results come back in the order of the batch.
+ *
+ * Forking only pays for itself on big batches, so those smaller than the
+ * threshold are decoded on the calling thread instead.
+ *
+ * A decoder holds no state of its own beyond its settings, and may be shared
+ * between threads.
+ */
+public class BSONBatchDecoder {
+
+	/** Batches smaller than this many bytes are decoded serially. */
+	public static final int DEFAULT_THRESHOLD = 64 * 1024;
+
+	/**
+	 * Decodes on the given pool, batches of DEFAULT_THRESHOLD bytes or more.
+	 */
+	public BSONBatchDecoder(ForkJoinPool pool) {
+		this(pool, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold
+	 *            the smallest batch, in bytes, worth decoding in parallel
+	 */
+	public BSONBatchDecoder(ForkJoinPool pool, int threshold) {
+		this.pool = pool;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Decodes documents laid end to end, from the buffer's position to its
+	 * limit, as in a reply or a dump file. The buffer's position isn't
+	 * changed.
+	 *
+	 * @throws BSONException
+	 *             if a length prefix is invalid or the last document is
+	 *             truncated
+	 */
+	public List<Document> decode(ByteBuffer batch) {
+		return decode(split(batch));
+	}
+
+	/**
+	 * Decodes documents each in a buffer of its own, from its position.
+	 *
+	 * @return the documents, in the order of the list
+	 */
+	public List<Document> decode(List<ByteBuffer> docs) {
+		final ByteBuffer[] in = docs.toArray(new ByteBuffer[docs.size()]);
+		final long[] ends = new long[in.length];
+		long total = 0;
+		for (int i = 0; i < in.length; i++)
+			ends[i] = total += in[i].remaining();
+		final Document[] out = new Document[in.length];
+		if (total < threshold || pool.getParallelism() < 2) {
+			for (int i = 0; i < in.length; i++)
+				out[i] = DefaultBSONDocParser.decode(in[i].duplicate());
+		} else {
+			// a few runs per thread, so a slow one doesn't hold up the rest
+			final long grain = Math.max(threshold / 4, total
+					/ (pool.getParallelism() * 4));
+			pool.invoke(new DecodeTask(in, ends, out, 0, in.length, grain));
+		}
+		return Collections.unmodifiableList(Arrays.asList(out));
+	}
+
+	/**
+	 * @return the threshold below which batches are decoded serially
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Slices a buffer of concatenated documents into one buffer per document.
+	 */
+	static List<ByteBuffer> split(ByteBuffer batch) {
+		final ByteBuffer b = batch.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		final int end = b.limit();
+		final List<ByteBuffer> docs = new ArrayList<ByteBuffer>();
+		int pos = b.position();
+		while (pos < end) {
+			if (end - pos < 4)
+				throw new BSONException("Trailing bytes at offset " + pos);
+			final int len = b.getInt(pos);
+			if (len < 5)
+				throw new BSONException("Invalid document length " + len
+						+ " at offset " + pos);
+			if (len > end - pos)
+				throw new BSONException("Document at offset " + pos
+						+ " is truncated: its length is " + len + " but only "
+						+ (end - pos) + " bytes remain");
+			b.limit(pos + len).position(pos);
+			docs.add(b.slice().order(ByteOrder.LITTLE_ENDIAN));
+			b.limit(end);
+			pos += len;
+		}
+		return docs;
+	}
+
+	/**
+	 * Splits its range of documents in two, half the bytes each, until it
+	 * holds no more than grain bytes, or a single document, which it decodes.
+	 */
+	private static class DecodeTask extends RecursiveAction {
+
+		DecodeTask(ByteBuffer[] in, long[] ends, Document[] out, int from,
+				int to, long grain) {
+			this.in = in;
+			this.ends = ends;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			final long start = from == 0 ? 0 : ends[from - 1];
+			if (to - from > 1 && ends[to - 1] - start > grain) {
+				// the first document ending past halfway goes left
+				final int i = Arrays.binarySearch(ends, from, to - 1, start
+						+ (ends[to - 1] - start) / 2);
+				final int mid = Math.min(to - 1, Math.max(from, i < 0 ? -i - 1
+						: i) + 1);
+				invokeAll(new DecodeTask(in, ends, out, from, mid, grain),
+						new DecodeTask(in, ends, out, mid, to, grain));
+				return;
+			}
+			for (int i = from; i < to; i++)
+				out[i] = DefaultBSONDocParser.decode(in[i].duplicate());
+		}
+
+		private final ByteBuffer[] in;
+		/** Running total of the sizes of in, for the bytes in a range. */
+		private final long[] ends;
+		private final Document[] out;
+		private final int from;
+		private final int to;
+		private final long grain;
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	private final ForkJoinPool pool;
+	private final int threshold;
+}
@@ -0,0 +1,348 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.doc.Document;
+import net.evilmonkeylabs.mag7.bson.io.BSONException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Reads a file of concatenated BSON documents, as written by mongodump,
+ * through memory mapped windows rather than read() calls: documents are
+ * decoded straight out of the page cache without first being copied onto the
+ * heap.
+ *
+ * A single mapping can't exceed 2GB, so the file is mapped as a series of
+ * windows, each starting on a document boundary and holding whole documents.
+ * Opening the file walks it once, reading only the 4 byte length headers, to
+ * find the windows and to divide them into chunks of roughly a megabyte.
+ * Iteration goes through the documents in file order; the forEach methods
+ * hand chunks out to a ForkJoinPool, decoding on every core at once, in no
+ * particular order.
+ *
+ * A dump file may be iterated any number of times, by any number of threads
+ * at once.
+ */
+public class BSONDumpFile implements Iterable<ByteBuffer>, Closeable {
+
+	/**
+	 * Called with each document by the forEach methods, from the pool's
+	 * threads, so implementations must be thread safe.
+	 */
+	public interface Handler<T> {
+		void handle(T value);
+	}
+
+	/**
+	 * Maps a dump file, finding its document boundaries.
+	 *
+	 * @throws BSONException
+	 *             if a length header is invalid or the last document is
+	 *             truncated
+	 */
+	public static BSONDumpFile open(Path file) throws IOException {
+		return new BSONDumpFile(FileChannel.open(file, StandardOpenOption.READ),
+				MAX_WINDOW, CHUNK);
+	}
+
+	/**
+	 * @param windowSize
+	 *            the size of window to map, unless a document needs more
+	 * @param chunkSize
+	 *            the amount of the file to hand a pool thread at once
+	 */
+	BSONDumpFile(FileChannel channel, int windowSize, int chunkSize)
+			throws IOException {
+		this.channel = channel;
+		try {
+			index(windowSize, chunkSize);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of documents in the file
+	 */
+	public long documentCount() {
+		return documents;
+	}
+
+	/**
+	 * Iterates over the raw documents, in file order. Each is a little endian,
+	 * read only slice of the mapping, positioned at 0 and limited to the
+	 * document.
+	 */
+	@Override
+	public Iterator<ByteBuffer> iterator() {
+		return new BufferIterator(0, chunks);
+	}
+
+	/**
+	 * Iterates over the documents, in file order, decoding each as it is
+	 * reached with a parser belonging to the iterator.
+	 */
+	public Iterable<Document> documents() {
+		return new Iterable<Document>() {
+			@Override
+			public Iterator<Document> iterator() {
+				final Iterator<ByteBuffer> raw = BSONDumpFile.this.iterator();
+				final DefaultBSONDocParser parser = new DefaultBSONDocParser();
+				return new Iterator<Document>() {
+					@Override
+					public boolean hasNext() {
+						return raw.hasNext();
+					}
+
+					@Override
+					public Document next() {
+						parser.reset(raw.next());
+						return parser.result();
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Hands every raw document, sliced as by {@link #iterator()}, to the
+	 * handler, in parallel. Returns once all have been handled; the first
+	 * exception thrown by the handler is rethrown.
+	 */
+	public void forEach(ForkJoinPool pool, Handler<? super ByteBuffer> handler) {
+		if (chunks > 0)
+			pool.invoke(new ChunkTask(0, chunks, handler));
+	}
+
+	/**
+	 * Decodes every document and hands it to the handler, in parallel. Each
+	 * pool thread decodes with a parser of its own.
+	 */
+	public void forEachDocument(ForkJoinPool pool,
+			final Handler<? super Document> handler) {
+		forEach(pool, new Handler<ByteBuffer>() {
+			@Override
+			public void handle(ByteBuffer doc) {
+				handler.handle(DefaultBSONDocParser.decode(doc));
+			}
+		});
+	}
+
+	/**
+	 * Closes the file. The mappings, and any slices of them still held, stay
+	 * readable until they are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Walks the length headers, mapping a window at a time. A window ends
+	 * before the first document which doesn't fit in it, and the next window
+	 * is mapped from there.
+	 */
+	private void index(int windowSize, int chunkSize) throws IOException {
+		final long size = channel.size();
+		long start = 0;
+		long want = windowSize;
+		while (start < size) {
+			final int len = (int) Math.min(want, size - start);
+			final MappedByteBuffer map = channel.map(
+					FileChannel.MapMode.READ_ONLY, start, len);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			int off = 0;
+			int chunkStart = 0;
+			while (off < len) {
+				if (len - off < 4) {
+					if (start + len == size)
+						throw new BSONException("Trailing bytes at offset "
+								+ (start + off));
+					break;
+				}
+				final int docLen = map.getInt(off);
+				if (docLen < 5)
+					throw new BSONException("Invalid document length "
+							+ docLen + " at offset " + (start + off));
+				if (docLen > size - start - off)
+					throw new BSONException("Document at offset "
+							+ (start + off) + " is truncated: its length is "
+							+ docLen + " but only " + (size - start - off)
+							+ " bytes remain");
+				if (docLen > len - off)
+					break;
+				off += docLen;
+				documents++;
+				if (off - chunkStart >= chunkSize) {
+					addChunk(windows.size(), chunkStart, off);
+					chunkStart = off;
+				}
+			}
+			if (off == 0) {
+				// a single document bigger than the window; map just it
+				want = map.getInt(0);
+				continue;
+			}
+			if (off > chunkStart)
+				addChunk(windows.size(), chunkStart, off);
+			windows.add(map);
+			start += off;
+			want = windowSize;
+		}
+	}
+
+	private void addChunk(int window, int from, int to) {
+		if (chunks == chunkWindows.length) {
+			final int n = chunks * 2;
+			chunkWindows = Arrays.copyOf(chunkWindows, n);
+			chunkStarts = Arrays.copyOf(chunkStarts, n);
+			chunkEnds = Arrays.copyOf(chunkEnds, n);
+		}
+		chunkWindows[chunks] = window;
+		chunkStarts[chunks] = from;
+		chunkEnds[chunks] = to;
+		chunks++;
+	}
+
+	/**
+	 * Walks the documents of chunks from..to. Slices come from a duplicate of
+	 * the window, so iterators on different threads don't share a position.
+	 */
+	private class BufferIterator implements Iterator<ByteBuffer> {
+
+		BufferIterator(int from, int to) {
+			this.chunk = from - 1;
+			this.to = to;
+			nextChunk();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return chunk < to;
+		}
+
+		@Override
+		public ByteBuffer next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			final int len = window.getInt(pos);
+			window.limit(pos + len).position(pos);
+			final ByteBuffer doc = window.slice().order(ByteOrder.LITTLE_ENDIAN);
+			window.limit(window.capacity());
+			pos += len;
+			if (pos == end)
+				nextChunk();
+			return doc;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void nextChunk() {
+			if (++chunk >= to)
+				return;
+			final int w = chunkWindows[chunk];
+			if (w != windowIndex) {
+				window = windows.get(w).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+				windowIndex = w;
+			}
+			pos = chunkStarts[chunk];
+			end = chunkEnds[chunk];
+		}
+
+		private final int to;
+		private int chunk;
+		private int windowIndex = -1;
+		private ByteBuffer window;
+		private int pos;
+		private int end;
+	}
+
+	/**
+	 * Splits its range of chunks in half until it has just one, which it walks.
+	 */
+	private class ChunkTask extends RecursiveAction {
+
+		ChunkTask(int from, int to, Handler<? super ByteBuffer> handler) {
+			this.from = from;
+			this.to = to;
+			this.handler = handler;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				final int mid = (from + to) >>> 1;
+				invokeAll(new ChunkTask(from, mid, handler), new ChunkTask(mid,
+						to, handler));
+				return;
+			}
+			final Iterator<ByteBuffer> docs = new BufferIterator(from, to);
+			while (docs.hasNext())
+				handler.handle(docs.next());
+		}
+
+		private final int from;
+		private final int to;
+		private final Handler<? super ByteBuffer> handler;
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** Largest window to map; mappings are limited to 2GB. */
+	private static final int MAX_WINDOW = Integer.MAX_VALUE;
+	private static final int CHUNK = 1024 * 1024;
+
+	private final FileChannel channel;
+	private final List<MappedByteBuffer> windows = new ArrayList<MappedByteBuffer>();
+	private long documents = 0;
+
+	/*
+	 * Chunks of the file, in order: the window each lies in, and its start and
+	 * end offsets within that window.
+	 */
+	private int chunks = 0;
+	private int[] chunkWindows = new int[64];
+	private int[] chunkStarts = new int[64];
+	private int[] chunkEnds = new int[64];
+}
@@ -0,0 +1,722 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.io.BSONByteBuffer;
+import net.evilmonkeylabs.mag7.bson.io.BSONException;
+import net.evilmonkeylabs.mag7.bson.types.BSONTimestamp;
+import net.evilmonkeylabs.mag7.bson.types.Code;
+import net.evilmonkeylabs.mag7.bson.types.MD5;
+import net.evilmonkeylabs.mag7.bson.types.ObjectID;
+import net.evilmonkeylabs.mag7.bson.util.FieldNameCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Date;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Incremental, pull style BSON reader. Bytes are pushed in as they arrive,
+ * with {@link #feed(ByteBuffer)} or one of the fill methods, and the caller
+ * pulls events off with {@link #next()}:
+ *
+ * <pre>
+ * START_DOCUMENT (FIELD | START_DOCUMENT ... END_DOCUMENT)* END_DOCUMENT
+ * </pre>
+ *
+ * A FIELD of type DOCUMENT or ARRAY is followed by the START_DOCUMENT of the
+ * embedded document, as is the code of a JSCODE_W_SCOPE field by its scope.
+ * Any number of documents may follow one another on the stream.
+ *
+ * When the bytes for the next event haven't arrived yet, next() returns
+ * NEED_INPUT and consumes nothing; feed it more and call next() again. Only
+ * the element being read is ever buffered, never the whole document, so
+ * documents of any size can be read through a small buffer, and decoding
+ * overlaps with reading from the network. A single value which is larger
+ * than the buffer grows it.
+ *
+ * The value accessors apply to the current FIELD, and are valid until the
+ * next call to next(). Like the other readers, an event reader is confined to
+ * one thread at a time, and must not be touched while an asynchronous fill is
+ * outstanding.
+ */
+public class BSONEventReader {
+
+	public static enum Event {
+		START_DOCUMENT, FIELD, END_DOCUMENT, NEED_INPUT
+	}
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	public BSONEventReader() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            initial size of the input buffer; it grows if a single value
+	 *            won't fit
+	 */
+	public BSONEventReader(int bufferSize) {
+		setInput(ByteBuffer.allocate(Math.max(bufferSize, 64)));
+	}
+
+	// ---- input ----
+
+	/**
+	 * Copies all the remaining bytes of src into the reader.
+	 */
+	public void feed(ByteBuffer src) {
+		ensureSpace(src.remaining());
+		in.limit(in.capacity());
+		in.position(end);
+		in.put(src);
+		end = in.position();
+	}
+
+	/**
+	 * Reads whatever the channel has for us, straight into the input buffer.
+	 *
+	 * @return the number of bytes read, or -1 at end of stream
+	 */
+	public int fill(ReadableByteChannel channel) throws IOException {
+		prepareFill();
+		final int n = channel.read(in);
+		if (n > 0)
+			end += n;
+		return n;
+	}
+
+	/**
+	 * Starts an asynchronous read (from an AsynchronousSocketChannel, say)
+	 * straight into the input buffer. The handler is called once the bytes
+	 * have been added, and would usually drain events with next() and then
+	 * fill again.
+	 */
+	public <A> void fill(AsynchronousByteChannel channel, A attachment,
+			final CompletionHandler<Integer, ? super A> handler) {
+		prepareFill();
+		channel.read(in, attachment, new CompletionHandler<Integer, A>() {
+			@Override
+			public void completed(Integer n, A attachment) {
+				if (n > 0)
+					end += n;
+				handler.completed(n, attachment);
+			}
+
+			@Override
+			public void failed(Throwable exc, A attachment) {
+				handler.failed(exc, attachment);
+			}
+		});
+	}
+
+	/**
+	 * @return the number of bytes fed in but not yet consumed
+	 */
+	public int available() {
+		return end - cursor;
+	}
+
+	// ---- events ----
+
+	/**
+	 * Moves on to the next event.
+	 *
+	 * @return the event, or NEED_INPUT if the bytes for it haven't all
+	 *         arrived
+	 * @throws BSONException
+	 *             if the input isn't valid BSON
+	 */
+	public Event next() {
+		if (skipRemaining != 0 && !skip())
+			return event = Event.NEED_INPUT;
+
+		keep = cursor;
+		if (depth == 0 || pendingDocument) {
+			if (end - cursor < 4)
+				return needInput(4);
+			final int len = bytes.getInt(cursor);
+			if (len < 5)
+				throw new BSONException("Invalid document length " + len);
+			if (limits != null)
+				checkDocument(len);
+			push(base + cursor + len, pendingArray);
+			cursor += 4;
+			pendingDocument = false;
+			pendingArray = false;
+			return event = Event.START_DOCUMENT;
+		}
+
+		if (end == cursor)
+			return needInput(1);
+		final byte t = bytes.get(cursor);
+		if (t == BSON.EOO) {
+			cursor++;
+			if (base + cursor != ends[--depth])
+				throw new BSONException("Document ended at " + (base + cursor)
+						+ " but its length said " + ends[depth]);
+			return event = Event.END_DOCUMENT;
+		}
+
+		final int nameSize = sizeCString(cursor + 1);
+		if (nameSize < 0)
+			return needInput(end - cursor + 1);
+		final int v = cursor + 1 + nameSize;
+		final int size = sizeValue(t, v);
+		if (size < 0)
+			return needInput(end - cursor + 1);
+		if (limits != null)
+			checkValue(t, v, size);
+		final long need = (long) v + size - cursor;
+		if (need > Integer.MAX_VALUE)
+			throw new BSONException("Element at " + (base + cursor) + " of "
+					+ need + " bytes is too large");
+		if (cursor + need > end)
+			return needInput((int) need);
+
+		type = t;
+		nameStart = cursor + 1;
+		this.nameSize = nameSize;
+		name = null;
+		valuePos = v;
+		cursor = v + size;
+		if (t == BSON.DOCUMENT || t == BSON.ARRAY || t == BSON.JSCODE_W_SCOPE) {
+			pendingDocument = true;
+			pendingArray = t == BSON.ARRAY;
+		}
+		return event = Event.FIELD;
+	}
+
+	/**
+	 * @return the event last returned by next()
+	 */
+	public Event event() {
+		return event;
+	}
+
+	/**
+	 * @return how many documents deep the reader is; 0 between top level
+	 *         documents
+	 */
+	public int depth() {
+		return depth;
+	}
+
+	/**
+	 * @return true if the innermost open document is an array
+	 */
+	public boolean isArray() {
+		return depth > 0 && arrays[depth - 1];
+	}
+
+	/**
+	 * Skips the embedded document or array (or scope) following the current
+	 * FIELD without producing any events for it. Its bytes are discarded as
+	 * they arrive, so it never has to fit in the buffer. Does nothing for
+	 * other types, which have already been consumed.
+	 */
+	public void skipValue() {
+		if (event != Event.FIELD)
+			throw new IllegalStateException("Not positioned on a field");
+		if (!pendingDocument)
+			return;
+		pendingDocument = false;
+		pendingArray = false;
+		skipRemaining = -1;
+	}
+
+	// ---- the current field ----
+
+	/**
+	 * @return the BSON type byte of the current field
+	 */
+	public byte type() {
+		checkField();
+		return type;
+	}
+
+	public String fieldName() {
+		checkField();
+		if (name == null)
+			name = bytes.getFieldName(nameStart, nameSize, names);
+		return name;
+	}
+
+	public int getInt() {
+		checkType(BSON.INT32, "int32");
+		return bytes.getInt(valuePos);
+	}
+
+	/**
+	 * @return the int64 value, widening an int32 if need be
+	 */
+	public long getLong() {
+		checkField();
+		if (type == BSON.INT32)
+			return bytes.getInt(valuePos);
+		checkType(BSON.INT64, "int64");
+		return bytes.getLong(valuePos);
+	}
+
+	public double getDouble() {
+		checkType(BSON.DOUBLE, "double");
+		return bytes.getDouble(valuePos);
+	}
+
+	public boolean getBoolean() {
+		checkType(BSON.BOOLEAN, "boolean");
+		return bytes.get(valuePos) != 0;
+	}
+
+	/**
+	 * @return milliseconds since the Unix Epoch
+	 */
+	public long getDateTime() {
+		checkType(BSON.UTC_DATETIME, "UTC datetime");
+		return bytes.getLong(valuePos);
+	}
+
+	/**
+	 * @return the value of a string, symbol or code field, the code of a
+	 *         scoped code field or the namespace of a DBRef
+	 */
+	public String getString() {
+		checkField();
+		switch (type) {
+		case BSON.STRING:
+		case BSON.SYMBOL:
+		case BSON.JSCODE:
+		case BSON.DBREF:
+			return bytes.getUTF8String(valuePos);
+		case BSON.JSCODE_W_SCOPE:
+			return bytes.getUTF8String(valuePos + 4);
+		default:
+			throw wrongType("string");
+		}
+	}
+
+	/**
+	 * @return the value of an ObjectID field, or the id of a DBRef
+	 */
+	public ObjectID getObjectID() {
+		checkField();
+		int p = valuePos;
+		if (type == BSON.DBREF)
+			p += 4 + bytes.getInt(valuePos);
+		else if (type != BSON.OBJECTID)
+			throw wrongType("ObjectID");
+		// OIDs are stored as Big Endian
+		return new ObjectID(bytes.getIntBE(p), bytes.getIntBE(p + 4),
+				bytes.getIntBE(p + 8));
+	}
+
+	public byte getBinarySubType() {
+		checkType(BSON.BINARY, "binary");
+		return bytes.get(valuePos + 4);
+	}
+
+	/**
+	 * @return a copy of the bytes of a binary field. The extra length header
+	 *         of the old binary subtype is stripped.
+	 */
+	public byte[] getBinary() {
+		checkType(BSON.BINARY, "binary");
+		int len = bytes.getInt(valuePos);
+		int p = valuePos + 5;
+		if (bytes.get(valuePos + 4) == BSON.BINARY_OLD) {
+			len -= 4;
+			p += 4;
+		}
+		final byte[] b = new byte[len];
+		bytes.get(b, p, 0, len);
+		return b;
+	}
+
+	public String getRegexPattern() {
+		checkType(BSON.REGEX, "regex");
+		return bytes.getCString(valuePos);
+	}
+
+	public String getRegexOptions() {
+		checkType(BSON.REGEX, "regex");
+		return bytes.getCString(valuePos + bytes.sizeCString(valuePos));
+	}
+
+	public BSONTimestamp getTimestamp() {
+		checkType(BSON.TIMESTAMP, "timestamp");
+		// increment first, then time
+		return new BSONTimestamp(bytes.getInt(valuePos + 4),
+				bytes.getInt(valuePos));
+	}
+
+	/**
+	 * Decodes the current field to the same Java type the default document
+	 * builder would put in a document.
+	 *
+	 * @return the value; null for a document or array, whose contents follow
+	 *         as events. Scoped code returns its Code, and its scope follows.
+	 */
+	public Object getValue() {
+		checkField();
+		switch (type) {
+		case BSON.NULL:
+		case BSON.UNDEF:
+		case BSON.DOCUMENT:
+		case BSON.ARRAY:
+			return null;
+		case BSON.DOUBLE:
+			return getDouble();
+		case BSON.STRING:
+		case BSON.SYMBOL:
+			return getString();
+		case BSON.JSCODE:
+		case BSON.JSCODE_W_SCOPE:
+			return new Code(getString());
+		case BSON.BINARY:
+			return binaryValue();
+		case BSON.OBJECTID:
+			return getObjectID();
+		case BSON.BOOLEAN:
+			return getBoolean();
+		case BSON.UTC_DATETIME:
+			return new Date(getDateTime());
+		case BSON.REGEX:
+			return Pattern.compile(getRegexPattern(),
+					BSON.regexFlags(getRegexOptions()));
+		case BSON.DBREF:
+			throw new UnsupportedOperationException("DBRef not yet supported");
+		case BSON.INT32:
+			return getInt();
+		case BSON.INT64:
+			return getLong();
+		case BSON.TIMESTAMP:
+			return getTimestamp();
+		case BSON.MIN_KEY:
+			return BSON.MinKey.getInstance();
+		case BSON.MAX_KEY:
+			return BSON.MaxKey.getInstance();
+		default:
+			throw wrongType("known BSON type");
+		}
+	}
+
+	/**
+	 * Sets the cache used to canonicalise field names. Defaults to the shared
+	 * {@link FieldNameCache#getDefault()}; null turns caching off.
+	 */
+	public void setFieldNameCache(FieldNameCache names) {
+		this.names = names;
+	}
+
+	/**
+	 * Turns on validating mode. Length prefixes are checked against the
+	 * limits and the end of the enclosing document as soon as they arrive,
+	 * so a hostile length fails with a BSONException rather than growing the
+	 * input buffer to fit, and a name or value is never waited on past the
+	 * end of its document.
+	 *
+	 * @param limits
+	 *            the limits to enforce, or null (the default) to trust the
+	 *            input
+	 */
+	public void setLimits(BSONLimits limits) {
+		this.limits = limits;
+	}
+
+	// ---- internals ----
+
+	private Object binaryValue() {
+		final byte subType = getBinarySubType();
+		final int len = bytes.getInt(valuePos);
+		final int p = valuePos + 5;
+		if ((subType == BSON.BINARY_UUID || subType == BSON.BINARY_UUID_OLD)
+				&& len == 16) {
+			if (subType == BSON.BINARY_UUID)
+				return new UUID(bytes.getLongBE(p), bytes.getLongBE(p + 8));
+			return new UUID(bytes.getLong(p), bytes.getLong(p + 8));
+		}
+		if (subType == BSON.BINARY_MD5 && len == 16)
+			return new MD5(bytes.getLongBE(p), bytes.getLongBE(p + 8));
+		return ByteBuffer.wrap(getBinary());
+	}
+
+	/**
+	 * Discards the bytes of a skipped document as they arrive.
+	 *
+	 * @return true once the whole document has gone
+	 */
+	private boolean skip() {
+		keep = cursor;
+		if (skipRemaining < 0) {
+			if (end - cursor < 4) {
+				wanted = 4;
+				return false;
+			}
+			skipRemaining = bytes.getInt(cursor);
+			if (skipRemaining < 5)
+				throw new BSONException("Invalid document length "
+						+ skipRemaining);
+			if (limits != null && base + cursor + skipRemaining > ends[depth - 1])
+				throw new BSONException("Document length " + skipRemaining
+						+ " runs past the end of the document around it");
+		}
+		final int n = Math.min(skipRemaining, end - cursor);
+		cursor += n;
+		keep = cursor;
+		skipRemaining -= n;
+		wanted = 1;
+		return skipRemaining == 0;
+	}
+
+	/**
+	 * @return the size of the cstring at offset, including its NUL, or -1 if
+	 *         the NUL hasn't arrived yet
+	 */
+	private int sizeCString(int offset) {
+		for (int i = offset; i < end; i++) {
+			if (bytes.get(i) == 0)
+				return i - offset + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Sizes a value as far as the event is concerned: embedded documents are
+	 * not part of their field, and for scoped code only the code is.
+	 *
+	 * @return the size, or -1 if not enough has arrived to tell
+	 */
+	private int sizeValue(byte t, int v) {
+		switch (t) {
+		case BSON.DOCUMENT:
+		case BSON.ARRAY:
+			return 0;
+		case BSON.JSCODE_W_SCOPE:
+			// total length, then the code
+			if (end - v < 8)
+				return -1;
+			return 8 + checkLength(bytes.getInt(v + 4), 1);
+		case BSON.STRING:
+		case BSON.JSCODE:
+		case BSON.SYMBOL:
+			if (end - v < 4)
+				return -1;
+			return 4 + checkLength(bytes.getInt(v), 1);
+		case BSON.BINARY:
+			if (end - v < 4)
+				return -1;
+			return 5 + checkLength(bytes.getInt(v), 0);
+		case BSON.DBREF:
+			if (end - v < 4)
+				return -1;
+			return 4 + checkLength(bytes.getInt(v), 1) + 12;
+		case BSON.REGEX:
+			final int pSz = sizeCString(v);
+			if (pSz < 0)
+				return -1;
+			final int oSz = sizeCString(v + pSz);
+			if (oSz < 0)
+				return -1;
+			return pSz + oSz;
+		default:
+			return bytes.sizeValue(t, v);
+		}
+	}
+
+	/**
+	 * Validating mode: checks a document's length, at its start, against the
+	 * limits and the document around it.
+	 */
+	private void checkDocument(int len) {
+		if (depth == 0) {
+			if (len > limits.maxDocumentSize)
+				throw new BSONException("Document length " + len
+						+ " exceeds the limit of " + limits.maxDocumentSize);
+			return;
+		}
+		if (depth >= limits.maxDepth)
+			throw new BSONException("Documents nested deeper than "
+					+ limits.maxDepth);
+		if (base + cursor + len > ends[depth - 1])
+			throw new BSONException("Document length " + len
+					+ " runs past the end of the document around it");
+	}
+
+	/**
+	 * Validating mode: checks a field's size, as returned by sizeValue,
+	 * before waiting for it to arrive.
+	 */
+	private void checkValue(byte t, int v, int size) {
+		if (base + v + size > ends[depth - 1])
+			throw new BSONException("Field at " + (base + cursor)
+					+ " runs past the end of its document at "
+					+ ends[depth - 1]);
+		switch (t) {
+		case BSON.STRING:
+		case BSON.JSCODE:
+		case BSON.SYMBOL:
+		case BSON.DBREF:
+		case BSON.JSCODE_W_SCOPE:
+			// prefixes, NUL, and DBREF's OID don't count against the limit
+			final int chars = size - (t == BSON.JSCODE_W_SCOPE ? 8 : 4)
+					- (t == BSON.DBREF ? 12 : 0) - 1;
+			if (chars > limits.maxStringLength)
+				throw new BSONException("String length " + chars
+						+ " exceeds the limit of " + limits.maxStringLength);
+			break;
+		case BSON.BINARY:
+			if (size - 5 > limits.maxBinaryLength)
+				throw new BSONException("Binary length " + (size - 5)
+						+ " exceeds the limit of " + limits.maxBinaryLength);
+			break;
+		}
+	}
+
+	/**
+	 * Rejects lengths too small for the type, and lengths so large that
+	 * adding the prefixes around them would overflow.
+	 */
+	private static int checkLength(int len, int min) {
+		if (len < min || len > MAX_LENGTH)
+			throw new BSONException("Invalid length " + len);
+		return len;
+	}
+
+	private Event needInput(int bytesFromCursor) {
+		if (limits != null && depth > 0
+				&& base + cursor + bytesFromCursor > ends[depth - 1])
+			throw new BSONException("Element at " + (base + cursor)
+					+ " runs past the end of its document at "
+					+ ends[depth - 1]);
+		wanted = bytesFromCursor;
+		return event = Event.NEED_INPUT;
+	}
+
+	private void push(long docEnd, boolean array) {
+		if (depth == ends.length) {
+			final long[] e = new long[depth * 2];
+			final boolean[] a = new boolean[depth * 2];
+			System.arraycopy(ends, 0, e, 0, depth);
+			System.arraycopy(arrays, 0, a, 0, depth);
+			ends = e;
+			arrays = a;
+		}
+		ends[depth] = docEnd;
+		arrays[depth] = array;
+		depth++;
+	}
+
+	private void prepareFill() {
+		ensureSpace(Math.max(MIN_READ, wanted - (end - cursor)));
+		in.limit(in.capacity());
+		in.position(end);
+	}
+
+	/**
+	 * Makes room for n more bytes past the end, first by dropping the bytes
+	 * already consumed, and failing that by growing the buffer.
+	 */
+	private void ensureSpace(int n) {
+		if (in.capacity() - end >= n)
+			return;
+		final int live = end - keep;
+		if (in.capacity() - live >= n) {
+			System.arraycopy(in.array(), keep, in.array(), 0, live);
+		} else {
+			final ByteBuffer bigger = ByteBuffer.allocate(Math.max(
+					in.capacity() * 2, live + n));
+			System.arraycopy(in.array(), keep, bigger.array(), 0, live);
+			setInput(bigger);
+		}
+		base += keep;
+		cursor -= keep;
+		end -= keep;
+		nameStart -= keep;
+		valuePos -= keep;
+		keep = 0;
+	}
+
+	private void setInput(ByteBuffer in) {
+		in.order(ByteOrder.LITTLE_ENDIAN);
+		this.in = in;
+		this.bytes = new BSONByteBuffer(in);
+	}
+
+	private void checkField() {
+		if (event != Event.FIELD)
+			throw new IllegalStateException("Not positioned on a field");
+	}
+
+	private void checkType(byte t, String what) {
+		checkField();
+		if (type != t)
+			throw wrongType(what);
+	}
+
+	private BSONException wrongType(String what) {
+		return new BSONException("Field '" + fieldName() + "' of type " + type
+				+ " is not a " + what);
+	}
+
+	/**
+	 * Smallest read worth making room for.
+	 */
+	private static final int MIN_READ = 512;
+	/**
+	 * Largest string or binary length; sizeValue adds at most 16 bytes of
+	 * prefixes to it.
+	 */
+	private static final int MAX_LENGTH = Integer.MAX_VALUE - 16;
+
+	private ByteBuffer in;
+	private BSONByteBuffer bytes;
+	/** Stream offset of in[0]. */
+	private long base = 0;
+	/** Next byte to consume. */
+	private int cursor = 0;
+	/** End of the bytes fed in. */
+	private int end = 0;
+	/** Start of the bytes which must survive a compaction. */
+	private int keep = 0;
+	/** Bytes needed from the cursor for the event we're waiting on. */
+	private int wanted = 0;
+
+	private Event event;
+	private byte type;
+	private int nameStart;
+	private int nameSize;
+	private String name;
+	private int valuePos;
+
+	private boolean pendingDocument = false;
+	private boolean pendingArray = false;
+	private int skipRemaining = 0;
+
+	/** Stream offsets at which each open document should end. */
+	private long[] ends = new long[16];
+	private boolean[] arrays = new boolean[16];
+	private int depth = 0;
+
+	private FieldNameCache names = FieldNameCache.getDefault();
+	private BSONLimits limits;
+}
@@ -0,0 +1,109 @@
+package net.evilmonkeylabs.mag7.bson;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Bounds on what a reader will accept from untrusted input. Setting limits on a
+ * {@link BSONReader} or {@link BSONEventReader} puts it in validating mode:
+ * every length prefix is checked against the limits and against the end of
+ * the document enclosing it before anything is allocated or scanned, and the
+ * first violation throws a
+ * {@link net.evilmonkeylabs.mag7.bson.io.BSONException}.
+ *
+ * Limits are immutable; the with* methods return a copy, e.g.
+ * <code>BSONLimits.DEFAULT.withMaxDepth(20)</code>. They may be shared
+ * between readers and threads.
+ */
+public final class BSONLimits {
+
+	/**
+	 * The server's own limits: 16MB documents nested at most 100 deep. Strings
+	 * and binaries may take up a whole document.
+	 */
+	public static final BSONLimits DEFAULT = new BSONLimits(16 * 1024 * 1024,
+			100, 16 * 1024 * 1024, 16 * 1024 * 1024);
+
+	/**
+	 * @param maxDocumentSize
+	 *            largest outermost document, in bytes
+	 * @param maxDepth
+	 *            deepest nesting of documents, arrays and scopes, counting
+	 *            the outermost document as 1
+	 * @param maxStringLength
+	 *            longest string, code or symbol, in bytes without its NUL
+	 * @param maxBinaryLength
+	 *            longest binary payload, in bytes
+	 */
+	public BSONLimits(int maxDocumentSize, int maxDepth, int maxStringLength,
+			int maxBinaryLength) {
+		if (maxDocumentSize < 5 || maxDepth < 1 || maxStringLength < 0
+				|| maxBinaryLength < 0)
+			throw new IllegalArgumentException("Invalid limits");
+		this.maxDocumentSize = maxDocumentSize;
+		this.maxDepth = maxDepth;
+		this.maxStringLength = maxStringLength;
+		this.maxBinaryLength = maxBinaryLength;
+	}
+
+	public BSONLimits withMaxDocumentSize(int maxDocumentSize) {
+		return new BSONLimits(maxDocumentSize, maxDepth, maxStringLength,
+				maxBinaryLength);
+	}
+
+	public BSONLimits withMaxDepth(int maxDepth) {
+		return new BSONLimits(maxDocumentSize, maxDepth, maxStringLength,
+				maxBinaryLength);
+	}
+
+	public BSONLimits withMaxStringLength(int maxStringLength) {
+		return new BSONLimits(maxDocumentSize, maxDepth, maxStringLength,
+				maxBinaryLength);
+	}
+
+	public BSONLimits withMaxBinaryLength(int maxBinaryLength) {
+		return new BSONLimits(maxDocumentSize, maxDepth, maxStringLength,
+				maxBinaryLength);
+	}
+
+	public int getMaxDocumentSize() {
+		return maxDocumentSize;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public int getMaxStringLength() {
+		return maxStringLength;
+	}
+
+	public int getMaxBinaryLength() {
+		return maxBinaryLength;
+	}
+
+	@Override
+	public String toString() {
+		return "BSONLimits{maxDocumentSize=" + maxDocumentSize + ", maxDepth="
+				+ maxDepth + ", maxStringLength=" + maxStringLength
+				+ ", maxBinaryLength=" + maxBinaryLength + "}";
+	}
+
+	final int maxDocumentSize;
+	final int maxDepth;
+	final int maxStringLength;
+	final int maxBinaryLength;
+}
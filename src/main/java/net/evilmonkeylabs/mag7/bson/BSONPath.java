@@ -0,0 +1,291 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.io.BSONByteBuffer;
+import net.evilmonkeylabs.mag7.bson.io.BSONException;
+import net.evilmonkeylabs.mag7.bson.types.ObjectID;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Pulls a single value out of an encoded document, e.g. a shard key, without
+ * decoding the rest of it. The document is scanned element by element: names
+ * are compared against the path's pre-encoded segments byte for byte, and
+ * non-matching values are skipped by their encoded size. No builder is
+ * involved and nothing else is decoded. Each lookup does allocate a small
+ * BSONByteBuffer over doc (plus a little endian duplicate of doc if its order
+ * is big endian), and {@link #getValue(ByteBuffer)} a LazyBSONDocParser too,
+ * besides the value itself.
+ *
+ * Paths are top level names or dotted paths into embedded documents, e.g.
+ * "user.address.zip". A numeric segment picks an array element by index, as
+ * in "items.0.sku".
+ *
+ * Compiled paths are immutable, cached by {@link #compile(String)}, and may be
+ * shared between threads. Documents are read from their buffer's position,
+ * which isn't changed.
+ */
+public final class BSONPath {
+
+	/**
+	 * Compiles a path, or returns the one compiled for it before.
+	 */
+	public static BSONPath compile(String path) {
+		BSONPath p = CACHE.get(path);
+		if (p != null)
+			return p;
+		p = new BSONPath(path);
+		if (CACHE.size() < MAX_CACHED) {
+			final BSONPath prev = CACHE.putIfAbsent(path, p);
+			if (prev != null)
+				return prev;
+		}
+		return p;
+	}
+
+	private BSONPath(String path) {
+		final String[] names = path.split("\\.", -1);
+		segments = new byte[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].isEmpty())
+				throw new IllegalArgumentException("Empty segment in path '"
+						+ path + "'");
+			segments[i] = names[i].getBytes(UTF8);
+		}
+		this.path = path;
+	}
+
+	/**
+	 * @return true if the document has a value at this path
+	 */
+	public boolean exists(ByteBuffer doc) {
+		return find(new BSONByteBuffer(doc), doc.position()) >= 0;
+	}
+
+	/**
+	 * @return the BSON type of the value at this path, or BSON.EOO if there is
+	 *         none
+	 */
+	public byte type(ByteBuffer doc) {
+		final BSONByteBuffer b = new BSONByteBuffer(doc);
+		final int e = find(b, doc.position());
+		return e < 0 ? BSON.EOO : b.get(e);
+	}
+
+	/**
+	 * @return the int32 at this path, or missing if there is none
+	 * @throws BSONException
+	 *             if the value isn't an int32
+	 */
+	public int getInt(ByteBuffer doc, int missing) {
+		final BSONByteBuffer b = new BSONByteBuffer(doc);
+		final int e = find(b, doc.position());
+		if (e < 0)
+			return missing;
+		return b.getInt(value(b, e, BSON.INT32, BSON.INT32));
+	}
+
+	/**
+	 * @return the int64, or int32, at this path, or missing if there is none
+	 * @throws BSONException
+	 *             if the value isn't an integer
+	 */
+	public long getLong(ByteBuffer doc, long missing) {
+		final BSONByteBuffer b = new BSONByteBuffer(doc);
+		final int e = find(b, doc.position());
+		if (e < 0)
+			return missing;
+		final int v = value(b, e, BSON.INT64, BSON.INT32);
+		return b.get(e) == BSON.INT32 ? b.getInt(v) : b.getLong(v);
+	}
+
+	/**
+	 * @return the number at this path, or missing if there is none
+	 * @throws BSONException
+	 *             if the value isn't a double, int32 or int64
+	 */
+	public double getDouble(ByteBuffer doc, double missing) {
+		final BSONByteBuffer b = new BSONByteBuffer(doc);
+		final int e = find(b, doc.position());
+		if (e < 0)
+			return missing;
+		switch (b.get(e)) {
+		case BSON.DOUBLE:
+			return b.getDouble(valueOffset(e));
+		case BSON.INT32:
+			return b.getInt(valueOffset(e));
+		case BSON.INT64:
+			return b.getLong(valueOffset(e));
+		default:
+			throw wrongType(b.get(e), "a number");
+		}
+	}
+
+	/**
+	 * @return the boolean at this path, or missing if there is none
+	 * @throws BSONException
+	 *             if the value isn't a boolean
+	 */
+	public boolean getBoolean(ByteBuffer doc, boolean missing) {
+		final BSONByteBuffer b = new BSONByteBuffer(doc);
+		final int e = find(b, doc.position());
+		if (e < 0)
+			return missing;
+		return b.get(value(b, e, BSON.BOOLEAN, BSON.BOOLEAN)) != 0;
+	}
+
+	/**
+	 * @return the UTC datetime at this path, in milliseconds since the Unix
+	 *         epoch, or missing if there is none
+	 * @throws BSONException
+	 *             if the value isn't a datetime
+	 */
+	public long getDateTime(ByteBuffer doc, long missing) {
+		final BSONByteBuffer b = new BSONByteBuffer(doc);
+		final int e = find(b, doc.position());
+		if (e < 0)
+			return missing;
+		return b.getLong(value(b, e, BSON.UTC_DATETIME, BSON.UTC_DATETIME));
+	}
+
+	/**
+	 * @return the string, or symbol, at this path, or null if there is none
+	 * @throws BSONException
+	 *             if the value isn't a string
+	 */
+	public String getString(ByteBuffer doc) {
+		final BSONByteBuffer b = new BSONByteBuffer(doc);
+		final int e = find(b, doc.position());
+		if (e < 0)
+			return null;
+		return b.getUTF8String(value(b, e, BSON.STRING, BSON.SYMBOL));
+	}
+
+	/**
+	 * @return the ObjectID at this path, or null if there is none
+	 * @throws BSONException
+	 *             if the value isn't an ObjectID
+	 */
+	public ObjectID getObjectID(ByteBuffer doc) {
+		final BSONByteBuffer b = new BSONByteBuffer(doc);
+		final int e = find(b, doc.position());
+		if (e < 0)
+			return null;
+		final int v = value(b, e, BSON.OBJECTID, BSON.OBJECTID);
+		// OIDs are stored as Big Endian
+		return new ObjectID(b.getIntBE(v), b.getIntBE(v + 4), b.getIntBE(v + 8));
+	}
+
+	/**
+	 * Decodes whatever is at this path, as a {@link LazyBSONDocParser} would;
+	 * embedded documents come back as LazyDocuments over doc.
+	 *
+	 * @return the value, or null if there is none
+	 */
+	public Object getValue(ByteBuffer doc) {
+		final int e = find(new BSONByteBuffer(doc), doc.position());
+		if (e < 0)
+			return null;
+		return new LazyBSONDocParser(doc).decode(e);
+	}
+
+	/**
+	 * Finds the element at the end of the path.
+	 *
+	 * @param start
+	 *            the offset of the document's length prefix
+	 * @return the offset of the element's type byte, or -1 if there is none
+	 */
+	int find(BSONByteBuffer b, int start) {
+		final int last = segments.length - 1;
+		for (int s = 0;; s++) {
+			final int end = start + b.getInt(start);
+			final byte[] seg = segments[s];
+			int pos = start + 4;
+			int found = -1;
+			while (pos < end) {
+				final byte t = b.get(pos);
+				if (t == BSON.EOO)
+					break;
+				final int nameSize = b.sizeCString(pos + 1, end);
+				if (nameSize < 0)
+					throw new BSONException("Field name at " + (pos + 1)
+							+ " runs past the end of its document");
+				if (nameSize - 1 == seg.length && matches(b, pos + 1, seg)) {
+					found = pos;
+					break;
+				}
+				final int v = pos + 1 + nameSize;
+				pos = v + b.sizeValue(t, v);
+			}
+			if (found < 0 || s == last)
+				return found;
+			final byte t = b.get(found);
+			if (t != BSON.DOCUMENT && t != BSON.ARRAY)
+				return -1;
+			start = found + 2 + seg.length;
+		}
+	}
+
+	/**
+	 * @return the offset of the value of an element found by this path
+	 */
+	private int valueOffset(int element) {
+		// type byte, the last segment, its NUL
+		return element + 2 + segments[segments.length - 1].length;
+	}
+
+	/**
+	 * @return the offset of the value, if it is of either type
+	 */
+	private int value(BSONByteBuffer b, int element, byte type, byte or) {
+		final byte t = b.get(element);
+		if (t != type && t != or)
+			throw wrongType(t, "of type " + type);
+		return valueOffset(element);
+	}
+
+	private BSONException wrongType(byte t, String wanted) {
+		return new BSONException("Value at '" + path + "' is of type " + t
+				+ ", not " + wanted);
+	}
+
+	private static boolean matches(BSONByteBuffer b, int offset, byte[] seg) {
+		for (int i = 0; i < seg.length; i++) {
+			if (b.get(offset + i) != seg[i])
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	private final String path;
+	/** The path's names, UTF-8 encoded to compare against the raw bytes. */
+	private final byte[][] segments;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_CACHED = 4096;
+	private static final ConcurrentMap<String, BSONPath> CACHE = new ConcurrentHashMap<String, BSONPath>();
+}
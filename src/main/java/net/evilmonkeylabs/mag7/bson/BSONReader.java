@@ -2,11 +2,14 @@ package net.evilmonkeylabs.mag7.bson;
 
 import net.evilmonkeylabs.mag7.bson.doc.BSONDocumentBuilder;
 import net.evilmonkeylabs.mag7.bson.doc.BSONList;
+import net.evilmonkeylabs.mag7.bson.doc.PrimitiveList;
 import net.evilmonkeylabs.mag7.bson.io.BSONByteBuffer;
 import net.evilmonkeylabs.mag7.bson.io.BSONException;
+import net.evilmonkeylabs.mag7.bson.types.CodeWScope;
+import net.evilmonkeylabs.mag7.bson.util.FieldNameCache;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
@@ -26,16 +29,56 @@ import java.util.logging.Logger;
  */
 
 /**
+ * Decodes a document, and everything embedded in it, in a single pass over the
+ * buffer. Embedded documents and arrays don't get readers of their own; the
+ * reader keeps a stack of the builders for the documents it is inside, so a
+ * deeply nested document costs no more allocation than the documents
+ * themselves.
+ * 
+ * Subclasses choose the document type with {@link #newBuilder()}, and the list
+ * type for arrays with {@link #newListBuilder(int)}.
  * 
  * @param <T> The type of "Document" returned.
  */
 public abstract class BSONReader<T> {
 
 	public BSONReader(final ByteBuffer _buf) {
-		buf = new BSONByteBuffer(_buf);
+		bind(_buf);
+	}
+
+	/**
+	 * Creates a reader which isn't pointed at anything yet; call
+	 * {@link #reset(ByteBuffer)} before reading.
+	 */
+	protected BSONReader() {
+	}
+
+	/**
+	 * Points the reader at another document. A reader, its buffer wrapper and
+	 * (where they support {@link BSONDocumentBuilder#reset()}) its builders
+	 * can so decode any number of documents, leaving only the results to be
+	 * allocated. Results already returned are unaffected.
+	 * 
+	 * @param _buf
+	 *            a buffer positioned at the start of the document
+	 */
+	public void reset(final ByteBuffer _buf) {
+		bind(_buf);
+		if (b == null || !b.reset())
+			b = newBuilder();
+	}
+
+	private void bind(final ByteBuffer _buf) {
+		if (buf == null)
+			buf = new BSONByteBuffer(_buf);
+		else
+			buf.setBuffer(_buf);
 		startPos = _buf.position(); 
-		pos = new AtomicInteger(startPos);
-		len = buf.getInt(pos.getAndAdd(4));
+		pos = startPos;
+		len = buf.getInt(pos);
+		pos += 4;
+		depth = 0;
+		parsed = false;
 	}
 
 	public DefaultBSONDocParser parseDocument(final ByteBuffer buf) {
@@ -45,157 +88,231 @@ public abstract class BSONReader<T> {
 	public abstract BSONDocumentBuilder<T> newBuilder();
 
 	protected void parse() {
-		while (parseEntry());
-		log.info("[" + startPos + "] Stopped parsing at " + pos);
+		// with no listener, the one field load and branch per document and
+		// per element are all instrumentation costs
+		final DecodeListener l = listener != null ? listener : defaultListener;
+		final long start;
+		if (l != null) {
+			if (stats == null)
+				stats = new DecodeStats();
+			stats.reset();
+			start = System.nanoTime();
+		} else {
+			start = 0;
+		}
+		counting = l != null ? stats : null;
+		if (limits != null)
+			checkDocument();
+		push(b, null, BSON.DOCUMENT, projection, null, startPos + len);
+		while (depth > 0) {
+			if (!parseEntry())
+				pop();
+		}
+		if (TRACE)
+			log.finest("[" + startPos + "] Stopped parsing at " + pos);
 		parsed = true;
+		if (l != null) {
+			counting = null;
+			stats.finish(len, System.nanoTime() - start);
+			l.documentDecoded(stats);
+		}
 	}
 
+	/**
+	 * Reads one element of the innermost open document into its builder. An
+	 * embedded document or array is opened rather than read: the following
+	 * calls read its elements, until its EOO.
+	 * 
+	 * @return false if the element was the document's EOO
+	 */
 	protected boolean parseEntry() {
-		final byte type = buf.get(pos.getAndIncrement());
+		final int top = depth - 1;
+		if (limits != null)
+			checkElement(top);
+
+		final byte type = buf.get(pos++);
 
 		if (type == BSON.EOO) 
 			return false;
 
-		final int sz = buf.sizeCString(pos.get());
-		final String name = buf.getCString(pos.getAndAdd(sz));
+		final BSONDocumentBuilder<?> cur = builders[top];
+		final int sz = buf.sizeCString(pos);
+		// array keys are just the indexes, which list builders don't need
+		final String name = kinds[top] == BSON.ARRAY ? null : buf.getFieldName(pos, sz, names);
+		pos += sz;
+
+		if (TRACE)
+			log.finest("[" + depth + "] name: " + name + " type: " + type);
 
-		log.info("[" + startPos + "] name: " + name + " type: " + type);
+		Projection sub = null;
+		final Projection proj = projections[top];
+		if (proj != null) {
+			sub = proj.child(name);
+			// partially included fields only make sense for docs & arrays
+			if (sub == null || (!sub.includesAll() && type != BSON.DOCUMENT && type != BSON.ARRAY)) {
+				pos += buf.sizeValue(type, pos);
+				return true;
+			}
+		}
+		if (counting != null)
+			counting.field(type);
 		
 		switch (type) {
 		case BSON.NULL:
 		case BSON.UNDEF:
-			b.putNull(name);
+			cur.putNull(name);
 			break;
 		case BSON.DOUBLE:
-			b.putDouble(name, buf.getDouble(pos.getAndAdd(8)));
+			cur.putDouble(name, buf.getDouble(pos));
+			pos += 8;
 			break;
 		case BSON.STRING:
-			final String val = buf.getUTF8String(pos.get());
-			b.putString(name, val);
-			pos.getAndAdd(val.length() + 4 + 1);
+			final String val = buf.getUTF8String(pos);
+			cur.putString(name, val);
+			if (counting != null)
+				counting.string(buf.getInt(pos) - 1);
+			// skip by the encoded length; chars != bytes
+			pos += 4 + buf.getInt(pos);
 			break;
 		case BSON.DOCUMENT:
-			log.info("/// OBJECT");
-			final int _subL = buf.getInt(pos.get());
-			final ByteBuffer _subBuf = buf.slice();
-			_subBuf.position(pos.get());
-			final BSONReader<T> dP = newDocumentParser(_subBuf);
-			final T doc = dP.result();
-			b.putDocument(name, doc);
-			pos.getAndAdd(_subL);
+			if (keepsRaw(cur, name, type, sub)) {
+				final int _docL = buf.getInt(pos);
+				cur.putRawDocument(name, buf.slice(pos, _docL), false);
+				pos += _docL;
+				break;
+			}
+			final T doc = embeddedDocument(pos);
+			if (doc != null) {
+				putDocument(top, name, doc);
+				pos += buf.getInt(pos);
+			} else {
+				push(documentBuilder(depth), name, BSON.DOCUMENT, sub == null || sub.includesAll() ? null : sub, null, pos + buf.getInt(pos));
+				pos += 4;
+			}
 			break;
 		case BSON.ARRAY:
-			// TODO - Let user specify custom list builder !!!
-			log.info("/// ARRAY");
-			final int _lstL = buf.getInt(pos.get());
-			b.putList(name, parseArray());
-			pos.getAndAdd(_lstL);
+			final int _lstL = buf.getInt(pos);
+			if (keepsRaw(cur, name, type, sub)) {
+				cur.putRawDocument(name, buf.slice(pos, _lstL), true);
+				pos += _lstL;
+				break;
+			}
+			push(newListBuilder(sizeHint(pos, _lstL)), name, BSON.ARRAY, sub == null || sub.includesAll() ? null : sub.forElements(), null, pos + _lstL);
+			pos += 4;
 			break;
 		case BSON.BINARY:
-			final int _binL = buf.getInt(pos.getAndAdd(4));
-			final byte _sT = buf.get(pos.getAndIncrement());
-			log.info("/// Binary SubType: " + _sT + " of length " + _binL);
-			// TODO - can we make this more efficient?
-			final byte[] _bin = new byte[_binL];
-			ByteBuffer bytes;
-			
-			log.info(BSON.dumpBytes(_bin));
-			if (_sT == BSON.BINARY_OLD) {
-				// Old format had an extra length header; parse out before passing to a simple "got Binary" method
-				bytes = buf.get(_bin, pos.addAndGet(4), 0, _binL - 4);
-			} else {
-				bytes = buf.get(_bin, pos.get(), 0, _binL);
+			final int _binL = buf.getInt(pos);
+			pos += 4;
+			final byte _sT = buf.get(pos++);
+			if (TRACE)
+				log.finest("Binary SubType: " + _sT + " of length " + _binL);
+			if (counting != null)
+				counting.binary(_binL);
+			if (keepsRaw(cur, name, type, sub)) {
+				if (_sT == BSON.BINARY_OLD)
+					cur.putRawBinary(name, buf.slice(pos + 4, _binL - 4), _sT);
+				else
+					cur.putRawBinary(name, buf.slice(pos, _binL), _sT);
+				pos += _binL;
+				break;
 			}
-			log.info(BSON.dumpBytes(_bin));
-			
-			pos.getAndAdd(_binL);
-			
-			if (_sT == BSON.BINARY_UUID) {
-				if (_binL != 16)
-					throw new BSONException("Invalid UUID Length in Binary. Expected 16, got " + _binL);
-				log.info("*** NEW UUID");
-				b.putUUID(name, bytes, true);
-			} else if (_sT == BSON.BINARY_UUID_OLD) {  
+			if (_sT == BSON.BINARY_UUID || _sT == BSON.BINARY_UUID_OLD) {
 				if (_binL != 16)
 					throw new BSONException("Invalid UUID Length in Binary. Expected 16, got " + _binL);
-				log.info("*** OLD UUID");
-				b.putUUID(name, bytes, false);
+				// read in place; old drivers stored UUIDs little endian
+				if (_sT == BSON.BINARY_UUID)
+					cur.putUUID(name, buf.getLongBE(pos), buf.getLongBE(pos + 8));
+				else
+					cur.putUUID(name, buf.getLong(pos), buf.getLong(pos + 8));
 			} else if (_sT == BSON.BINARY_MD5) {
 				if (_binL != 16)
 					throw new BSONException("Invalid MD5 Length in Binary. Expected 16, got " + _binL);
-				b.putMD5(name, bytes);
+				cur.putMD5(name, buf.getLongBE(pos), buf.getLongBE(pos + 8));
+			} else if (_sT == BSON.BINARY_OLD) {
+				// Old format had an extra length header; parse out before passing to a simple "got Binary" method
+				if (_binL < 4)
+					throw new BSONException("Invalid old style Binary length " + _binL);
+				cur.putBinary(name, binary(pos + 4, _binL - 4), _sT);
 			} else {
-				b.putBinary(name, bytes,_sT);
+				cur.putBinary(name, binary(pos, _binL), _sT);
 			}
+			pos += _binL;
 			break;
 		case BSON.OBJECTID:
 			// OIDs are stored as Big Endian
-			b.putObjectID(name, buf.getIntBE(pos.getAndAdd(4)), buf.getIntBE(pos.getAndAdd(4)), buf.getIntBE(pos.getAndAdd(4)));
+			cur.putObjectID(name, buf.getIntBE(pos), buf.getIntBE(pos + 4), buf.getIntBE(pos + 8));
+			pos += 12;
 			break;
 		case BSON.BOOLEAN:
-			if (buf.get(pos.getAndIncrement()) == 0x01) 
-				b.putBoolTrue(name);
+			if (buf.get(pos++) == 0x01) 
+				cur.putBoolTrue(name);
 			else 
-				b.putBoolFalse(name);
+				cur.putBoolFalse(name);
 			break;
 		case BSON.UTC_DATETIME:
-			final long tsp = buf.getLong(pos.getAndAdd(8));
-			b.putDateTime(name, tsp);
+			final long tsp = buf.getLong(pos);
+			pos += 8;
+			cur.putDateTime(name, tsp);
 			break;
 		case BSON.REGEX:
-			final int pSz = buf.sizeCString(pos.get());
-			final String pattern = buf.getCString(pos.getAndAdd(pSz));
-			final int oSz = buf.sizeCString(pos.get());
-			final String options = buf.getCString(pos.getAndAdd(oSz));
-			b.putRegex(name, pattern, options);
+			final int pSz = buf.sizeCString(pos);
+			final String pattern = buf.getCString(pos);
+			pos += pSz;
+			final int oSz = buf.sizeCString(pos);
+			final String options = buf.getCString(pos);
+			pos += oSz;
+			cur.putRegex(name, pattern, options);
 			break;
 		case BSON.DBREF:
 			// TODO - parse.. CString (NS) then OID
 			throw new UnsupportedOperationException("DBRef not yet supported");
 			// break;
 		case BSON.JSCODE:
-			final String code = buf.getUTF8String(pos.get());
-			log.info("JSCode at '" + name + "' - " + code);
-			b.putCode(name, code);
-			pos.getAndAdd(code.length() + 4 + 1);
+			final String code = buf.getUTF8String(pos);
+			cur.putCode(name, code);
+			pos += 4 + buf.getInt(pos);
 			break;
 		case BSON.JSCODE_W_SCOPE:
-			pos.getAndAdd(4); // we don't really need the length of the whole code scoped block, so skip it
-			final String scopedCode = buf.getUTF8String(pos.get());
-			pos.getAndAdd(scopedCode.length() + 4 + 1);
-			final int _scpL = buf.getInt(pos.get());
-			final ByteBuffer _scpBuf = buf.slice();
-			_scpBuf.position(pos.get());
-			final BSONReader<T> sP = newDocumentParser(_scpBuf);
-			final T scope = sP.result();
-			b.putScopedCode(name, scopedCode, scope);
-			pos.getAndAdd(_scpL);
+			pos += 4; // we don't really need the length of the whole code scoped block, so skip it
+			final String scopedCode = buf.getUTF8String(pos);
+			pos += 4 + buf.getInt(pos);
+			final T scope = embeddedDocument(pos);
+			if (scope != null) {
+				putScopedCode(top, name, scopedCode, scope);
+				pos += buf.getInt(pos);
+			} else {
+				// the scope's fields follow, then putScopedCode once it ends
+				push(documentBuilder(depth), name, BSON.JSCODE_W_SCOPE, null, scopedCode, pos + buf.getInt(pos));
+				pos += 4;
+			}
 			break;
 		case BSON.SYMBOL:
-			final String sym = buf.getUTF8String(pos.get());
-			b.putSymbol(name, sym);
-			pos.getAndAdd(sym.length() + 4 + 1);
+			final String sym = buf.getUTF8String(pos);
+			cur.putSymbol(name, sym);
+			pos += 4 + buf.getInt(pos);
 			break;
 		case BSON.INT32:
-			b.putInteger(name, buf.getInt(pos.getAndAdd(4)));
+			cur.putInteger(name, buf.getInt(pos));
+			pos += 4;
 			break;
 		case BSON.INT64:
-			b.putLong(name, buf.getLong(pos.getAndAdd(8)));
+			cur.putLong(name, buf.getLong(pos));
+			pos += 8;
 			break;
 		case BSON.TIMESTAMP:
 			// Special BSON Timestamp for sharding, oplog, etc.
-			final int inc = buf.getInt(pos.getAndAdd(4));
-			final int time = buf.getInt(pos.getAndAdd(4));
-			b.putTimestamp(name, time, inc);
+			final int inc = buf.getInt(pos);
+			final int time = buf.getInt(pos + 4);
+			pos += 8;
+			cur.putTimestamp(name, time, inc);
 			break;
 		case BSON.MIN_KEY:
-			b.putMinKey(name);
+			cur.putMinKey(name);
 			break;
 		case BSON.MAX_KEY:
-			b.putMaxKey(name);
+			cur.putMaxKey(name);
 			break;
 		default:
-			log.warning("Unknown BSON Type '" + type + "'");
 			throw new UnsupportedOperationException(
 					"No support for decoding BSON type of byte '" + type + "'");
 		}
@@ -203,45 +320,476 @@ public abstract class BSONReader<T> {
 		return true;
 	}
 
-	protected int lastPos() {
-		return pos.get();
+	/**
+	 * Sets the cache used to canonicalise field names; embedded documents
+	 * share their parent's. Defaults to the shared
+	 * {@link FieldNameCache#getDefault()}; null turns caching off.
+	 */
+	public void setFieldNameCache(FieldNameCache names) {
+		this.names = names;
 	}
 
+	/**
+	 * Restricts decoding to the fields in a projection. Excluded fields are
+	 * skipped by their length without being decoded or handed to the builder.
+	 * 
+	 * @param projection
+	 *            fields to decode, or null for everything
+	 */
+	public void setProjection(Projection projection) {
+		this.projection = projection;
+	}
 
-	public T result() {
-		if (!parsed)
-			parse();
+	/**
+	 * Decodes arrays whose elements are all int32, all int64 or all double
+	 * into compact {@link net.evilmonkeylabs.mag7.bson.doc.PrimitiveList}s
+	 * rather than BSONLists of boxed values. Off by default.
+	 */
+	public void setCompactArrays(boolean compactArrays) {
+		this.compactArrays = compactArrays;
+	}
 
-		return b.result();
+	/**
+	 * Copies binary values into arrays of their own, as by default, or with
+	 * false hands the builder read only views of the buffer being read
+	 * instead. Views cost nothing, but keep the whole buffer reachable and
+	 * must not outlive its contents, so only turn copying off if the buffer
+	 * won't be reused while the results are still in use.
+	 */
+	public void setCopyBinary(boolean copyBinary) {
+		this.copyBinary = copyBinary;
+	}
+
+	/**
+	 * Keeps the embedded documents, arrays and binaries of the documents read
+	 * as they are, handing them to the builder's putRawDocument and
+	 * putRawBinary rather than decoding them, as if the builder's keepsRaw
+	 * always said yes. Only the outermost fields are decoded; the rest can be
+	 * written back out with a bulk copy each. Documents and arrays which a
+	 * projection only partly includes are still decoded, so that it applies.
+	 * Off by default.
+	 */
+	public void setRawEmbedded(boolean rawEmbedded) {
+		this.rawEmbedded = rawEmbedded;
 	}
 
 	/**
-	 * Because we can't be terribly flexible with generics (such as abstract types)
-	 * in Java, and a List Parser is technically a Doc parser, there is no 
-	 * declared type for an embedded list. 
+	 * Turns on validating mode, for input which can't be trusted. Every length
+	 * prefix is checked against the limits and against the end of the
+	 * document around it before the reader allocates or scans anything on
+	 * its behalf, so a corrupt or hostile document fails with a
+	 * BSONException instead of running the reader off the end of the
+	 * document or out of memory.
 	 * 
-	 * For now ,this is a bit hacky but override this to parse your list out however you want
-	 * and return an Object.  
+	 * @param limits
+	 *            the limits to enforce, or null (the default) to trust the
+	 *            input
+	 */
+	public void setLimits(BSONLimits limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * Reports every document this reader decodes, with its
+	 * {@link DecodeStats}, to a listener such as {@link DecodeMetrics}.
+	 * 
+	 * @param listener
+	 *            the listener, or null (the default) for the default listener
+	 */
+	public void setDecodeListener(DecodeListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Reports the documents decoded by every reader without a listener of its
+	 * own, including those kept per thread by
+	 * {@link DefaultBSONDocParser#decode(ByteBuffer)}, to a listener. Takes
+	 * effect from each reader's next document.
 	 * 
-	 * TODO - Make a more elegant solution.
+	 * @param listener
+	 *            the listener, or null (the default) to turn reporting off
+	 */
+	public static void setDefaultDecodeListener(DecodeListener listener) {
+		defaultListener = listener;
+	}
+
+	protected int lastPos() {
+		return pos;
+	}
+
+	/**
+	 * Creates the builder for an embedded array. List builders are always
+	 * handed null keys, as array index keys aren't decoded; elements arrive in
+	 * order. Override to decode arrays into some other type of list.
 	 * 
-	 * @return
+	 * @param sizeHint
+	 *            estimated number of elements
 	 */
-	protected Object parseArray() {
-		final ByteBuffer _subLst = buf.slice();
-		_subLst.position(pos.get());
-		final BSONReader<BSONList> lP = new DefaultBSONArrayParser(_subLst);
-		return lP.result();
+	protected BSONDocumentBuilder<?> newListBuilder(int sizeHint) {
+		if (compactArrays)
+			return PrimitiveList.newBuilder(sizeHint);
+		return BSONList.newBuilder(sizeHint);
+	}
+
+	/**
+	 * Lets a subclass produce an embedded document (or scope) in some other
+	 * way than decoding it field by field, e.g. lazily.
+	 * 
+	 * @param offset
+	 *            the offset of the document's length prefix
+	 * @return the value for the document, or null to decode its fields into
+	 *         a builder from newBuilder()
+	 */
+	protected T embeddedDocument(int offset) {
+		return null;
+	}
+
+	/**
+	 * Decodes the single element at offset, along with anything embedded in
+	 * it, into a builder. Used to decode elements out of order. The reader
+	 * is left at the depth it started at even if the element is corrupt, so
+	 * it can go on to decode others.
+	 */
+	protected void parseElement(int offset, BSONDocumentBuilder<?> into) {
+		final int base = depth;
+		push(into, null, BSON.DOCUMENT, null, null, startPos + len);
+		try {
+			pos = offset;
+			parseEntry();
+			while (depth > base + 1) {
+				if (!parseEntry())
+					pop();
+			}
+		} finally {
+			while (depth > base)
+				builders[--depth] = null;
+		}
+	}
+
+	/**
+	 * Estimates an array's element count from the size of its first element.
+	 * Later elements have longer index keys, so for arrays of like elements
+	 * this errs slightly on the generous side.
+	 * 
+	 * @param offset
+	 *            the offset of the array's length prefix
+	 * @param length
+	 *            the array's length in bytes
+	 */
+	protected int sizeHint(int offset, int length) {
+		// runs before any of the array is checked, so mustn't trust length to
+		// lie within the buffer, nor the first element to lie within length
+		final int end = length > buf.limit() - offset ? buf.limit() : offset
+				+ length;
+		final int avail = end - offset;
+		if (avail <= 5)
+			return 0;
+		final byte type = buf.get(offset + 4);
+		if (type == BSON.EOO)
+			return 0;
+		// type byte, the key "0" and its NUL, then the value; never below 3,
+		// so a corrupt first length can't inflate the estimate. Only sized if
+		// its fixed part or length prefix is there to read.
+		int first = 3;
+		if (type != BSON.REGEX && offset + 7 + 4 <= end)
+			first += Math.max(0, buf.sizeValue(type, offset + 7));
+		// no array holds more elements than there are bytes present for, at
+		// 3 bytes each
+		return Math.min(avail / 3, (avail - 5) / first + 1);
+	}
+
+	private ByteBuffer binary(int offset, int length) {
+		if (copyBinary)
+			return buf.get(new byte[length], offset, 0, length);
+		return buf.slice(offset, length);
+	}
+
+	/**
+	 * A value the projection only partly includes is always decoded, so the
+	 * projection can drop the rest of it.
+	 */
+	private boolean keepsRaw(BSONDocumentBuilder<?> cur, String name,
+			byte type, Projection sub) {
+		if (sub != null && !sub.includesAll())
+			return false;
+		return rawEmbedded || cur.keepsRaw(name, type);
+	}
+
+	/**
+	 * Builders for embedded documents are kept, one per depth, and reused for
+	 * the next document at that depth if they can be reset.
+	 */
+	private BSONDocumentBuilder<?> documentBuilder(int d) {
+		if (d >= spares.length)
+			spares = Arrays.copyOf(spares, Math.max(d + 1, spares.length * 2));
+		final BSONDocumentBuilder<?> spare = spares[d];
+		if (spare != null && spare.reset())
+			return spare;
+		return spares[d] = newBuilder();
+	}
+
+	private void push(BSONDocumentBuilder<?> builder, String key, byte kind,
+			Projection proj, String code, int end) {
+		if (depth == builders.length) {
+			final int n = depth * 2;
+			builders = Arrays.copyOf(builders, n);
+			keys = Arrays.copyOf(keys, n);
+			kinds = Arrays.copyOf(kinds, n);
+			projections = Arrays.copyOf(projections, n);
+			codes = Arrays.copyOf(codes, n);
+			ends = Arrays.copyOf(ends, n);
+		}
+		if (counting != null)
+			counting.depth(depth + 1);
+		builders[depth] = builder;
+		keys[depth] = key;
+		kinds[depth] = kind;
+		projections[depth] = proj;
+		codes[depth] = code;
+		ends[depth] = end;
+		depth++;
+	}
+
+	/**
+	 * Validating mode: checks the outermost document's length against the
+	 * limits and the buffer.
+	 */
+	private void checkDocument() {
+		if (len < 5 || len > limits.maxDocumentSize)
+			throw invalid(startPos, "document length " + len
+					+ " is outside 5.." + limits.maxDocumentSize);
+		if (len > buf.limit() - startPos)
+			throw invalid(startPos, "document length " + len + " runs past the "
+					+ (buf.limit() - startPos) + " bytes available");
+		if (buf.get(startPos + len - 1) != BSON.EOO)
+			throw invalid(startPos + len - 1, "document doesn't end in EOO");
+	}
+
+	/**
+	 * Validating mode: checks that the element at pos, in the document at the
+	 * given depth, fits within that document and the limits. Reads only the
+	 * type, the name and the length prefixes; parseEntry can then trust
+	 * them.
+	 */
+	private void checkElement(int top) {
+		final int end = ends[top];
+		if (pos >= end)
+			throw invalid(pos, "no EOO before the document's end at " + end);
+		final byte type = buf.get(pos);
+		if (type == BSON.EOO) {
+			if (pos + 1 != end)
+				throw invalid(pos, "EOO before the document's end at " + end);
+			return;
+		}
+		final int nameSize = buf.sizeCString(pos + 1, end);
+		if (nameSize < 0)
+			throw invalid(pos + 1, "field name runs past the document's end");
+		final int v = pos + 1 + nameSize;
+		final int room = end - v;
+		int size;
+		switch (type) {
+		case BSON.STRING:
+		case BSON.JSCODE:
+		case BSON.SYMBOL:
+			size = 4 + checkString(v, room - 4);
+			break;
+		case BSON.DOCUMENT:
+		case BSON.ARRAY:
+			size = checkEmbedded(v, room);
+			break;
+		case BSON.JSCODE_W_SCOPE:
+			size = checkLength(v, room - 4, 4 + 5 + 5, room, "code with scope");
+			final int code = checkString(v + 4, size - 8 - 5);
+			final int scope = checkEmbedded(v + 8 + code, size - 8 - code);
+			if (8 + code + scope != size)
+				throw invalid(v, "code with scope length " + size
+						+ " doesn't match its contents");
+			break;
+		case BSON.BINARY:
+			size = 5 + checkLength(v, room - 5, 0, room - 5, "binary");
+			if (size - 5 > limits.maxBinaryLength)
+				throw invalid(v, "binary length " + (size - 5)
+						+ " exceeds the limit of " + limits.maxBinaryLength);
+			if (buf.get(v + 4) == BSON.BINARY_OLD
+					&& checkLength(v + 5, size - 9, 0, size - 9, "binary") != size - 9)
+				throw invalid(v + 5, "old binary length doesn't match");
+			break;
+		case BSON.REGEX:
+			final int pSz = buf.sizeCString(v, end);
+			size = pSz < 0 ? -1 : buf.sizeCString(v + pSz, end);
+			if (size < 0)
+				throw invalid(v, "regex runs past the document's end");
+			size += pSz;
+			break;
+		case BSON.DBREF:
+			size = 4 + checkString(v, room - 4 - 12) + 12;
+			break;
+		case BSON.NULL:
+		case BSON.UNDEF:
+		case BSON.MIN_KEY:
+		case BSON.MAX_KEY:
+		case BSON.BOOLEAN:
+		case BSON.INT32:
+		case BSON.DOUBLE:
+		case BSON.UTC_DATETIME:
+		case BSON.INT64:
+		case BSON.TIMESTAMP:
+		case BSON.OBJECTID:
+			size = buf.sizeValue(type, v);
+			break;
+		default:
+			throw invalid(pos, "unknown BSON type " + type);
+		}
+		if (size > room)
+			throw invalid(v, "value of " + size + " bytes runs past the document's end");
+	}
+
+	/**
+	 * @return the length of the string at v, after checking it is NUL
+	 *         terminated and no longer than room or the limit
+	 */
+	private int checkString(int v, int room) {
+		final int l = checkLength(v, room, 1, room, "string");
+		if (l - 1 > limits.maxStringLength)
+			throw invalid(v, "string length " + (l - 1)
+					+ " exceeds the limit of " + limits.maxStringLength);
+		if (buf.get(v + 4 + l - 1) != 0)
+			throw invalid(v + 4 + l - 1, "string isn't NUL terminated");
+		return l;
+	}
+
+	/**
+	 * @return the length of the document or array at v, after checking it
+	 *         against room and the depth limit
+	 */
+	private int checkEmbedded(int v, int room) {
+		if (depth >= limits.maxDepth)
+			throw invalid(v, "nested deeper than " + limits.maxDepth);
+		final int l = checkLength(v, room - 4, 5, room, "document");
+		if (buf.get(v + l - 1) != BSON.EOO)
+			throw invalid(v + l - 1, "document doesn't end in EOO");
+		return l;
+	}
+
+	/**
+	 * Reads the int32 length prefix at v, unless room (what's left of the
+	 * document after the prefix) says it isn't all there, and checks it is
+	 * within min..max.
+	 */
+	private int checkLength(int v, int room, int min, int max, String what) {
+		if (room < 0)
+			throw invalid(v, what + " length runs past the document's end");
+		final int l = buf.getInt(v);
+		if (l < min || l > max)
+			throw invalid(v, what + " length " + l + " is outside " + min
+					+ ".." + max);
+		return l;
+	}
+
+	private BSONException invalid(int offset, String msg) {
+		return new BSONException("Invalid BSON at offset " + offset + ": " + msg);
+	}
+
+	/**
+	 * Closes the innermost document, handing it to the builder of the one
+	 * around it. The outermost is left in its builder, b.
+	 */
+	@SuppressWarnings("unchecked")
+	private void pop() {
+		final int d = --depth;
+		final BSONDocumentBuilder<?> done = builders[d];
+		builders[d] = null;
+		projections[d] = null;
+		if (d == 0)
+			return;
+		switch (kinds[d]) {
+		case BSON.ARRAY:
+			builders[d - 1].putList(keys[d], done.result());
+			break;
+		case BSON.JSCODE_W_SCOPE:
+			putScopedCode(d - 1, keys[d], codes[d], (T) done.result());
+			codes[d] = null;
+			break;
+		default:
+			putDocument(d - 1, keys[d], (T) done.result());
+		}
+	}
+
+	/**
+	 * Documents within arrays go to the list builder's put; only document
+	 * builders know about T.
+	 */
+	@SuppressWarnings("unchecked")
+	private void putDocument(int d, String key, T doc) {
+		if (kinds[d] == BSON.ARRAY)
+			builders[d].put(key, doc);
+		else
+			((BSONDocumentBuilder<T>) builders[d]).putDocument(key, doc);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void putScopedCode(int d, String key, String code, T scope) {
+		if (kinds[d] == BSON.ARRAY)
+			builders[d].put(key, new CodeWScope<T>(code, scope));
+		else
+			((BSONDocumentBuilder<T>) builders[d]).putScopedCode(key, code, scope);
+	}
+
+
+	public T result() {
+		if (!parsed)
+			parse();
+
+		return b.result();
 	}
-	
-	public abstract BSONReader<T> newDocumentParser(ByteBuffer tBuf);
 
 	protected BSONDocumentBuilder<T> b;
-	protected final int len;
-	protected final int startPos;
-	protected final AtomicInteger pos;
-	protected final BSONByteBuffer buf;
+	protected int len;
+	protected int startPos;
+	/**
+	 * Read cursor. Readers are confined to a single thread, so this is a plain
+	 * int rather than anything atomic.
+	 */
+	protected int pos;
+	protected BSONByteBuffer buf;
 	protected boolean parsed = false;
+	protected FieldNameCache names = FieldNameCache.getDefault();
+	protected Projection projection;
+	protected boolean compactArrays = false;
+	protected BSONLimits limits;
+	protected boolean rawEmbedded = false;
+	protected boolean copyBinary = true;
+	protected DecodeListener listener;
+
+	/**
+	 * The stats of the document being decoded, while there is a listener to
+	 * report them to; null otherwise, which the per element checks test.
+	 */
+	private DecodeStats counting;
+	private DecodeStats stats;
+	private static volatile DecodeListener defaultListener;
+
+	/*
+	 * Stack of the documents being decoded, outermost first: each one's
+	 * builder, its key in the document around it, its kind (DOCUMENT, ARRAY,
+	 * or JSCODE_W_SCOPE for a scope, whose code is kept alongside) and the
+	 * projection applying within it, and the offset it ends at.
+	 */
+	private BSONDocumentBuilder<?>[] builders = new BSONDocumentBuilder<?>[8];
+	private String[] keys = new String[8];
+	private byte[] kinds = new byte[8];
+	private Projection[] projections = new Projection[8];
+	private String[] codes = new String[8];
+	private int[] ends = new int[8];
+	private int depth = 0;
+	private BSONDocumentBuilder<?>[] spares = new BSONDocumentBuilder<?>[8];
 	
+	/**
+	 * Per field tracing, for debugging the reader itself. Off unless the
+	 * DEBUG.BSONREADER system property is set to true; when off the JIT drops
+	 * the trace code from the hot loop altogether.
+	 */
+	protected static final boolean TRACE = Boolean.getBoolean("DEBUG.BSONREADER");
+
 	protected static final Logger log = Logger.getLogger("BSONReader");
 }
@@ -0,0 +1,514 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.doc.RawBSONDocument;
+import net.evilmonkeylabs.mag7.bson.io.BSONException;
+import net.evilmonkeylabs.mag7.bson.types.BSONTimestamp;
+import net.evilmonkeylabs.mag7.bson.types.Binary;
+import net.evilmonkeylabs.mag7.bson.types.Code;
+import net.evilmonkeylabs.mag7.bson.types.CodeWScope;
+import net.evilmonkeylabs.mag7.bson.types.MD5;
+import net.evilmonkeylabs.mag7.bson.types.ObjectID;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Streaming BSON encoder; the mirror image of {@link BSONReader}.
+ *
+ * Writes straight into the supplied buffer, starting at its current position.
+ * Document, array and string lengths are written as placeholders and patched
+ * once the value is complete, so no temporary arrays are built. Nothing is
+ * flushed or copied; when done the buffer's position sits just past the last
+ * byte written.
+ *
+ * Documents can be written in one go with {@link #putDocument(Map)}, or piece
+ * by piece:
+ *
+ * <pre>
+ * w.startDocument();
+ * w.putInteger("x", 1);
+ * w.startArray("tags");
+ * w.putString("0", "foo");
+ * w.end();
+ * w.end();
+ * </pre>
+ *
+ * Running out of room in the buffer raises a BufferOverflowException; the
+ * buffer contents are then undefined.
+ *
+ * Numbers are always written little endian; the buffer's own byte order is
+ * left as the caller set it.
+ */
+public class BSONWriter {
+
+	public BSONWriter(final ByteBuffer _buf) {
+		buf = _buf;
+		swap = buf.order() != ByteOrder.LITTLE_ENDIAN;
+	}
+
+	/**
+	 * Writes a whole document.
+	 *
+	 * @param doc
+	 *            the fields to write, in iteration order
+	 * @return the encoded size of the document
+	 */
+	public int putDocument(Map<String, ?> doc) {
+		final int start = buf.position();
+		startDocument();
+		for (Map.Entry<String, ?> e : doc.entrySet())
+			put(e.getKey(), e.getValue());
+		end();
+		return buf.position() - start;
+	}
+
+	/**
+	 * Writes an already encoded document with a single bulk copy.
+	 *
+	 * @return the encoded size of the document
+	 */
+	public int putDocument(RawBSONDocument doc) {
+		buf.put(doc.getBuffer());
+		return doc.size();
+	}
+
+	/**
+	 * Opens a top level document. Must be balanced with a call to
+	 * {@link #end()}.
+	 */
+	public void startDocument() {
+		open();
+	}
+
+	/**
+	 * Opens an embedded document. Must be balanced with a call to
+	 * {@link #end()}.
+	 */
+	public void startDocument(String key) {
+		putHeader(BSON.DOCUMENT, key);
+		open();
+	}
+
+	/**
+	 * Opens an embedded array. Elements are expected to be keyed "0", "1",
+	 * etc. Must be balanced with a call to {@link #end()}.
+	 */
+	public void startArray(String key) {
+		putHeader(BSON.ARRAY, key);
+		open();
+	}
+
+	/**
+	 * Closes the innermost open document or array, filling in its length.
+	 */
+	public void end() {
+		if (depth == 0)
+			throw new BSONException("No open document to end");
+		buf.put(BSON.EOO);
+		final int start = lenStack[--depth];
+		putIntLE(start, buf.position() - start);
+	}
+
+	/**
+	 * The core "default" method, which works out the BSON type from the class
+	 * of the value. The specific put methods below skip the type tests.
+	 *
+	 * @param key
+	 *            A string representing the field name
+	 * @param value
+	 *            A java object representing the field's value
+	 */
+	@SuppressWarnings("unchecked")
+	public void put(String key, Object value) {
+		if (value == null)
+			putNull(key);
+		else if (value instanceof String)
+			putString(key, (String) value);
+		else if (value instanceof Integer || value instanceof Short
+				|| value instanceof Byte)
+			putInteger(key, ((Number) value).intValue());
+		else if (value instanceof Long)
+			putLong(key, (Long) value);
+		else if (value instanceof Double || value instanceof Float)
+			putDouble(key, ((Number) value).doubleValue());
+		else if (value instanceof Boolean)
+			putBoolean(key, (Boolean) value);
+		else if (value instanceof ObjectID)
+			putObjectID(key, (ObjectID) value);
+		else if (value instanceof RawBSONDocument)
+			putDocument(key, (RawBSONDocument) value);
+		else if (value instanceof Map)
+			putDocument(key, (Map<String, ?>) value);
+		else if (value instanceof Iterable)
+			putList(key, (Iterable<?>) value);
+		else if (value instanceof Object[])
+			putList(key, (Object[]) value);
+		else if (value instanceof Date)
+			putDateTime(key, ((Date) value).getTime());
+		else if (value instanceof byte[])
+			putBinary(key, ByteBuffer.wrap((byte[]) value), BSON.BINARY_GENERIC);
+		else if (value instanceof ByteBuffer)
+			putBinary(key, (ByteBuffer) value, BSON.BINARY_GENERIC);
+		else if (value instanceof Binary) {
+			final Binary bin = (Binary) value;
+			putBinary(key, bin.getData(), bin.getSubType());
+		} else if (value instanceof UUID)
+			putUUID(key, (UUID) value);
+		else if (value instanceof MD5)
+			putMD5(key, (MD5) value);
+		else if (value instanceof Pattern) {
+			final Pattern p = (Pattern) value;
+			putRegex(key, p.pattern(), BSON.regexFlags(p.flags()));
+		} else if (value instanceof CodeWScope) {
+			final CodeWScope<?> c = (CodeWScope<?>) value;
+			if (!(c.getScope() instanceof Map))
+				throw new BSONException("Can't serialize a scope of type "
+						+ c.getScope().getClass().getName());
+			putScopedCode(key, c.getCode(), (Map<String, ?>) c.getScope());
+		} else if (value instanceof Code)
+			putCode(key, ((Code) value).getCode());
+		else if (value instanceof BSONTimestamp) {
+			final BSONTimestamp ts = (BSONTimestamp) value;
+			putTimestamp(key, ts.getTime(), ts.getInc());
+		} else if (value instanceof BSON.MinKey)
+			putMinKey(key);
+		else if (value instanceof BSON.MaxKey)
+			putMaxKey(key);
+		else
+			throw new BSONException("Can't serialize a value of type "
+					+ value.getClass().getName());
+	}
+
+	public void putNull(String key) {
+		putHeader(BSON.NULL, key);
+	}
+
+	public void putDouble(String key, double dbl) {
+		putHeader(BSON.DOUBLE, key);
+		putLongLE(Double.doubleToRawLongBits(dbl));
+	}
+
+	public void putString(String key, String str) {
+		putHeader(BSON.STRING, key);
+		putUTF8String(str);
+	}
+
+	public void putDocument(String key, Map<String, ?> subDoc) {
+		startDocument(key);
+		for (Map.Entry<String, ?> e : subDoc.entrySet())
+			put(e.getKey(), e.getValue());
+		end();
+	}
+
+	/**
+	 * Embeds an already encoded document or array with a single bulk copy.
+	 */
+	public void putDocument(String key, RawBSONDocument doc) {
+		putHeader(doc.isArray() ? BSON.ARRAY : BSON.DOCUMENT, key);
+		buf.put(doc.getBuffer());
+	}
+
+	public void putList(String key, Iterable<?> list) {
+		startArray(key);
+		int i = 0;
+		for (Object o : list)
+			putElement(i++, o);
+		end();
+	}
+
+	public void putList(String key, Object[] list) {
+		startArray(key);
+		for (int i = 0; i < list.length; i++)
+			putElement(i, list[i]);
+		end();
+	}
+
+	public void putObjectID(String key, ObjectID oid) {
+		putObjectID(key, oid._time(), oid._machine(), oid._inc());
+	}
+
+	public void putObjectID(String key, int time, int machine, int inc) {
+		putHeader(BSON.OBJECTID, key);
+		// OIDs are stored as Big Endian
+		putIntLE(Integer.reverseBytes(time));
+		putIntLE(Integer.reverseBytes(machine));
+		putIntLE(Integer.reverseBytes(inc));
+	}
+
+	public void putBoolean(String key, boolean bool) {
+		putHeader(BSON.BOOLEAN, key);
+		buf.put(bool ? (byte) 0x01 : (byte) 0x00);
+	}
+
+	/**
+	 * @param tsp
+	 *            milliseconds since the Unix Epoch
+	 */
+	public void putDateTime(String key, long tsp) {
+		putHeader(BSON.UTC_DATETIME, key);
+		putLongLE(tsp);
+	}
+
+	/**
+	 * @param flags
+	 *            BSON regex flags, in alphabetical order. See BSON.regexFlags
+	 */
+	public void putRegex(String key, String pattern, String flags) {
+		putHeader(BSON.REGEX, key);
+		putCString(pattern);
+		putCString(flags);
+	}
+
+	public void putCode(String key, String jsCode) {
+		putHeader(BSON.JSCODE, key);
+		putUTF8String(jsCode);
+	}
+
+	public void putScopedCode(String key, String jsCode, Map<String, ?> scope) {
+		putHeader(BSON.JSCODE_W_SCOPE, key);
+		final int start = buf.position();
+		buf.putInt(0);
+		putUTF8String(jsCode);
+		putDocument(scope);
+		putIntLE(start, buf.position() - start);
+	}
+
+	public void putSymbol(String key, String symbol) {
+		putHeader(BSON.SYMBOL, key);
+		putUTF8String(symbol);
+	}
+
+	public void putInteger(String key, int int32) {
+		putHeader(BSON.INT32, key);
+		putIntLE(int32);
+	}
+
+	public void putLong(String key, long int64) {
+		putHeader(BSON.INT64, key);
+		putLongLE(int64);
+	}
+
+	/**
+	 * Writes a BSON Timestamp (the sharding / replication type, not a
+	 * DateTime).
+	 *
+	 * @param time
+	 *            seconds since the Unix Epoch
+	 * @param inc
+	 *            ordinal within the second
+	 */
+	public void putTimestamp(String key, int time, int inc) {
+		putHeader(BSON.TIMESTAMP, key);
+		putIntLE(inc);
+		putIntLE(time);
+	}
+
+	public void putMinKey(String key) {
+		putHeader(BSON.MIN_KEY, key);
+	}
+
+	public void putMaxKey(String key) {
+		putHeader(BSON.MAX_KEY, key);
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer as binary data, without changing
+	 * the buffer's position. "Old" style binary gets its extra inner length
+	 * header added here.
+	 *
+	 * @param bytes
+	 *            the bytes representing the binary data.
+	 * @param subType
+	 *            the binary Subtype from the BSON Spec
+	 */
+	public void putBinary(String key, ByteBuffer bytes, byte subType) {
+		putHeader(BSON.BINARY, key);
+		final int len = bytes.remaining();
+		if (subType == BSON.BINARY_OLD) {
+			putIntLE(len + 4);
+			buf.put(subType);
+			putIntLE(len);
+		} else {
+			putIntLE(len);
+			buf.put(subType);
+		}
+		buf.put(bytes.duplicate());
+	}
+
+	/**
+	 * Writes a UUID as Binary subtype 0x04, big endian.
+	 */
+	public void putUUID(String key, UUID uuid) {
+		putHeader(BSON.BINARY, key);
+		putIntLE(16);
+		buf.put(BSON.BINARY_UUID);
+		putLongLE(Long.reverseBytes(uuid.getMostSignificantBits()));
+		putLongLE(Long.reverseBytes(uuid.getLeastSignificantBits()));
+	}
+
+	public void putMD5(String key, MD5 md5) {
+		putHeader(BSON.BINARY, key);
+		putIntLE(16);
+		buf.put(BSON.BINARY_MD5);
+		putLongLE(Long.reverseBytes(md5.getHigh()));
+		putLongLE(Long.reverseBytes(md5.getLow()));
+	}
+
+	/**
+	 * @return the buffer being written to
+	 */
+	public ByteBuffer buffer() {
+		return buf;
+	}
+
+	/**
+	 * @return the number of documents and arrays currently open
+	 */
+	public int depth() {
+		return depth;
+	}
+
+	private void open() {
+		if (depth == lenStack.length) {
+			final int[] grown = new int[depth * 2];
+			System.arraycopy(lenStack, 0, grown, 0, depth);
+			lenStack = grown;
+		}
+		lenStack[depth++] = buf.position();
+		buf.putInt(0);
+	}
+
+	/**
+	 * Writes an array element; the header writes its index as the key
+	 * without building a String.
+	 */
+	private void putElement(int index, Object value) {
+		elementIndex = index;
+		try {
+			put(null, value);
+		} finally {
+			// don't leave the index behind for a later null key if put threw
+			elementIndex = -1;
+		}
+	}
+
+	private void putIndex(int index) {
+		int div = 1;
+		while (index / div >= 10)
+			div *= 10;
+		for (; div > 0; div /= 10)
+			buf.put((byte) ('0' + (index / div) % 10));
+	}
+
+	/**
+	 * Writes the type byte and field name. A null key means an array element,
+	 * keyed by the index set in putElement.
+	 */
+	private void putHeader(byte type, String key) {
+		buf.put(type);
+		if (key == null) {
+			if (elementIndex < 0)
+				throw new BSONException("Field names may not be null");
+			putIndex(elementIndex);
+			elementIndex = -1;
+			buf.put(BSON.EOO);
+		} else {
+			putCString(key);
+		}
+	}
+
+	/**
+	 * Writes a bare cstring: the string as UTF-8, then a NUL. For field names
+	 * and the cstrings of wire protocol messages.
+	 * 
+	 * @throws BSONException
+	 *             if the string contains a NUL
+	 */
+	public void putCString(String str) {
+		if (str.indexOf('\0') >= 0)
+			throw new BSONException("BSON cstrings may not contain NUL: '"
+					+ str + "'");
+		putUTF8(str);
+		buf.put(BSON.EOO);
+	}
+
+	private void putUTF8String(String str) {
+		final int start = buf.position();
+		buf.putInt(0);
+		putUTF8(str);
+		buf.put(BSON.EOO);
+		// length covers the bytes and the trailing NUL, but not itself
+		putIntLE(start, buf.position() - start - 4);
+	}
+
+	/**
+	 * Encodes a String as UTF-8 directly into the buffer. ASCII goes straight
+	 * through a byte at a time. Unpaired surrogates can't be encoded and are
+	 * written as U+FFFD, the replacement character.
+	 */
+	private void putUTF8(String str) {
+		final int n = str.length();
+		for (int i = 0; i < n; i++) {
+			final char c = str.charAt(i);
+			if (c < 0x80) {
+				buf.put((byte) c);
+			} else if (c < 0x800) {
+				buf.put((byte) (0xc0 | (c >> 6)));
+				buf.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n
+					&& Character.isLowSurrogate(str.charAt(i + 1))) {
+				final int cp = Character.toCodePoint(c, str.charAt(++i));
+				buf.put((byte) (0xf0 | (cp >> 18)));
+				buf.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				buf.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				buf.put((byte) (0x80 | (cp & 0x3f)));
+			} else if (Character.isSurrogate(c)) {
+				buf.put((byte) 0xef);
+				buf.put((byte) 0xbf);
+				buf.put((byte) 0xbd);
+			} else {
+				buf.put((byte) (0xe0 | (c >> 12)));
+				buf.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				buf.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	private void putIntLE(final int x) {
+		buf.putInt(swap ? Integer.reverseBytes(x) : x);
+	}
+
+	private void putIntLE(final int index, final int x) {
+		buf.putInt(index, swap ? Integer.reverseBytes(x) : x);
+	}
+
+	private void putLongLE(final long x) {
+		buf.putLong(swap ? Long.reverseBytes(x) : x);
+	}
+
+	protected final ByteBuffer buf;
+	private final boolean swap;
+	private int[] lenStack = new int[8];
+	private int depth = 0;
+	private int elementIndex = -1;
+}
@@ -0,0 +1,43 @@
+package net.evilmonkeylabs.mag7.bson;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Told about every document a reader decodes, for instrumentation. Set on one
+ * reader with {@link BSONReader#setDecodeListener(DecodeListener)}, or on all
+ * of them with {@link BSONReader#setDefaultDecodeListener(DecodeListener)}.
+ * {@link DecodeMetrics} gathers the stats for JMX.
+ *
+ * Called on the decoding thread once each document is done, so
+ * implementations shared between readers must be thread safe, and should be
+ * quick.
+ *
+ * Only documents a BSONReader decodes in full, from result(), are reported.
+ * That includes the per thread parsers behind
+ * {@link DefaultBSONDocParser#decode(java.nio.ByteBuffer)}, BSONBatchDecoder
+ * and Reply, which only ever report to the default listener.
+ * LazyBSONDocParser, BSONEventReader and BSONPath decode nothing up front and
+ * report nothing.
+ */
+public interface DecodeListener {
+
+	/**
+	 * @param stats
+	 *            the document's stats, only good until this returns
+	 */
+	void documentDecoded(DecodeStats stats);
+}
@@ -0,0 +1,262 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.util.StripedCounters;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * A {@link DecodeListener} which totals up what the readers it listens to
+ * decode: documents, bytes and fields by type, the deepest nesting and the
+ * longest string and binary seen, and a histogram of decode times in power of
+ * two buckets. Totals go into {@link StripedCounters}, so any number of
+ * decoding threads can share one DecodeMetrics without contending; reading
+ * the totals sums the stripes, so is the expensive side.
+ *
+ * register() publishes the totals over JMX, as an MXBean.
+ *
+ * Lazy, event and path decodes aren't counted; see {@link DecodeListener} for
+ * which are.
+ */
+public class DecodeMetrics implements DecodeListener, DecodeMetricsMXBean {
+
+	/**
+	 * Totals everything a reader decodes from now on, on any thread:
+	 *
+	 * <pre>
+	 * DecodeMetrics m = new DecodeMetrics();
+	 * m.register(&quot;reads&quot;);
+	 * BSONReader.setDefaultDecodeListener(m);
+	 * </pre>
+	 */
+	public DecodeMetrics() {
+	}
+
+	@Override
+	public void documentDecoded(DecodeStats stats) {
+		final int s = counters.stripe();
+		counters.add(s, DOCUMENTS, 1);
+		counters.add(s, BYTES, stats.getBytes());
+		counters.add(s, NANOS, stats.getNanos());
+		counters.add(s, LATENCY + bucket(stats.getNanos()), 1);
+		for (int t = 0; t < DecodeStats.TYPES; t++) {
+			final int n = stats.fieldCount(t);
+			if (n != 0)
+				counters.add(s, FIELDS + t, n);
+		}
+		max(maxDepth, stats.getMaxDepth());
+		max(maxString, stats.getMaxStringLength());
+		max(maxBinary, stats.getMaxBinaryLength());
+	}
+
+	/**
+	 * Registers with the platform MBean server.
+	 *
+	 * @param name
+	 *            distinguishes this from any other DecodeMetrics registered
+	 * @return the name registered under
+	 */
+	public ObjectName register(String name) throws JMException {
+		final ObjectName on = new ObjectName(DOMAIN + ",name="
+				+ ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+		registered = on;
+		return on;
+	}
+
+	/**
+	 * Unregisters from the platform MBean server, if registered.
+	 */
+	public void unregister() throws JMException {
+		final ObjectName on = registered;
+		if (on == null)
+			return;
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(on))
+			server.unregisterMBean(on);
+		registered = null;
+	}
+
+	@Override
+	public long getDocuments() {
+		return counters.get(DOCUMENTS);
+	}
+
+	@Override
+	public long getBytes() {
+		return counters.get(BYTES);
+	}
+
+	@Override
+	public long getFields() {
+		long n = 0;
+		for (int t = 0; t < DecodeStats.TYPES; t++)
+			n += counters.get(FIELDS + t);
+		return n;
+	}
+
+	/**
+	 * @return fields decoded of a BSON type, e.g. BSON.STRING
+	 */
+	public long getFieldCount(byte type) {
+		return counters.get(FIELDS + DecodeStats.typeIndex(type));
+	}
+
+	@Override
+	public Map<String, Long> getFieldCounts() {
+		final Map<String, Long> m = new LinkedHashMap<String, Long>();
+		for (int t = 0; t < DecodeStats.TYPES; t++) {
+			final long n = counters.get(FIELDS + t);
+			if (n != 0)
+				m.put(DecodeStats.typeName(t), n);
+		}
+		return m;
+	}
+
+	@Override
+	public int getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	@Override
+	public int getMaxStringLength() {
+		return maxString.get();
+	}
+
+	@Override
+	public int getMaxBinaryLength() {
+		return maxBinary.get();
+	}
+
+	@Override
+	public long getTotalNanos() {
+		return counters.get(NANOS);
+	}
+
+	@Override
+	public double getMeanNanos() {
+		final long docs = getDocuments();
+		return docs == 0 ? 0 : (double) getTotalNanos() / docs;
+	}
+
+	@Override
+	public long[] getLatencyHistogram() {
+		final long[] h = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			h[i] = counters.get(LATENCY + i);
+		return h;
+	}
+
+	@Override
+	public long getLatencyP50Nanos() {
+		return percentile(0.5);
+	}
+
+	@Override
+	public long getLatencyP99Nanos() {
+		return percentile(0.99);
+	}
+
+	@Override
+	public long getLatencyP999Nanos() {
+		return percentile(0.999);
+	}
+
+	/**
+	 * @param p
+	 *            from 0 to 1
+	 * @return the upper bound, in nanoseconds, of the histogram bucket holding
+	 *         the p'th decode time, or 0 if nothing has been decoded
+	 */
+	public long percentile(double p) {
+		final long[] h = getLatencyHistogram();
+		long total = 0;
+		for (long n : h)
+			total += n;
+		if (total == 0)
+			return 0;
+		final long rank = (long) Math.ceil(p * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += h[i];
+			if (seen >= rank)
+				return i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE
+						: (1L << i) - 1;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Zeroes the totals. Documents being decoded meanwhile may be partly
+	 * counted.
+	 */
+	@Override
+	public void reset() {
+		counters.reset();
+		maxDepth.set(0);
+		maxString.set(0);
+		maxBinary.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "DecodeMetrics{documents=" + getDocuments() + ", bytes="
+				+ getBytes() + ", meanNanos=" + getMeanNanos() + "}";
+	}
+
+	/**
+	 * @return the histogram bucket for a time: 0 for 0ns, otherwise one more
+	 *         than the index of its highest set bit
+	 */
+	static int bucket(long nanos) {
+		return nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	/**
+	 * Raises a maximum; only writes, and so only contends, on a new high.
+	 */
+	private static void max(AtomicInteger m, int v) {
+		int cur;
+		while (v > (cur = m.get()) && !m.compareAndSet(cur, v))
+			;
+	}
+
+	private static final String DOMAIN = "net.evilmonkeylabs.mag7:type=DecodeMetrics";
+
+	/* Counter indexes. */
+	private static final int DOCUMENTS = 0;
+	private static final int BYTES = 1;
+	private static final int NANOS = 2;
+	private static final int FIELDS = 3;
+	private static final int LATENCY = FIELDS + DecodeStats.TYPES;
+	private static final int BUCKETS = 64;
+
+	private final StripedCounters counters = new StripedCounters(LATENCY
+			+ BUCKETS);
+	private final AtomicInteger maxDepth = new AtomicInteger();
+	private final AtomicInteger maxString = new AtomicInteger();
+	private final AtomicInteger maxBinary = new AtomicInteger();
+	private volatile ObjectName registered;
+}
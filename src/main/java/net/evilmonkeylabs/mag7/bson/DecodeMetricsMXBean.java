@@ -0,0 +1,64 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import java.util.Map;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * The JMX view of {@link DecodeMetrics}.
+ */
+public interface DecodeMetricsMXBean {
+
+	long getDocuments();
+
+	long getBytes();
+
+	long getFields();
+
+	/**
+	 * @return fields decoded, by type name, for the types seen
+	 */
+	Map<String, Long> getFieldCounts();
+
+	int getMaxDepth();
+
+	int getMaxStringLength();
+
+	int getMaxBinaryLength();
+
+	long getTotalNanos();
+
+	double getMeanNanos();
+
+	/**
+	 * @return documents by decode time: element i counts those taking from
+	 *         2^(i-1) up to 2^i nanoseconds, element 0 those taking none
+	 */
+	long[] getLatencyHistogram();
+
+	/**
+	 * @return the upper bound, in nanoseconds, of the histogram bucket
+	 *         holding the median
+	 */
+	long getLatencyP50Nanos();
+
+	long getLatencyP99Nanos();
+
+	long getLatencyP999Nanos();
+
+	void reset();
+}
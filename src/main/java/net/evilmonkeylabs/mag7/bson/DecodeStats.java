@@ -0,0 +1,170 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import java.util.Arrays;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * What a reader saw while decoding one document, handed to its
+ * {@link DecodeListener}. Each reader has one, refilled for every document, so
+ * a listener must read what it wants before returning rather than keep it.
+ *
+ * Fields are counted at every depth, but not those a projection skipped, nor
+ * inside documents kept raw or decoded lazily.
+ */
+public final class DecodeStats {
+
+	/** Number of type indexes; see {@link #typeIndex(byte)}. */
+	public static final int TYPES = 21;
+
+	DecodeStats() {
+	}
+
+	/**
+	 * @return the encoded size of the document
+	 */
+	public int getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the number of fields and array elements decoded, of all types
+	 */
+	public int getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return the number of fields of a BSON type, e.g. BSON.STRING
+	 */
+	public int getFieldCount(byte type) {
+		return types[typeIndex(type)];
+	}
+
+	/**
+	 * @return the depth of the most deeply nested document or array, the
+	 *         document itself being at depth 1
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return the length in bytes of the longest string, or 0 if none
+	 */
+	public int getMaxStringLength() {
+		return maxString;
+	}
+
+	/**
+	 * @return the length of the longest binary, or 0 if none
+	 */
+	public int getMaxBinaryLength() {
+		return maxBinary;
+	}
+
+	/**
+	 * @return the time taken to decode the document, in nanoseconds
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Maps a BSON type to an index from 0 to TYPES - 1: the types from DOUBLE
+	 * to INT64 by their own value, MIN_KEY and MAX_KEY after them, and 0 for
+	 * anything unknown.
+	 */
+	public static int typeIndex(byte type) {
+		if (type > 0 && type <= BSON.INT64)
+			return type;
+		if (type == BSON.MIN_KEY)
+			return 19;
+		if (type == BSON.MAX_KEY)
+			return 20;
+		return 0;
+	}
+
+	/**
+	 * @return a name for the type at an index from {@link #typeIndex(byte)}
+	 */
+	public static String typeName(int index) {
+		return TYPE_NAMES[index];
+	}
+
+	/**
+	 * @return the number of fields of the type at an index from
+	 *         {@link #typeIndex(byte)}
+	 */
+	int fieldCount(int index) {
+		return types[index];
+	}
+
+	void reset() {
+		Arrays.fill(types, 0);
+		fields = 0;
+		maxDepth = 0;
+		maxString = 0;
+		maxBinary = 0;
+	}
+
+	void field(byte type) {
+		types[typeIndex(type)]++;
+		fields++;
+	}
+
+	void depth(int d) {
+		if (d > maxDepth)
+			maxDepth = d;
+	}
+
+	void string(int length) {
+		if (length > maxString)
+			maxString = length;
+	}
+
+	void binary(int length) {
+		if (length > maxBinary)
+			maxBinary = length;
+	}
+
+	void finish(int bytes, long nanos) {
+		this.bytes = bytes;
+		this.nanos = nanos;
+	}
+
+	@Override
+	public String toString() {
+		return "DecodeStats{bytes=" + bytes + ", fields=" + fields
+				+ ", maxDepth=" + maxDepth + ", maxString=" + maxString
+				+ ", maxBinary=" + maxBinary + ", nanos=" + nanos + "}";
+	}
+
+	private static final String[] TYPE_NAMES = { "unknown", "double",
+			"string", "document", "array", "binary", "undefined", "objectId",
+			"boolean", "datetime", "null", "regex", "dbPointer", "javascript",
+			"symbol", "javascriptWithScope", "int32", "timestamp", "int64",
+			"minKey", "maxKey" };
+
+	private final int[] types = new int[TYPES];
+	private int fields;
+	private int maxDepth;
+	private int maxString;
+	private int maxBinary;
+	private int bytes;
+	private long nanos;
+}
@@ -19,7 +19,10 @@ import java.nio.ByteBuffer;
  * License for the specific language governing permissions and limitations under
  * the License.
  */
-// TODO - Make lazy?
+/**
+ * Eagerly decodes every field into a {@link Document}. If only a few fields
+ * are needed, {@link LazyBSONDocParser} decodes them on access instead.
+ */
 public class DefaultBSONDocParser extends BSONReader<Document> {
 
 	/**
@@ -32,14 +35,56 @@ public class DefaultBSONDocParser extends BSONReader<Document> {
 		b = newBuilder();
 	}
 
+	/**
+	 * Creates a parser to be pointed at documents with reset().
+	 */
+	DefaultBSONDocParser() {
+		super();
+		b = newBuilder();
+	}
+
+	/**
+	 * Decodes a document with a parser kept for the calling thread, which is
+	 * reset for each document rather than created anew.
+	 * 
+	 * @param buf
+	 *            a buffer positioned at the start of the document
+	 */
+	public static Document decode(final ByteBuffer buf) {
+		final DefaultBSONDocParser p = LOCAL.get();
+		p.reset(buf);
+		return p.result();
+	}
+
+	/**
+	 * Decodes a possibly untrusted document with the calling thread's parser,
+	 * validating it against limits as it goes: a malformed document, or one
+	 * exceeding the limits, fails with a BSONException.
+	 * 
+	 * @param buf
+	 *            a buffer positioned at the start of the document
+	 */
+	public static Document decode(final ByteBuffer buf, final BSONLimits limits) {
+		final DefaultBSONDocParser p = LOCAL.get();
+		p.setLimits(limits);
+		try {
+			p.reset(buf);
+			return p.result();
+		} finally {
+			p.setLimits(null);
+		}
+	}
+
 	@Override
 	public BSONDocumentBuilder<Document> newBuilder() {
 		return Document.newBuilder();
 	}
 
-	@Override
-	public BSONReader<Document> newDocumentParser(ByteBuffer tBuf) {
-		return new DefaultBSONDocParser(tBuf);
-	}
+	private static final ThreadLocal<DefaultBSONDocParser> LOCAL = new ThreadLocal<DefaultBSONDocParser>() {
+		@Override
+		protected DefaultBSONDocParser initialValue() {
+			return new DefaultBSONDocParser();
+		}
+	};
 
 }
@@ -0,0 +1,110 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.doc.BSONDocumentBuilder;
+import net.evilmonkeylabs.mag7.bson.doc.LazyDocument;
+import java.nio.ByteBuffer;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Produces a {@link LazyDocument} over the original buffer without walking its
+ * fields. Each field is decoded by this parser on access, one entry at a time,
+ * so callers which only look at a handful of fields don't pay for the rest.
+ *
+ * Embedded documents decode to further LazyDocuments; arrays are decoded
+ * eagerly once they are accessed. Projections don't apply, since nothing is
+ * decoded until it is asked for anyway.
+ */
+public class LazyBSONDocParser extends BSONReader<LazyDocument> implements
+		LazyDocument.ValueDecoder {
+
+	/**
+	 * Creates a parser whose result() is a LazyDocument over the document at
+	 * the buffer's position. The buffer must be left alone for as long as the
+	 * document, or anything lazily decoded from it, is in use.
+	 *
+	 * @param _buf
+	 *            a buffer positioned at the start of a valid document
+	 */
+	public LazyBSONDocParser(final ByteBuffer _buf) {
+		super(_buf);
+		b = newBuilder();
+	}
+
+	/**
+	 * Not supported: the LazyDocuments already handed out keep reading through
+	 * this parser and its buffer.
+	 */
+	@Override
+	public void reset(final ByteBuffer _buf) {
+		throw new UnsupportedOperationException(
+				"LazyBSONDocParser can't be reset; its documents still use it");
+	}
+
+	@Override
+	public BSONDocumentBuilder<LazyDocument> newBuilder() {
+		return new ValueBuilder();
+	}
+
+	/**
+	 * Embedded documents become LazyDocuments of their own, decoded by this
+	 * same parser.
+	 */
+	@Override
+	protected LazyDocument embeddedDocument(int offset) {
+		return new LazyDocument(buf, offset, this);
+	}
+
+	/**
+	 * Doesn't parse anything; fields are decoded as they are accessed.
+	 */
+	@Override
+	public LazyDocument result() {
+		return new LazyDocument(buf, startPos, this);
+	}
+
+	@Override
+	public Object decode(int elementOffset) {
+		parseElement(elementOffset, b);
+		return ((ValueBuilder) b).take();
+	}
+
+	/**
+	 * Holds on to the single value produced by a call to parseEntry.
+	 */
+	static class ValueBuilder extends BSONDocumentBuilder<LazyDocument> {
+
+		@Override
+		public void put(String key, Object value) {
+			this.value = value;
+		}
+
+		@Override
+		public LazyDocument result() {
+			throw new UnsupportedOperationException(
+					"ValueBuilder only captures single values");
+		}
+
+		Object take() {
+			final Object v = value;
+			value = null;
+			return v;
+		}
+
+		private Object value;
+	}
+}
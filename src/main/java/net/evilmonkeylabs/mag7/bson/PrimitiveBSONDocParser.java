@@ -0,0 +1,72 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import net.evilmonkeylabs.mag7.bson.doc.BSONDocumentBuilder;
+import net.evilmonkeylabs.mag7.bson.doc.PrimitiveDocument;
+import java.nio.ByteBuffer;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+/**
+ * Decodes into {@link PrimitiveDocument}s, which keep numeric, boolean and
+ * datetime values unboxed. Suits metrics and time series documents which are
+ * mostly numbers.
+ */
+public class PrimitiveBSONDocParser extends BSONReader<PrimitiveDocument> {
+
+	/**
+	 * Expects the first arg to be a valid document
+	 * 
+	 * @param _buf
+	 */
+	PrimitiveBSONDocParser(final ByteBuffer _buf) {
+		super(_buf);
+		b = newBuilder();
+	}
+
+	/**
+	 * Creates a parser to be pointed at documents with reset().
+	 */
+	PrimitiveBSONDocParser() {
+		super();
+		b = newBuilder();
+	}
+
+	/**
+	 * Decodes a document with a parser kept for the calling thread, which is
+	 * reset for each document rather than created anew.
+	 * 
+	 * @param buf
+	 *            a buffer positioned at the start of the document
+	 */
+	public static PrimitiveDocument decode(final ByteBuffer buf) {
+		final PrimitiveBSONDocParser p = LOCAL.get();
+		p.reset(buf);
+		return p.result();
+	}
+
+	@Override
+	public BSONDocumentBuilder<PrimitiveDocument> newBuilder() {
+		return PrimitiveDocument.newBuilder();
+	}
+
+	private static final ThreadLocal<PrimitiveBSONDocParser> LOCAL = new ThreadLocal<PrimitiveBSONDocParser>() {
+		@Override
+		protected PrimitiveBSONDocParser initialValue() {
+			return new PrimitiveBSONDocParser();
+		}
+	};
+
+}
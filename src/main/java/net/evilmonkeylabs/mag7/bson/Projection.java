@@ -0,0 +1,125 @@
+package net.evilmonkeylabs.mag7.bson;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * A set of field paths to decode; everything else is skipped by a
+ * {@link BSONReader} using the value's length, without calling the builder.
+ *
+ * Paths are top level names or dotted paths into embedded documents, e.g.
+ * "_id" or "user.address.zip". A dotted path descends through arrays too, so
+ * "items.sku" keeps just the sku of every document in the items array.
+ * Including a field includes everything beneath it.
+ *
+ * Projections are immutable once built and may be shared between readers and
+ * threads.
+ */
+public class Projection {
+
+	/**
+	 * Builds a projection including the given paths.
+	 *
+	 * @param paths
+	 *            top level or dotted field paths
+	 */
+	public static Projection include(String... paths) {
+		final Projection p = new Projection();
+		for (String path : paths)
+			p.add(path.split("\\."), 0);
+		return p;
+	}
+
+	/**
+	 * Works out what to do with a field.
+	 *
+	 * @param name
+	 *            the field name
+	 * @return null if the field is excluded, {@link #ALL} if it is included
+	 *         entirely, or the projection to apply within it
+	 */
+	public Projection child(String name) {
+		if (elementsOf != null)
+			return elementsOf;
+		return children.get(name);
+	}
+
+	/**
+	 * @return true if everything beneath this point is included
+	 */
+	public boolean includesAll() {
+		return this == ALL;
+	}
+
+	/**
+	 * @return the projection to apply to the elements of an array which this
+	 *         projection applies to
+	 */
+	public Projection forElements() {
+		if (this == ALL || elementsOf != null)
+			return this;
+		return elements;
+	}
+
+	private Projection() {
+		this.children = new HashMap<String, Projection>();
+		this.elementsOf = null;
+		this.elements = new Projection(this);
+	}
+
+	private Projection(Projection elementsOf) {
+		this.children = null;
+		this.elementsOf = elementsOf;
+		this.elements = null;
+	}
+
+	private void add(String[] path, int i) {
+		final String name = path[i];
+		if (i == path.length - 1) {
+			children.put(name, ALL);
+			return;
+		}
+		Projection sub = children.get(name);
+		if (sub == ALL)
+			return;
+		if (sub == null) {
+			sub = new Projection();
+			children.put(name, sub);
+		}
+		sub.add(path, i + 1);
+	}
+
+	@Override
+	public String toString() {
+		if (this == ALL)
+			return "ALL";
+		if (elementsOf != null)
+			return "[" + elementsOf + "]";
+		return children.toString();
+	}
+
+	/**
+	 * Marks a field which is included along with everything beneath it.
+	 */
+	public static final Projection ALL = new Projection();
+
+	private final Map<String, Projection> children;
+	private final Projection elementsOf;
+	private final Projection elements;
+}
@@ -10,6 +10,7 @@ import java.util.regex.Pattern;
 import net.evilmonkeylabs.mag7.bson.BSON;
 import net.evilmonkeylabs.mag7.bson.io.BSONByteBuffer;
 import net.evilmonkeylabs.mag7.bson.types.BSONTimestamp;
+import net.evilmonkeylabs.mag7.bson.types.Binary;
 import net.evilmonkeylabs.mag7.bson.types.Code;
 import net.evilmonkeylabs.mag7.bson.types.CodeWScope;
 import net.evilmonkeylabs.mag7.bson.types.MD5;
@@ -31,6 +32,14 @@ import net.evilmonkeylabs.mag7.bson.types.ObjectID;
  * the License.
  */
 
+/**
+ * Receives the fields of a document from a reader, one callback per field.
+ * 
+ * Every typed callback funnels into {@link #put(String, Object)} by default,
+ * which means the primitive ones (putInteger, putLong, putDouble, putBoolTrue,
+ * putBoolFalse and putDateTime) box. Builders which want their numbers
+ * unboxed should override those; see PrimitiveDocument.
+ */
 public abstract class BSONDocumentBuilder<T> {
 	/**
 	 * The core "default" method. If any special conversions are called like
@@ -55,6 +64,18 @@ public abstract class BSONDocumentBuilder<T> {
 	 */
 	public abstract T result();
 
+	/**
+	 * Starts the builder on a fresh T, so that a reader can reuse it for its
+	 * next document. The T from the last result() must be left alone; it
+	 * belongs to the caller now.
+	 * 
+	 * @return true if the builder was reset; false (the default) if it can't
+	 *         be reused, in which case the reader asks for a new one
+	 */
+	public boolean reset() {
+		return false;
+	}
+
 	/**
 	 * Places an undefined value (of BSON type Undef) in the document. Typically
 	 * "null" and rarely needs overriding
@@ -100,6 +121,57 @@ public abstract class BSONDocumentBuilder<T> {
 		put(key, subDoc);
 	}
 
+	/**
+	 * Asked by the reader before it decodes an embedded document, array or
+	 * binary, to let the builder take the value's bytes as they are instead:
+	 * if this returns true the reader skips decoding the value and calls
+	 * {@link #putRawDocument} or {@link #putRawBinary} with a read only slice
+	 * of it. Useful for passing values straight through, e.g. when
+	 * re-embedding them in another message. Not asked about documents or
+	 * arrays which the reader's projection only partly includes.
+	 * 
+	 * @param key
+	 *            the field name; null within arrays
+	 * @param type
+	 *            BSON.DOCUMENT, BSON.ARRAY or BSON.BINARY
+	 * @return false (the default) to have the value decoded as usual
+	 */
+	public boolean keepsRaw(String key, byte type) {
+		return false;
+	}
+
+	/**
+	 * Places an undecoded embedded document or array into the document. By
+	 * default, as a {@link RawBSONDocument}, which BSONWriter writes back with
+	 * a single bulk copy.
+	 * 
+	 * @param key
+	 * @param bytes
+	 *            a read only, little endian slice of the whole encoded
+	 *            document, length prefix to EOO
+	 * @param array
+	 *            true if the bytes are an array
+	 */
+	public void putRawDocument(String key, ByteBuffer bytes, boolean array) {
+		put(key, new RawBSONDocument(bytes, array));
+	}
+
+	/**
+	 * Places an undecoded binary into the document. Unlike putBinary, UUIDs
+	 * and MD5s are not interpreted and nothing is copied. By default, as a
+	 * {@link Binary}, so that the subtype survives being written back.
+	 * 
+	 * @param key
+	 * @param bytes
+	 *            a read only slice of the payload; for "old" style binary,
+	 *            without its extra length header
+	 * @param subType
+	 *            the binary Subtype from the BSON Spec
+	 */
+	public void putRawBinary(String key, ByteBuffer bytes, byte subType) {
+		put(key, new Binary(subType, bytes));
+	}
+
 	/**
 	 * Place a value of an embedded list inside.
 	 * 
@@ -277,32 +349,59 @@ public abstract class BSONDocumentBuilder<T> {
 	 * manually.
 	 * 
 	 * @param key
-	 * @param bytes  the bytes representing the binary data.
+	 * @param bytes  the bytes representing the binary data: a copy of its
+	 *               own, unless the reader was told not to copy binaries, in
+	 *               which case a read only view of the reader's buffer,
+	 *               indexed from 0, which is only good for as long as that
+	 *               buffer's contents are.
 	 * @param subType the binary Subtype from the BSON Spec
 	 */
 	public void putBinary(String key, ByteBuffer bytes, byte subType) {
 		put(key, bytes);
 	}
 	
+	/**
+	 * Places a parsed UUID into the document. The reader reads the two halves
+	 * straight out of its buffer, so nothing is allocated but the UUID.
+	 * 
+	 * @param key
+	 * @param mostSig
+	 *            the most significant 64 bits
+	 * @param leastSig
+	 *            the least significant 64 bits
+	 */
+	public void putUUID(String key, long mostSig, long leastSig) {
+		put(key, new UUID(mostSig, leastSig));
+	}
+
 	/**
 	 * Places a parsed UUID (as bytes) into the document.
 	 * 
 	 * @param key
 	 * @param bytes
-	 *            the bytes representing the UUID
+	 *            the bytes representing the UUID, from index 0; not modified
 	 * @param bigEndian
 	 *            Old MongoDB drivers/shell stored UUIDs incorrectly, as Little
 	 *            Endian. if false, parse as little endian.
 	 */
 	public void putUUID(String key, ByteBuffer bytes, boolean bigEndian) {
-		if (bigEndian) {
-			bytes.order(ByteOrder.BIG_ENDIAN);
-		} else {
-			bytes.order(ByteOrder.LITTLE_ENDIAN);
-		}
-		final long mostSig = bytes.getLong(0);
-		final long leastSig = bytes.getLong(8);
-		put(key, new UUID(mostSig, leastSig));
+		final ByteBuffer bb = bytes.duplicate().order(
+				bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		putUUID(key, bb.getLong(0), bb.getLong(8));
+	}
+
+	/**
+	 * Places a parsed MD5 Hash into the document, as read by the reader
+	 * straight out of its buffer.
+	 * 
+	 * @param key
+	 * @param hi
+	 *            the first 8 bytes of the hash, big endian
+	 * @param lo
+	 *            the last 8 bytes of the hash, big endian
+	 */
+	public void putMD5(String key, long hi, long lo) {
+		put(key, new MD5(hi, lo));
 	}
 
 	/**
@@ -314,7 +413,8 @@ public abstract class BSONDocumentBuilder<T> {
 	 *            The raw bytes representing the MD5 hash
 	 */
 	public void putMD5(String key, ByteBuffer bytes) {
-		put(key, new MD5(bytes));
+		final MD5 md5 = new MD5(bytes);
+		putMD5(key, md5.getHigh(), md5.getLow());
 	}
 
 	private static final Logger log = Logger.getLogger("BSONDocumentBuilder");
@@ -1,8 +1,7 @@
 package net.evilmonkeylabs.mag7.bson.doc;
 
-import net.evilmonkeylabs.mag7.bson.io.BSONException;
-
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
@@ -22,27 +21,39 @@ import java.util.ArrayList;
 
 public class BSONList extends ArrayList<Object> {
 
+	public BSONList() {
+		super();
+	}
+
+	public BSONList(int initialCapacity) {
+		super(initialCapacity);
+	}
+
 	public static BSONListBuilder newBuilder() {
-		return new BSONListBuilder();
+		return new BSONListBuilder(10);
+	}
+
+	/**
+	 * @param sizeHint
+	 *            expected number of elements, to size the list up front
+	 */
+	public static BSONListBuilder newBuilder(int sizeHint) {
+		return new BSONListBuilder(sizeHint);
 	}
 
-	static class BSONListBuilder extends BSONDocumentBuilder<BSONList> {
+	/**
+	 * BSON arrays store their elements in index order, keyed "0", "1", "2"...
+	 * so the keys are ignored and each value is simply appended.
+	 */
+	static class BSONListBuilder extends BSONDocumentBuilder<List<Object>> {
 
-		BSONListBuilder() {
-			lst = new BSONList();
+		BSONListBuilder(int sizeHint) {
+			lst = new BSONList(sizeHint);
 		}
 
 		@Override
 		public void put(String key, Object value) {
-			try {
-				final int n = Integer.parseInt(key);
-				// TODO - type conversions here?
-				lst.add(n, value);
-			} catch (NumberFormatException e) {
-				throw new BSONException(
-						"Unable to parse BSON Array, expected an integer key, "
-								+ "got '" + key + "' instead.", e);
-			}
+			lst.add(value);
 		}
 
 		@Override
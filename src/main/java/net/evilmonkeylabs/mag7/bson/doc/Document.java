@@ -41,7 +41,13 @@ public class Document extends HashMap<String, Object> {
 			return doc;
 		}
 
-		private final Document doc;
+		@Override
+		public boolean reset() {
+			doc = new Document();
+			return true;
+		}
+
+		private Document doc;
 	}
 
 	private static final long serialVersionUID = -5744321137807600567L;
@@ -0,0 +1,242 @@
+package net.evilmonkeylabs.mag7.bson.doc;
+
+import net.evilmonkeylabs.mag7.bson.BSON;
+import net.evilmonkeylabs.mag7.bson.io.BSONByteBuffer;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * A read only document which keeps hold of the buffer it was parsed from, and
+ * only decodes a field when it is asked for.
+ *
+ * Lookups walk the element headers, comparing field names against the raw
+ * bytes and skipping values by their encoded size; nothing is decoded until a
+ * matching field is found. Values are not cached, so fetching the same key
+ * twice decodes it twice. Embedded documents come back as further
+ * LazyDocuments over the same buffer.
+ *
+ * The backing buffer must not be modified or reused for as long as the
+ * document is reachable. Like the reader behind it, a LazyDocument is not safe
+ * for concurrent use.
+ */
+public class LazyDocument extends AbstractMap<String, Object> {
+
+	/**
+	 * Decodes the value of the element starting at a given offset. Supplied by
+	 * the reader which created the document, so that lazy documents decode
+	 * values exactly like their eager counterparts.
+	 */
+	public interface ValueDecoder {
+		/**
+		 * @param elementOffset
+		 *            offset of the element's type byte
+		 * @return the decoded value of the element
+		 */
+		Object decode(int elementOffset);
+	}
+
+	/**
+	 * @param buf
+	 *            the buffer holding the document
+	 * @param offset
+	 *            offset of the document's length header within buf
+	 * @param decoder
+	 *            decoder for individual element values
+	 */
+	public LazyDocument(BSONByteBuffer buf, int offset, ValueDecoder decoder) {
+		this.buf = buf;
+		this.offset = offset;
+		this.decoder = decoder;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		final int elem = find((String) key);
+		return elem < 0 ? null : decoder.decode(elem);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && find((String) key) >= 0;
+	}
+
+	@Override
+	public int size() {
+		if (size < 0) {
+			int n = 0;
+			for (int elem = firstElement(); buf.get(elem) != BSON.EOO; elem = nextElement(elem))
+				n++;
+			size = n;
+		}
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return buf.get(firstElement()) == BSON.EOO;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return LazyDocument.this.size();
+			}
+		};
+	}
+
+	/**
+	 * @return the encoded size of this document, in bytes
+	 */
+	public int byteSize() {
+		return buf.getInt(offset);
+	}
+
+	/**
+	 * Finds the element with the given field name.
+	 *
+	 * @return offset of the element's type byte, or -1 if not present
+	 */
+	protected int find(String key) {
+		for (int elem = firstElement(); buf.get(elem) != BSON.EOO; elem = nextElement(elem)) {
+			if (nameEquals(elem + 1, key))
+				return elem;
+		}
+		return -1;
+	}
+
+	private int firstElement() {
+		return offset + 4;
+	}
+
+	private int nextElement(int elem) {
+		final byte type = buf.get(elem);
+		final int valuePos = elem + 1 + buf.sizeCString(elem + 1);
+		return valuePos + buf.sizeValue(type, valuePos);
+	}
+
+	/**
+	 * Compares a field name in the buffer with key without decoding it. ASCII
+	 * keys are compared byte for byte; anything else falls back to decoding
+	 * the name.
+	 */
+	private boolean nameEquals(int namePos, String key) {
+		final int n = key.length();
+		for (int i = 0; i < n; i++) {
+			final char c = key.charAt(i);
+			if (c >= 0x80)
+				return key.equals(buf.getCString(namePos));
+			if (buf.get(namePos + i) != (byte) c)
+				return false;
+		}
+		return buf.get(namePos + n) == 0;
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+		@Override
+		public boolean hasNext() {
+			return buf.get(elem) != BSON.EOO;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			final Map.Entry<String, Object> e = new LazyEntry(elem);
+			elem = nextElement(elem);
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("LazyDocument is read only");
+		}
+
+		private int elem = firstElement();
+	}
+
+	/**
+	 * An entry whose value is only decoded when asked for.
+	 */
+	private class LazyEntry implements Map.Entry<String, Object> {
+
+		LazyEntry(int elem) {
+			this.elem = elem;
+			this.key = buf.getCString(elem + 1);
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public Object getValue() {
+			return decoder.decode(elem);
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			throw new UnsupportedOperationException("LazyDocument is read only");
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			final Object v = getValue();
+			return key.equals(e.getKey())
+					&& (v == null ? e.getValue() == null : v.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			final Object v = getValue();
+			return key.hashCode() ^ (v == null ? 0 : v.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + getValue();
+		}
+
+		private final int elem;
+		private final String key;
+	}
+
+	private final BSONByteBuffer buf;
+	private final int offset;
+	private final ValueDecoder decoder;
+	private int size = -1;
+}
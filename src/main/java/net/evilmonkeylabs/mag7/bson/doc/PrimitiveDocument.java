@@ -0,0 +1,455 @@
+package net.evilmonkeylabs.mag7.bson.doc;
+
+import net.evilmonkeylabs.mag7.bson.BSON;
+import net.evilmonkeylabs.mag7.bson.io.BSONException;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * A document which keeps int32, int64, double, boolean and UTC datetime values
+ * unboxed, in a parallel long array alongside the keys. Everything else is held
+ * as an Object, as in {@link Document}.
+ *
+ * The typed accessors (getInt, getLong, getDouble, getBoolean, getDateTime)
+ * never allocate. The Map interface still works, but boxes (and for datetimes
+ * creates a Date) on every get.
+ *
+ * Fields keep the order they were decoded in. Like the other documents, a
+ * PrimitiveDocument is not safe for concurrent modification.
+ */
+public class PrimitiveDocument extends AbstractMap<String, Object> {
+
+	public static PrimitiveDocumentBuilder newBuilder() {
+		return new PrimitiveDocumentBuilder();
+	}
+
+	/**
+	 * Builder which routes the primitive callbacks straight into the
+	 * document's primitive storage.
+	 */
+	static class PrimitiveDocumentBuilder extends
+			BSONDocumentBuilder<PrimitiveDocument> {
+
+		PrimitiveDocumentBuilder() {
+			doc = new PrimitiveDocument();
+		}
+
+		@Override
+		public void put(String key, Object value) {
+			doc.putObject(key, value);
+		}
+
+		@Override
+		public void putDouble(String key, double dbl) {
+			doc.putDouble(key, dbl);
+		}
+
+		@Override
+		public void putInteger(String key, int int32) {
+			doc.putInt(key, int32);
+		}
+
+		@Override
+		public void putLong(String key, long int64) {
+			doc.putLong(key, int64);
+		}
+
+		@Override
+		public void putBoolTrue(String key) {
+			doc.putBoolean(key, true);
+		}
+
+		@Override
+		public void putBoolFalse(String key) {
+			doc.putBoolean(key, false);
+		}
+
+		@Override
+		public void putDateTime(String key, long tsp) {
+			doc.putDateTime(key, tsp);
+		}
+
+		@Override
+		public PrimitiveDocument result() {
+			return doc;
+		}
+
+		@Override
+		public boolean reset() {
+			doc = new PrimitiveDocument();
+			return true;
+		}
+
+		private PrimitiveDocument doc;
+	}
+
+	public PrimitiveDocument() {
+		this(8);
+	}
+
+	public PrimitiveDocument(int capacity) {
+		keys = new String[capacity];
+		types = new byte[capacity];
+		prims = new long[capacity];
+		refs = new Object[capacity];
+	}
+
+	// ---- primitive access ----
+
+	/**
+	 * @return the int32 value of key
+	 * @throws BSONException
+	 *             if there is no int32 field called key
+	 */
+	public int getInt(String key) {
+		final int i = indexOf(key);
+		if (i < 0 || types[i] != BSON.INT32)
+			throw missing(key, "int32");
+		return (int) prims[i];
+	}
+
+	public int getInt(String key, int dflt) {
+		final int i = indexOf(key);
+		return i < 0 || types[i] != BSON.INT32 ? dflt : (int) prims[i];
+	}
+
+	/**
+	 * @return the int64 value of key, widening an int32 if need be
+	 * @throws BSONException
+	 *             if there is no int32 or int64 field called key
+	 */
+	public long getLong(String key) {
+		final int i = indexOf(key);
+		if (i < 0 || (types[i] != BSON.INT64 && types[i] != BSON.INT32))
+			throw missing(key, "int64");
+		return prims[i];
+	}
+
+	public long getLong(String key, long dflt) {
+		final int i = indexOf(key);
+		return i < 0 || (types[i] != BSON.INT64 && types[i] != BSON.INT32) ? dflt
+				: prims[i];
+	}
+
+	/**
+	 * @return the double value of key, widening an int32 or int64 if need be
+	 * @throws BSONException
+	 *             if there is no numeric field called key
+	 */
+	public double getDouble(String key) {
+		final int i = indexOf(key);
+		if (i < 0)
+			throw missing(key, "double");
+		switch (types[i]) {
+		case BSON.DOUBLE:
+			return Double.longBitsToDouble(prims[i]);
+		case BSON.INT32:
+		case BSON.INT64:
+			return prims[i];
+		default:
+			throw missing(key, "double");
+		}
+	}
+
+	public double getDouble(String key, double dflt) {
+		final int i = indexOf(key);
+		if (i < 0)
+			return dflt;
+		switch (types[i]) {
+		case BSON.DOUBLE:
+			return Double.longBitsToDouble(prims[i]);
+		case BSON.INT32:
+		case BSON.INT64:
+			return prims[i];
+		default:
+			return dflt;
+		}
+	}
+
+	/**
+	 * @throws BSONException
+	 *             if there is no boolean field called key
+	 */
+	public boolean getBoolean(String key) {
+		final int i = indexOf(key);
+		if (i < 0 || types[i] != BSON.BOOLEAN)
+			throw missing(key, "boolean");
+		return prims[i] != 0;
+	}
+
+	public boolean getBoolean(String key, boolean dflt) {
+		final int i = indexOf(key);
+		return i < 0 || types[i] != BSON.BOOLEAN ? dflt : prims[i] != 0;
+	}
+
+	/**
+	 * @return the UTC datetime value of key, in milliseconds since the Unix
+	 *         Epoch
+	 * @throws BSONException
+	 *             if there is no datetime field called key
+	 */
+	public long getDateTime(String key) {
+		final int i = indexOf(key);
+		if (i < 0 || types[i] != BSON.UTC_DATETIME)
+			throw missing(key, "UTC datetime");
+		return prims[i];
+	}
+
+	/**
+	 * @return the BSON type of key's value, or BSON.EOO if there is no such
+	 *         field. Values put in as Objects report BSON.EOO too.
+	 */
+	public byte getType(String key) {
+		final int i = indexOf(key);
+		return i < 0 ? BSON.EOO : types[i];
+	}
+
+	public void putInt(String key, int int32) {
+		final int i = slot(key, BSON.INT32);
+		prims[i] = int32;
+	}
+
+	public void putLong(String key, long int64) {
+		final int i = slot(key, BSON.INT64);
+		prims[i] = int64;
+	}
+
+	public void putDouble(String key, double dbl) {
+		final int i = slot(key, BSON.DOUBLE);
+		prims[i] = Double.doubleToRawLongBits(dbl);
+	}
+
+	public void putBoolean(String key, boolean bool) {
+		final int i = slot(key, BSON.BOOLEAN);
+		prims[i] = bool ? 1 : 0;
+	}
+
+	public void putDateTime(String key, long tsp) {
+		final int i = slot(key, BSON.UTC_DATETIME);
+		prims[i] = tsp;
+	}
+
+	public void putObject(String key, Object value) {
+		final int i = slot(key, OBJECT);
+		refs[i] = value;
+	}
+
+	// ---- Map ----
+
+	@Override
+	public Object get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		final int i = indexOf((String) key);
+		return i < 0 ? null : valueAt(i);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && indexOf((String) key) >= 0;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		final Object old = get(key);
+		if (value instanceof Integer)
+			putInt(key, (Integer) value);
+		else if (value instanceof Long)
+			putLong(key, (Long) value);
+		else if (value instanceof Double)
+			putDouble(key, (Double) value);
+		else if (value instanceof Boolean)
+			putBoolean(key, (Boolean) value);
+		else
+			putObject(key, value);
+		return old;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new Iterator<Map.Entry<String, Object>>() {
+					@Override
+					public boolean hasNext() {
+						return i < size;
+					}
+
+					@Override
+					public Map.Entry<String, Object> next() {
+						if (i >= size)
+							throw new NoSuchElementException();
+						final int n = i++;
+						return new SimpleImmutableEntry<String, Object>(keys[n],
+								valueAt(n));
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException(
+								"PrimitiveDocument doesn't support removal");
+					}
+
+					private int i = 0;
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	// ---- internals ----
+
+	private Object valueAt(int i) {
+		switch (types[i]) {
+		case BSON.INT32:
+			return (int) prims[i];
+		case BSON.INT64:
+			return prims[i];
+		case BSON.DOUBLE:
+			return Double.longBitsToDouble(prims[i]);
+		case BSON.BOOLEAN:
+			return prims[i] != 0;
+		case BSON.UTC_DATETIME:
+			return new Date(prims[i]);
+		default:
+			return refs[i];
+		}
+	}
+
+	/**
+	 * Finds or appends the slot for key (which may grow the arrays, so callers
+	 * must fetch them after calling this), and sets its type. A field replaced
+	 * by one of a different kind drops its old object reference.
+	 */
+	private int slot(String key, byte type) {
+		int i = indexOf(key);
+		if (i < 0) {
+			if (size == keys.length)
+				grow();
+			i = size++;
+			keys[i] = key;
+			if (index != null)
+				addToIndex(i);
+		}
+		types[i] = type;
+		if (type != OBJECT)
+			refs[i] = null;
+		return i;
+	}
+
+	/**
+	 * Small documents are searched linearly; once they pass INDEX_THRESHOLD
+	 * fields an open addressed hash index is kept. Keys decoded through a
+	 * FieldNameCache are usually the identical instance, so that is tried
+	 * before equals.
+	 */
+	private int indexOf(String key) {
+		if (size <= INDEX_THRESHOLD) {
+			for (int i = 0; i < size; i++) {
+				if (keys[i] == key)
+					return i;
+			}
+			for (int i = 0; i < size; i++) {
+				if (keys[i].equals(key))
+					return i;
+			}
+			return -1;
+		}
+		if (index == null)
+			rebuildIndex();
+		final int mask = index.length - 1;
+		for (int h = key.hashCode() & mask;; h = (h + 1) & mask) {
+			final int i = index[h] - 1;
+			if (i < 0)
+				return -1;
+			if (keys[i] == key || keys[i].equals(key))
+				return i;
+		}
+	}
+
+	private void rebuildIndex() {
+		int n = 16;
+		while (n < size * 2)
+			n <<= 1;
+		index = new int[n];
+		for (int i = 0; i < size; i++)
+			addToIndex(i);
+	}
+
+	private void addToIndex(int i) {
+		if (size * 2 > index.length) {
+			rebuildIndex();
+			return;
+		}
+		final int mask = index.length - 1;
+		int h = keys[i].hashCode() & mask;
+		while (index[h] != 0)
+			h = (h + 1) & mask;
+		index[h] = i + 1;
+	}
+
+	private void grow() {
+		final int n = Math.max(8, keys.length * 2);
+		final String[] k = new String[n];
+		final byte[] t = new byte[n];
+		final long[] p = new long[n];
+		final Object[] r = new Object[n];
+		System.arraycopy(keys, 0, k, 0, size);
+		System.arraycopy(types, 0, t, 0, size);
+		System.arraycopy(prims, 0, p, 0, size);
+		System.arraycopy(refs, 0, r, 0, size);
+		keys = k;
+		types = t;
+		prims = p;
+		refs = r;
+	}
+
+	private static BSONException missing(String key, String type) {
+		return new BSONException("No " + type + " field '" + key + "'");
+	}
+
+	/**
+	 * Type marker for values held as Objects.
+	 */
+	private static final byte OBJECT = BSON.EOO;
+	private static final int INDEX_THRESHOLD = 8;
+
+	private String[] keys;
+	private byte[] types;
+	private long[] prims;
+	private Object[] refs;
+	private int size = 0;
+	private int[] index;
+}
@@ -0,0 +1,303 @@
+package net.evilmonkeylabs.mag7.bson.doc;
+
+import net.evilmonkeylabs.mag7.bson.BSON;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * A read only list backed by an int[], long[] or double[], for arrays whose
+ * elements all turned out to be int32, all int64 or all double. Vectors of
+ * thousands of numbers take a fraction of the memory of a boxed BSONList, and
+ * the typed accessors read them without boxing.
+ *
+ * get() still works, but boxes on every call.
+ */
+public abstract class PrimitiveList extends AbstractList<Object> implements
+		RandomAccess {
+
+	/**
+	 * Builds a PrimitiveList if every element is of the same numeric type, and
+	 * falls back to a BSONList as soon as one isn't.
+	 *
+	 * @param sizeHint
+	 *            expected number of elements, to size the storage up front
+	 */
+	public static BSONDocumentBuilder<List<Object>> newBuilder(int sizeHint) {
+		return new PrimitiveListBuilder(sizeHint);
+	}
+
+	/**
+	 * @return the BSON type of the elements: INT32, INT64 or DOUBLE
+	 */
+	public abstract byte elementType();
+
+	public int getInt(int i) {
+		throw new UnsupportedOperationException("Not a list of int32s");
+	}
+
+	public long getLong(int i) {
+		throw new UnsupportedOperationException("Not a list of int64s");
+	}
+
+	public double getDouble(int i) {
+		throw new UnsupportedOperationException("Not a list of doubles");
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	PrimitiveList(int size) {
+		this.size = size;
+	}
+
+	void checkIndex(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: "
+					+ size);
+	}
+
+	final int size;
+
+	public static final class Int32s extends PrimitiveList {
+		Int32s(int[] values, int size) {
+			super(size);
+			this.values = values;
+		}
+
+		@Override
+		public byte elementType() {
+			return BSON.INT32;
+		}
+
+		@Override
+		public int getInt(int i) {
+			checkIndex(i);
+			return values[i];
+		}
+
+		@Override
+		public long getLong(int i) {
+			return getInt(i);
+		}
+
+		@Override
+		public double getDouble(int i) {
+			return getInt(i);
+		}
+
+		@Override
+		public Object get(int i) {
+			return getInt(i);
+		}
+
+		/**
+		 * @return a copy of the elements
+		 */
+		public int[] toIntArray() {
+			return Arrays.copyOf(values, size);
+		}
+
+		private final int[] values;
+	}
+
+	public static final class Int64s extends PrimitiveList {
+		Int64s(long[] values, int size) {
+			super(size);
+			this.values = values;
+		}
+
+		@Override
+		public byte elementType() {
+			return BSON.INT64;
+		}
+
+		@Override
+		public long getLong(int i) {
+			checkIndex(i);
+			return values[i];
+		}
+
+		@Override
+		public double getDouble(int i) {
+			return getLong(i);
+		}
+
+		@Override
+		public Object get(int i) {
+			return getLong(i);
+		}
+
+		/**
+		 * @return a copy of the elements
+		 */
+		public long[] toLongArray() {
+			return Arrays.copyOf(values, size);
+		}
+
+		private final long[] values;
+	}
+
+	public static final class Doubles extends PrimitiveList {
+		Doubles(double[] values, int size) {
+			super(size);
+			this.values = values;
+		}
+
+		@Override
+		public byte elementType() {
+			return BSON.DOUBLE;
+		}
+
+		@Override
+		public double getDouble(int i) {
+			checkIndex(i);
+			return values[i];
+		}
+
+		@Override
+		public Object get(int i) {
+			return getDouble(i);
+		}
+
+		/**
+		 * @return a copy of the elements
+		 */
+		public double[] toDoubleArray() {
+			return Arrays.copyOf(values, size);
+		}
+
+		private final double[] values;
+	}
+
+	/**
+	 * Collects into a primitive array for as long as the elements share a
+	 * numeric type, then boxes what it has into a BSONList and carries on
+	 * with that.
+	 */
+	static class PrimitiveListBuilder extends BSONDocumentBuilder<List<Object>> {
+
+		PrimitiveListBuilder(int sizeHint) {
+			this.sizeHint = Math.max(sizeHint, 1);
+		}
+
+		@Override
+		public void put(String key, Object value) {
+			boxed().add(value);
+		}
+
+		@Override
+		public void putInteger(String key, int int32) {
+			if (start(BSON.INT32)) {
+				if (size == ints.length)
+					ints = Arrays.copyOf(ints, size * 2);
+				ints[size++] = int32;
+			} else {
+				boxed().add(int32);
+			}
+		}
+
+		@Override
+		public void putLong(String key, long int64) {
+			if (start(BSON.INT64)) {
+				if (size == longs.length)
+					longs = Arrays.copyOf(longs, size * 2);
+				longs[size++] = int64;
+			} else {
+				boxed().add(int64);
+			}
+		}
+
+		@Override
+		public void putDouble(String key, double dbl) {
+			if (start(BSON.DOUBLE)) {
+				if (size == doubles.length)
+					doubles = Arrays.copyOf(doubles, size * 2);
+				doubles[size++] = dbl;
+			} else {
+				boxed().add(dbl);
+			}
+		}
+
+		@Override
+		public List<Object> result() {
+			switch (type) {
+			case BSON.INT32:
+				return new Int32s(ints, size);
+			case BSON.INT64:
+				return new Int64s(longs, size);
+			case BSON.DOUBLE:
+				return new Doubles(doubles, size);
+			default:
+				return boxed();
+			}
+		}
+
+		/**
+		 * @return true if an element of type t can go in the primitive array,
+		 *         allocating it for the first element
+		 */
+		private boolean start(byte t) {
+			if (type == t)
+				return true;
+			if (type != NONE)
+				return false;
+			switch (t) {
+			case BSON.INT32:
+				ints = new int[sizeHint];
+				break;
+			case BSON.INT64:
+				longs = new long[sizeHint];
+				break;
+			default:
+				doubles = new double[sizeHint];
+			}
+			type = t;
+			return true;
+		}
+
+		private BSONList boxed() {
+			if (lst != null)
+				return lst;
+			lst = new BSONList(Math.max(sizeHint, size + 1));
+			if (type != NONE)
+				lst.addAll(result());
+			type = BOXED;
+			ints = null;
+			longs = null;
+			doubles = null;
+			return lst;
+		}
+
+		private static final byte NONE = BSON.EOO;
+		private static final byte BOXED = BSON.NULL;
+
+		private final int sizeHint;
+		private byte type = NONE;
+		private int size = 0;
+		private int[] ints;
+		private long[] longs;
+		private double[] doubles;
+		private BSONList lst;
+	}
+}
@@ -0,0 +1,104 @@
+package net.evilmonkeylabs.mag7.bson.doc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * An embedded document or array kept exactly as it was encoded, for passing
+ * through without decoding it. The reader hands these out for fields a
+ * builder asks to keep raw (see {@link BSONDocumentBuilder#keepsRaw}), and
+ * the writer puts them back with a single bulk copy.
+ *
+ * The bytes are a read only view of the buffer the document was read from,
+ * so that buffer must not be modified or reused while the RawBSONDocument is
+ * reachable; copy() detaches it. To look inside, hand getBuffer() to any
+ * reader.
+ */
+public final class RawBSONDocument {
+
+	/**
+	 * @param bytes
+	 *            the whole encoded document, length prefix to EOO, from the
+	 *            buffer's position to its limit
+	 * @param array
+	 *            true if the bytes are an array rather than a document
+	 */
+	public RawBSONDocument(ByteBuffer bytes, boolean array) {
+		this.bytes = bytes.slice().asReadOnlyBuffer()
+				.order(ByteOrder.LITTLE_ENDIAN);
+		this.array = array;
+	}
+
+	/**
+	 * @return a little endian, read only view of the encoded document, from
+	 *         index 0; each call returns a view with its own position
+	 */
+	public ByteBuffer getBuffer() {
+		return bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return the encoded size of the document in bytes
+	 */
+	public int size() {
+		return bytes.limit();
+	}
+
+	/**
+	 * @return true if the bytes encode an array
+	 */
+	public boolean isArray() {
+		return array;
+	}
+
+	/**
+	 * @return a RawBSONDocument over a private heap copy of the bytes, no
+	 *         longer tied to the buffer it was read from
+	 */
+	public RawBSONDocument copy() {
+		final ByteBuffer c = ByteBuffer.allocate(bytes.limit());
+		c.put(bytes.duplicate());
+		c.flip();
+		return new RawBSONDocument(c, array);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof RawBSONDocument))
+			return false;
+		final RawBSONDocument that = (RawBSONDocument) o;
+		return array == that.array && bytes.equals(that.bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return bytes.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "RawBSONDocument{" + (array ? "array, " : "") + bytes.limit()
+				+ " bytes}";
+	}
+
+	private final ByteBuffer bytes;
+	private final boolean array;
+}
@@ -19,17 +19,38 @@ package net.evilmonkeylabs.mag7.bson.io;
 import java.io.*;
 import java.nio.*;
 
+import net.evilmonkeylabs.mag7.bson.BSON;
+import net.evilmonkeylabs.mag7.bson.util.FieldNameCache;
+import net.evilmonkeylabs.mag7.bson.util.UTF8Encoding;
+
 /**
  * Pseudo byte buffer, delegates as it is too hard to properly override / extend
  * the ByteBuffer API
  * 
+ * Works over any kind of ByteBuffer: heap, direct, mapped, read only, or a
+ * slice of any of those. All offsets are indices into the buffer as given, so
+ * are relative to the start of a slice, and nothing here depends on the
+ * buffer having an accessible array.
+ * 
  * @author brendan
  */
 public class BSONByteBuffer {
 
 	public BSONByteBuffer(ByteBuffer buf) {
+		setBuffer(buf);
+	}
+
+	/**
+	 * Rebinds this wrapper to another buffer, so that a reader can move on to
+	 * the next document without allocating a new wrapper. The caller's buffer
+	 * is left as it was; if it isn't already little endian, reads go through
+	 * a little endian duplicate of it.
+	 */
+	public void setBuffer(ByteBuffer buf) {
+		if (buf.order() != ByteOrder.LITTLE_ENDIAN)
+			buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
 		this.buf = buf;
-		buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.view = null;
 	}
 
 	public static BSONByteBuffer wrap(byte[] bytes, int offset, int length) {
@@ -44,16 +65,32 @@ public class BSONByteBuffer {
 		return buf.get(i);
 	}
 
+	/**
+	 * Bulk copies length bytes, starting at index pos + offset, into bytes
+	 * starting at offset.
+	 * 
+	 * @return bytes, wrapped
+	 */
 	public ByteBuffer get(byte[] bytes, int pos, int offset, int length) {
-		for (int i = offset; i < offset + length; i++) {
-			bytes[i] = buf.get(i + pos);
-		}
+		if (view == null)
+			view = buf.duplicate();
+		view.position(pos + offset);
+		view.get(bytes, offset, length);
 		return ByteBuffer.wrap(bytes);
 	}
 
 
+	/**
+	 * @return the bytes up to the buffer's limit: the backing array itself for
+	 *         a heap buffer which spans all of it, otherwise a copy
+	 */
 	public byte[] array() {
-		return buf.array();
+		if (buf.hasArray() && buf.arrayOffset() == 0
+				&& buf.array().length == buf.limit())
+			return buf.array();
+		final byte[] bytes = new byte[buf.limit()];
+		get(bytes, 0, 0, bytes.length);
+		return bytes;
 	}
 
 
@@ -65,26 +102,23 @@ public class BSONByteBuffer {
 	 * @return
 	 */
 	public int getInt(int i) {
-		return getIntLE(i);
+		return buf.getInt(i);
 	}
 
 	public int getIntLE(int i) {
-		int x = 0;
-		x |= (0xFF & buf.get(i + 0)) << 0;
-		x |= (0xFF & buf.get(i + 1)) << 8;
-		x |= (0xFF & buf.get(i + 2)) << 16;
-		x |= (0xFF & buf.get(i + 3)) << 24;
-		return x;
+		return buf.getInt(i);
 	}
 
-
+	/**
+	 * Gets a Big Endian Integer, as used by ObjectIDs. Reads little endian and
+	 * swaps, which the JIT turns into a single load and bswap.
+	 * 
+	 * @param i
+	 *            Index to read from
+	 * @return
+	 */
 	public int getIntBE(int i) {
-		int x = 0;
-		x |= (0xFF & buf.get(i + 0)) << 24;
-		x |= (0xFF & buf.get(i + 1)) << 16;
-		x |= (0xFF & buf.get(i + 2)) << 8;
-		x |= (0xFF & buf.get(i + 3)) << 0;
-		return x;
+		return Integer.reverseBytes(buf.getInt(i));
 	}
 
 
@@ -92,14 +126,49 @@ public class BSONByteBuffer {
 		return buf.getLong(i);
 	}
 
+	/**
+	 * Gets a Big Endian Long, as used by UUIDs and MD5s.
+	 * 
+	 * @param i
+	 *            Index to read from
+	 * @return
+	 */
+	public long getLongBE(int i) {
+		return Long.reverseBytes(buf.getLong(i));
+	}
+
 
+	/**
+	 * Decodes the BSON cstring at the given offset.
+	 * 
+	 * @param offset
+	 *            the offset into the buffer
+	 * @return the decoded string, without its null terminator
+	 */
 	public String getCString(int offset) {
-		int end = offset;
-		while (get(end) != 0) {
-			++end;
-		}
-		int len = end - offset;
-		return new String(array(), offset, len);
+		return decodeUTF8(offset, sizeCString(offset) - 1);
+	}
+
+	/**
+	 * Decodes a field name, going through a cache of known names first.
+	 * 
+	 * @param offset
+	 *            the offset into the buffer
+	 * @param size
+	 *            the size of the cstring, including its null terminator, as
+	 *            returned by sizeCString
+	 * @param names
+	 *            cache of known field names, or null to always decode
+	 * @return the field name
+	 */
+	public String getFieldName(int offset, int size, FieldNameCache names) {
+		final int length = size - 1;
+		if (names == null)
+			return decodeUTF8(offset, length);
+		final String name = names.get(buf, offset, length);
+		if (name != null)
+			return name;
+		return names.put(buf, offset, length, decodeUTF8(offset, length));
 	}
 
 	/**
@@ -121,37 +190,167 @@ public class BSONByteBuffer {
 		return end - offset + 1;
 	}
 
+	/**
+	 * Returns the size of the BSON cstring at the given offset, looking for
+	 * its terminator no further than limit.
+	 * 
+	 * @param offset
+	 *            the offset into the buffer
+	 * @param limit
+	 *            the offset the cstring must end before
+	 * @return the size of the BSON cstring, including the null terminator, or
+	 *         -1 if there is no terminator before limit
+	 */
+	public int sizeCString(int offset, int limit) {
+		for (int i = offset; i < limit; i++) {
+			if (buf.get(i) == 0)
+				return i - offset + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the encoded size of a value of the given BSON type at the given
+	 * offset, without decoding it. The type byte and field name are not
+	 * included; this is exactly how far a reader must move to skip the value.
+	 *
+	 * @param type
+	 *            the BSON type byte of the element
+	 * @param offset
+	 *            the offset of the value (just past the field name)
+	 * @return the size of the value in bytes
+	 */
+	public int sizeValue(byte type, int offset) {
+		switch (type) {
+		case BSON.NULL:
+		case BSON.UNDEF:
+		case BSON.MIN_KEY:
+		case BSON.MAX_KEY:
+			return 0;
+		case BSON.BOOLEAN:
+			return 1;
+		case BSON.INT32:
+			return 4;
+		case BSON.DOUBLE:
+		case BSON.UTC_DATETIME:
+		case BSON.INT64:
+		case BSON.TIMESTAMP:
+			return 8;
+		case BSON.OBJECTID:
+			return 12;
+		case BSON.STRING:
+		case BSON.JSCODE:
+		case BSON.SYMBOL:
+			return 4 + getInt(offset);
+		case BSON.DOCUMENT:
+		case BSON.ARRAY:
+		case BSON.JSCODE_W_SCOPE:
+			// length prefix covers the whole value, including itself
+			return getInt(offset);
+		case BSON.BINARY:
+			// length, subtype, payload
+			return 4 + 1 + getInt(offset);
+		case BSON.REGEX:
+			final int pSz = sizeCString(offset);
+			return pSz + sizeCString(offset + pSz);
+		case BSON.DBREF:
+			return 4 + getInt(offset) + 12;
+		default:
+			throw new BSONException("No support for sizing BSON type of byte '"
+					+ type + "'");
+		}
+	}
+
 
+	/**
+	 * Decodes the length prefixed BSON string at the given offset. The encoded
+	 * size (to skip past it) is 4 + getInt(valueOffset), which is not the same
+	 * as the length of the result once multi byte characters are involved.
+	 * 
+	 * @param valueOffset
+	 *            the offset of the string's length prefix
+	 * @return the decoded string, without its null terminator
+	 */
 	public String getUTF8String(int valueOffset) {
-		int size = getInt(valueOffset) - 1;
+		final int size = getInt(valueOffset) - 1;
+		return decodeUTF8(valueOffset + 4, size);
+	}
+
+	private String decodeUTF8(int offset, int length) {
 		try {
-			return new String(array(), valueOffset + 4, size, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new BSONException("Cannot decode string as UTF-8.");
+			return DECODER.get().decode(buf, offset, length);
+		} catch (IOException e) {
+			throw new BSONException("Cannot decode string as UTF-8.", e);
 		}
 	}
 
 	public double getDouble(int i) {
-		return Double.longBitsToDouble(getLong(i));
+		return buf.getDouble(i);
 	}
 
 	public int position() {
 		return buf.position();
 	}
 
+	public int limit() {
+		return buf.limit();
+	}
+
 	public Buffer reset() {
 		return buf.reset();
 	}
 
+	/**
+	 * @return the length of the document at the buffer's position
+	 */
 	public int size() {
-		return getInt(0);
+		return getInt(buf.position());
 	}
 
+	/**
+	 * @return a little endian view from the buffer's position, indexed from 0
+	 */
 	public ByteBuffer slice() {
-		return buf.slice();
+		return buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return a read only, little endian view of length bytes from offset,
+	 *         indexed from 0, sharing the underlying bytes
+	 */
+	public ByteBuffer slice(int offset, int length) {
+		final ByteBuffer d = buf.duplicate();
+		d.limit(offset + length);
+		d.position(offset);
+		return d.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return a view sharing the underlying bytes with the same indices, for
+	 *         handing an embedded document to another reader. Unlike slice(),
+	 *         offsets within the view match offsets within this buffer.
+	 */
+	public ByteBuffer duplicate() {
+		return buf.duplicate();
 	}
 
 	protected ByteBuffer buf;
+	/**
+	 * Private cursor over the same bytes, for bulk gets without disturbing the
+	 * position of buf. Made on first use.
+	 */
+	private ByteBuffer view;
+	/**
+	 * Looked up for every string rather than held on to: a buffer behind a
+	 * LazyDocument or BSONPath may be read from any thread, and decoders
+	 * mustn't be shared between threads.
+	 */
+	private static final ThreadLocal<UTF8Encoding> DECODER = new ThreadLocal<UTF8Encoding>() {
+		@Override
+		protected UTF8Encoding initialValue() {
+			return new UTF8Encoding();
+		}
+	};
 	
 	@Override
 	public String toString() {
@@ -0,0 +1,358 @@
+package net.evilmonkeylabs.mag7.bson.io;
+
+/**
+ *      Copyright (C) 2008-2011 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct buffers, so that reading and writing messages doesn't mean
+ * allocating, and eventually collecting, a direct buffer for each one.
+ *
+ * Requests are rounded up to a size class, a power of two from 512 bytes to
+ * 1MB. Each class is carved out of slabs, large direct buffers allocated once
+ * and never freed, so the pool grows to the high water mark of its use and
+ * stays there. Buffers released go first to a small cache belonging to the
+ * releasing thread, which the same thread's next acquire takes from without
+ * touching anything shared, and otherwise to a free list shared by all
+ * threads. Requests over 1MB aren't pooled: they are allocated directly and
+ * left to the garbage collector when released.
+ *
+ * A thread's cache is never handed back to the shared free lists, so the
+ * buffers left in it when the thread dies are lost to the pool, and are made
+ * up for by carving more slabs. Threads which come and go, such as the
+ * workers a ForkJoinPool retires when idle, can each strand up to 256KB of
+ * every size class this way, or one buffer of the classes larger than that.
+ *
+ * Buffers are handed out as {@link PooledBuffer}s, which are reference
+ * counted. The pool keeps counters of its use; with leak detection on, it
+ * also counts buffers which became unreachable without being released, at the
+ * cost of a phantom reference per acquire.
+ */
+public class BufferPool {
+
+	/** log2 of the smallest size class. */
+	public static final int MIN_CLASS_SHIFT = 9;
+	/** log2 of the largest size class. */
+	public static final int MAX_CLASS_SHIFT = 20;
+	public static final int DEFAULT_SLAB_SIZE = 4 << MAX_CLASS_SHIFT;
+
+	public BufferPool() {
+		this(DEFAULT_SLAB_SIZE, false);
+	}
+
+	/**
+	 * @param slabSize
+	 *            the size of direct buffer to carve size classes out of
+	 * @param detectLeaks
+	 *            true to count buffers garbage collected without being
+	 *            released
+	 */
+	public BufferPool(int slabSize, boolean detectLeaks) {
+		this.slabSize = slabSize;
+		this.detectLeaks = detectLeaks;
+		free = newQueues(CLASSES);
+		for (int c = 0; c < CLASSES; c++)
+			free[c] = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	/**
+	 * Borrows a buffer.
+	 *
+	 * @return a buffer whose view is little endian, positioned at 0 and
+	 *         limited to size; its capacity is that of the size class
+	 */
+	public PooledBuffer acquire(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Negative buffer size " + size);
+		if (detectLeaks)
+			collectLeaks();
+		final int c = sizeClass(size);
+		final ByteBuffer memory;
+		if (c < 0) {
+			memory = ByteBuffer.allocateDirect(size);
+			unpooled.incrementAndGet();
+		} else {
+			memory = take(c);
+		}
+		acquired.incrementAndGet();
+		inUse.incrementAndGet();
+		bytesInUse.addAndGet(memory.capacity());
+		final Chunk chunk = new Chunk(this, memory, c);
+		if (detectLeaks) {
+			chunk.leak = new Leak(chunk, collected);
+			tracked.add(chunk.leak);
+		}
+		final ByteBuffer view = memory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		view.limit(size);
+		return new PooledBuffer(chunk, view, size);
+	}
+
+	/**
+	 * @return the number of buffers acquired
+	 */
+	public long getAcquired() {
+		return acquired.get();
+	}
+
+	/**
+	 * @return the number of buffers given back by their last release
+	 */
+	public long getReleased() {
+		return released.get();
+	}
+
+	/**
+	 * @return the number of buffers acquired and not yet released, leaks
+	 *         detected excepted
+	 */
+	public long getInUse() {
+		return inUse.get();
+	}
+
+	/**
+	 * @return the capacity of the buffers in use, in bytes
+	 */
+	public long getBytesInUse() {
+		return bytesInUse.get();
+	}
+
+	/**
+	 * @return the number of slabs allocated
+	 */
+	public long getSlabs() {
+		return slabs.get();
+	}
+
+	/**
+	 * @return the direct memory held by slabs, in bytes
+	 */
+	public long getSlabBytes() {
+		return slabBytes.get();
+	}
+
+	/**
+	 * @return the number of buffers too big to pool, allocated directly
+	 */
+	public long getUnpooled() {
+		return unpooled.get();
+	}
+
+	/**
+	 * @return the number of buffers garbage collected without being released;
+	 *         always 0 unless leak detection is on. Leaks are noticed as the
+	 *         collector gets round to them, on the next acquire.
+	 */
+	public long getLeaked() {
+		return leaked.get();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Queue<ByteBuffer>[] newQueues(int n) {
+		return new Queue[n];
+	}
+
+	/**
+	 * @return the size class for a request, or -1 if it is too big to pool
+	 */
+	static int sizeClass(int size) {
+		if (size <= 1 << MIN_CLASS_SHIFT)
+			return 0;
+		if (size > 1 << MAX_CLASS_SHIFT)
+			return -1;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+	}
+
+	private ByteBuffer take(int c) {
+		final Cache cache = caches.get();
+		if (cache.counts[c] > 0) {
+			final int i = --cache.counts[c];
+			final ByteBuffer b = cache.buffers[c][i];
+			cache.buffers[c][i] = null;
+			return b;
+		}
+		final ByteBuffer b = free[c].poll();
+		return b != null ? b : carve(c);
+	}
+
+	/**
+	 * Allocates a slab for a size class, keeping one buffer of it and putting
+	 * the rest on the free list.
+	 */
+	private ByteBuffer carve(int c) {
+		final int size = 1 << (c + MIN_CLASS_SHIFT);
+		final int n = Math.max(1, slabSize / size);
+		final ByteBuffer slab = ByteBuffer.allocateDirect(n * size);
+		slabs.incrementAndGet();
+		slabBytes.addAndGet(slab.capacity());
+		for (int i = 1; i < n; i++) {
+			slab.limit((i + 1) * size).position(i * size);
+			free[c].offer(slab.slice());
+		}
+		slab.limit(size).position(0);
+		return slab.slice();
+	}
+
+	private void give(Chunk chunk) {
+		released.incrementAndGet();
+		if (chunk.leak != null) {
+			tracked.remove(chunk.leak);
+			chunk.leak.clear();
+		}
+		inUse.decrementAndGet();
+		bytesInUse.addAndGet(-chunk.memory.capacity());
+		final int c = chunk.sizeClass;
+		if (c < 0)
+			return;
+		final Cache cache = caches.get();
+		if (cache.counts[c] < cache.buffers[c].length)
+			cache.buffers[c][cache.counts[c]++] = chunk.memory;
+		else
+			free[c].offer(chunk.memory);
+	}
+
+	private void collectLeaks() {
+		Reference<? extends Chunk> r;
+		while ((r = collected.poll()) != null) {
+			final Leak leak = (Leak) r;
+			if (tracked.remove(leak)) {
+				leaked.incrementAndGet();
+				inUse.decrementAndGet();
+				bytesInUse.addAndGet(-leak.capacity);
+			}
+		}
+	}
+
+	/**
+	 * The memory behind a PooledBuffer and its slices, with their shared
+	 * reference count. A new one for each acquire, so a stale handle can
+	 * never release memory since lent to someone else.
+	 */
+	static final class Chunk extends AtomicInteger {
+
+		Chunk(BufferPool pool, ByteBuffer memory, int sizeClass) {
+			super(1);
+			this.pool = pool;
+			this.memory = memory;
+			this.sizeClass = sizeClass;
+		}
+
+		void retain() {
+			for (;;) {
+				final int n = get();
+				if (n <= 0)
+					throw new IllegalStateException("Buffer already released");
+				if (compareAndSet(n, n + 1))
+					return;
+			}
+		}
+
+		boolean release() {
+			for (;;) {
+				final int n = get();
+				if (n <= 0)
+					throw new IllegalStateException("Buffer already released");
+				if (compareAndSet(n, n - 1)) {
+					if (n > 1)
+						return false;
+					pool.give(this);
+					return true;
+				}
+			}
+		}
+
+		int refCount() {
+			return get();
+		}
+
+		private final BufferPool pool;
+		private final ByteBuffer memory;
+		private final int sizeClass;
+		private Leak leak;
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Enqueued once its Chunk is unreachable; if it is still tracked then, the
+	 * chunk was never released.
+	 */
+	private static final class Leak extends PhantomReference<Chunk> {
+
+		Leak(Chunk chunk, ReferenceQueue<Chunk> q) {
+			super(chunk, q);
+			capacity = chunk.memory.capacity();
+		}
+
+		private final int capacity;
+	}
+
+	/**
+	 * A thread's own free buffers, a stack per size class, holding up to
+	 * CACHE_BYTES of each class but always at least one.
+	 */
+	private static final class Cache {
+
+		Cache() {
+			for (int c = 0; c < CLASSES; c++) {
+				final int size = 1 << (c + MIN_CLASS_SHIFT);
+				buffers[c] = new ByteBuffer[Math.max(1, Math.min(CACHE_DEPTH,
+						CACHE_BYTES / size))];
+			}
+		}
+
+		final ByteBuffer[][] buffers = new ByteBuffer[CLASSES][];
+		final int[] counts = new int[CLASSES];
+	}
+
+	private static final int CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+	private static final int CACHE_BYTES = 256 * 1024;
+	private static final int CACHE_DEPTH = 32;
+
+	private final int slabSize;
+	private final boolean detectLeaks;
+	private final Queue<ByteBuffer>[] free;
+	private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+		@Override
+		protected Cache initialValue() {
+			return new Cache();
+		}
+	};
+
+	private final ReferenceQueue<Chunk> collected = new ReferenceQueue<Chunk>();
+	private final Set<Leak> tracked = Collections
+			.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong inUse = new AtomicLong();
+	private final AtomicLong bytesInUse = new AtomicLong();
+	private final AtomicLong slabs = new AtomicLong();
+	private final AtomicLong slabBytes = new AtomicLong();
+	private final AtomicLong unpooled = new AtomicLong();
+	private final AtomicLong leaked = new AtomicLong();
+}
@@ -0,0 +1,114 @@
+package net.evilmonkeylabs.mag7.bson.io;
+
+/**
+ *      Copyright (C) 2008-2011 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A buffer on loan from a {@link BufferPool}, reference counted. It starts
+ * with one reference, held by whoever acquired it; retain() adds one for each
+ * further holder, and each holder calls release() once when done. The last
+ * release hands the memory back to the pool, after which neither this handle
+ * nor any ByteBuffer taken from it may be touched.
+ *
+ * slice() shares the count: a slice takes a reference of its own, so the
+ * memory stays on loan until the original and every slice are released, in
+ * any order, from any thread.
+ */
+public final class PooledBuffer {
+
+	PooledBuffer(BufferPool.Chunk chunk, ByteBuffer view, int size) {
+		this.chunk = chunk;
+		this.view = view;
+		this.size = size;
+	}
+
+	/**
+	 * @return this handle's little endian view of the memory. It is the same
+	 *         ByteBuffer on every call, so its position and limit are the
+	 *         caller's to manage.
+	 */
+	public ByteBuffer buffer() {
+		return view;
+	}
+
+	/**
+	 * @return the number of bytes asked for; the view's capacity may be more
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a reference.
+	 *
+	 * @return this handle
+	 * @throws IllegalStateException
+	 *             if it has already been released
+	 */
+	public PooledBuffer retain() {
+		chunk.retain();
+		return this;
+	}
+
+	/**
+	 * Drops a reference, returning the memory to the pool if it was the last.
+	 *
+	 * @return true if the memory went back to the pool
+	 * @throws IllegalStateException
+	 *             if every reference has already been released
+	 */
+	public boolean release() {
+		return chunk.release();
+	}
+
+	/**
+	 * @return the number of references still held, shared with any slices
+	 */
+	public int refCount() {
+		return chunk.refCount();
+	}
+
+	/**
+	 * Takes a new reference to length bytes from offset, e.g. to hand one
+	 * document out of a batch to a consumer which will release it on its own
+	 * schedule.
+	 *
+	 * @return a handle whose view is indexed from 0, and which must be
+	 *         released as well as this one
+	 */
+	public PooledBuffer slice(int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > view.capacity())
+			throw new IndexOutOfBoundsException("Slice of " + length
+					+ " bytes at " + offset + " of " + view.capacity());
+		chunk.retain();
+		final ByteBuffer d = view.duplicate();
+		d.limit(offset + length).position(offset);
+		return new PooledBuffer(chunk, d.slice().order(ByteOrder.LITTLE_ENDIAN),
+				length);
+	}
+
+	@Override
+	public String toString() {
+		return "PooledBuffer{" + size + " bytes, refCount=" + refCount() + "}";
+	}
+
+	private final BufferPool.Chunk chunk;
+	private final ByteBuffer view;
+	private final int size;
+}
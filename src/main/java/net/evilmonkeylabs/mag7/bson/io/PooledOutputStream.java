@@ -0,0 +1,140 @@
+package net.evilmonkeylabs.mag7.bson.io;
+
+/**
+ *      Copyright (C) 2008-2011 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An <code>OutputStream</code> which never runs out of room: it writes into a
+ * chain of buffers borrowed from a {@link BufferPool}, borrowing another, twice
+ * the size of the last up to the pool's largest size class, each time one
+ * fills. Nothing already written is ever copied.
+ * <p/>
+ * buffers() returns the bytes written as a sequence of buffers ready for a
+ * gathering write. Closing the stream releases the chain back to the pool, so
+ * those buffers mustn't be used once it is closed.
+ */
+public class PooledOutputStream extends OutputStream {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4096;
+
+	public PooledOutputStream(BufferPool pool) {
+		this(pool, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param firstSegmentSize
+	 *            size of the first buffer to borrow
+	 */
+	public PooledOutputStream(BufferPool pool, int firstSegmentSize) {
+		_pool = pool;
+		_nextSize = firstSegmentSize;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * @return little endian views of the bytes written, one per segment, each
+	 *         positioned at 0 and limited to the bytes written in it
+	 */
+	public ByteBuffer[] buffers() {
+		final ByteBuffer[] out = new ByteBuffer[_segments.size()];
+		for (int i = 0; i < out.length; i++) {
+			final ByteBuffer b = _segments.get(i).buffer().duplicate();
+			b.flip();
+			out[i] = b.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return out;
+	}
+
+	// ----------------------------------------------------------------------------
+	// OutputStream
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Releases the segments back to the pool.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (_isClosed)
+			return;
+		_isClosed = true;
+		for (PooledBuffer b : _segments)
+			b.release();
+		_segments.clear();
+		_cur = null;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (_isClosed)
+			throw new IOException("stream is closed");
+
+		while (len > 0) {
+			if (_cur == null || !_cur.hasRemaining())
+				nextSegment();
+			final int n = Math.min(len, _cur.remaining());
+			_cur.put(b, off, n);
+			off += n;
+			len -= n;
+			_size += n;
+		}
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (_isClosed)
+			throw new IOException("stream is closed");
+
+		if (_cur == null || !_cur.hasRemaining())
+			nextSegment();
+		_cur.put((byte) b);
+		_size++;
+	}
+
+	private void nextSegment() {
+		final PooledBuffer b = _pool.acquire(_nextSize);
+		_segments.add(b);
+		_cur = b.buffer();
+		// use the whole size class, not just what was asked for
+		_cur.limit(_cur.capacity());
+		_nextSize = Math.min(_cur.capacity() * 2,
+				1 << BufferPool.MAX_CLASS_SHIFT);
+	}
+
+	private final BufferPool _pool;
+	private final List<PooledBuffer> _segments = new ArrayList<PooledBuffer>();
+	private ByteBuffer _cur;
+	private int _nextSize;
+	private int _size;
+	private boolean _isClosed;
+}
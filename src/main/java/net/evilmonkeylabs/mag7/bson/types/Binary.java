@@ -0,0 +1,75 @@
+package net.evilmonkeylabs.mag7.bson.types;
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary data along with its BSON subtype, for values which should keep their
+ * subtype through a read and write; a plain ByteBuffer is written back as
+ * generic binary.
+ */
+public class Binary {
+
+	/**
+	 * @param subType
+	 *            the binary Subtype from the BSON Spec
+	 * @param data
+	 *            the payload, from its position to its limit
+	 */
+	public Binary(byte subType, ByteBuffer data) {
+		_subType = subType;
+		_data = data;
+	}
+
+	public byte getSubType() {
+		return _subType;
+	}
+
+	/**
+	 * @return a view of the payload, with a position of its own
+	 */
+	public ByteBuffer getData() {
+		return _data.duplicate();
+	}
+
+	public int length() {
+		return _data.remaining();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Binary))
+			return false;
+
+		Binary b = (Binary) o;
+		return _subType == b._subType && _data.equals(b._data);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * _subType + _data.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "Binary{subType=" + _subType + ", length=" + length() + "}";
+	}
+
+	final byte _subType;
+	final ByteBuffer _data;
+}
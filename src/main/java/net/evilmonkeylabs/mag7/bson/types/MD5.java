@@ -0,0 +1,96 @@
+package net.evilmonkeylabs.mag7.bson.types;
+
+/**
+ *      Copyright (C) 2008 10gen Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An MD5 hash, as stored in BSON Binary subtype 0x05. The 16 bytes are held as
+ * two big endian longs.
+ */
+public class MD5 implements Serializable {
+
+	private static final long serialVersionUID = 8431563470386513307L;
+
+	/**
+	 * @param bytes
+	 *            a buffer holding the 16 bytes of the hash from index 0
+	 */
+	public MD5(ByteBuffer bytes) {
+		if (bytes.limit() < 16)
+			throw new IllegalArgumentException("need 16 bytes");
+		final ByteBuffer bb = bytes.duplicate().order(ByteOrder.BIG_ENDIAN);
+		_hi = bb.getLong(0);
+		_lo = bb.getLong(8);
+	}
+
+	public MD5(byte[] b) {
+		this(ByteBuffer.wrap(b));
+	}
+
+	public MD5(long hi, long lo) {
+		_hi = hi;
+		_lo = lo;
+	}
+
+	/**
+	 * @return the first 8 bytes of the hash, big endian
+	 */
+	public long getHigh() {
+		return _hi;
+	}
+
+	/**
+	 * @return the last 8 bytes of the hash, big endian
+	 */
+	public long getLow() {
+		return _lo;
+	}
+
+	public byte[] toByteArray() {
+		byte b[] = new byte[16];
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		// by default BB is big endian like we need
+		bb.putLong(_hi);
+		bb.putLong(_lo);
+		return b;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof MD5))
+			return false;
+
+		MD5 m = (MD5) o;
+		return _hi == m._hi && _lo == m._lo;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (_hi ^ (_hi >>> 32) ^ _lo ^ (_lo >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", _hi, _lo);
+	}
+
+	final long _hi;
+	final long _lo;
+}
@@ -69,15 +69,9 @@ public class ObjectID implements Comparable<ObjectID>, java.io.Serializable {
 			return false;
 
 		for (int i = 0; i < len; i++) {
-			char c = s.charAt(i);
-			if (c >= '0' && c <= '9')
-				continue;
-			if (c >= 'a' && c <= 'f')
-				continue;
-			if (c >= 'A' && c <= 'F')
-				continue;
-
-			return false;
+			final char c = s.charAt(i);
+			if (c >= HEX_VALUES.length || HEX_VALUES[c] < 0)
+				return false;
 		}
 
 		return true;
@@ -110,7 +104,7 @@ public class ObjectID implements Comparable<ObjectID>, java.io.Serializable {
 	}
 
 	public ObjectID(Date time) {
-		this(time, _genmachine, _nextInc.getAndIncrement());
+		this(time, _genmachine, nextInc());
 	}
 
 	public ObjectID(Date time, int inc) {
@@ -144,24 +138,18 @@ public class ObjectID implements Comparable<ObjectID>, java.io.Serializable {
 		if (babble)
 			s = babbleToMongod(s);
 
-		byte b[] = new byte[12];
-		for (int i = 0; i < b.length; i++) {
-			b[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
-		}
-		ByteBuffer bb = ByteBuffer.wrap(b);
-		_time = bb.getInt();
-		_machine = bb.getInt();
-		_inc = bb.getInt();
+		_time = parseHex(s, 0);
+		_machine = parseHex(s, 8);
+		_inc = parseHex(s, 16);
 		_new = false;
 	}
 
 	public ObjectID(byte[] b) {
 		if (b.length != 12)
 			throw new IllegalArgumentException("need 12 bytes");
-		ByteBuffer bb = ByteBuffer.wrap(b);
-		_time = bb.getInt();
-		_machine = bb.getInt();
-		_inc = bb.getInt();
+		_time = getIntBE(b, 0);
+		_machine = getIntBE(b, 4);
+		_inc = getIntBE(b, 8);
 		_new = false;
 	}
 
@@ -188,7 +176,7 @@ public class ObjectID implements Comparable<ObjectID>, java.io.Serializable {
 	public ObjectID() {
 		_time = (int) (System.currentTimeMillis() / 1000);
 		_machine = _genmachine;
-		_inc = _nextInc.getAndIncrement();
+		_inc = nextInc();
 		_new = true;
 	}
 
@@ -219,31 +207,60 @@ public class ObjectID implements Comparable<ObjectID>, java.io.Serializable {
 	}
 
 	public String toStringMongod() {
-		byte b[] = toByteArray();
-
-		StringBuilder buf = new StringBuilder(24);
+		final char[] c = new char[24];
+		toHex(c, 0);
+		return new String(c);
+	}
 
-		for (int i = 0; i < b.length; i++) {
-			int x = b[i] & 0xFF;
-			String s = Integer.toHexString(x);
-			if (s.length() == 1)
-				buf.append("0");
-			buf.append(s);
-		}
+	/**
+	 * Writes the 24 character lower case hex form into dst at offset.
+	 */
+	public void toHex(char[] dst, int offset) {
+		putHex(dst, offset, _time);
+		putHex(dst, offset + 8, _machine);
+		putHex(dst, offset + 16, _inc);
+	}
 
-		return buf.toString();
+	/**
+	 * Writes the 24 character lower case hex form into dst at offset, as
+	 * ASCII bytes.
+	 */
+	public void toHex(byte[] dst, int offset) {
+		putHex(dst, offset, _time);
+		putHex(dst, offset + 8, _machine);
+		putHex(dst, offset + 16, _inc);
 	}
 
 	public byte[] toByteArray() {
-		byte b[] = new byte[12];
-		ByteBuffer bb = ByteBuffer.wrap(b);
-		// by default BB is big endian like we need
-		bb.putInt(_time);
-		bb.putInt(_machine);
-		bb.putInt(_inc);
+		final byte b[] = new byte[12];
+		putIntBE(b, 0, _time);
+		putIntBE(b, 4, _machine);
+		putIntBE(b, 8, _inc);
 		return b;
 	}
 
+	/**
+	 * Writes the 12 bytes of the id, big endian as BSON stores them, at the
+	 * buffer's position, whatever the buffer's byte order.
+	 */
+	public void writeTo(ByteBuffer buf) {
+		final boolean swap = buf.order() != ByteOrder.BIG_ENDIAN;
+		buf.putInt(swap ? Integer.reverseBytes(_time) : _time);
+		buf.putInt(swap ? Integer.reverseBytes(_machine) : _machine);
+		buf.putInt(swap ? Integer.reverseBytes(_inc) : _inc);
+	}
+
+	/**
+	 * Writes the 12 bytes of the id, big endian, at the given index, without
+	 * moving the buffer's position.
+	 */
+	public void writeTo(ByteBuffer buf, int index) {
+		final boolean swap = buf.order() != ByteOrder.BIG_ENDIAN;
+		buf.putInt(index, swap ? Integer.reverseBytes(_time) : _time);
+		buf.putInt(index + 4, swap ? Integer.reverseBytes(_machine) : _machine);
+		buf.putInt(index + 8, swap ? Integer.reverseBytes(_inc) : _inc);
+	}
+
 	static String _pos(String s, int p) {
 		return s.substring(p * 2, (p * 2) + 2);
 	}
@@ -346,10 +363,11 @@ public class ObjectID implements Comparable<ObjectID>, java.io.Serializable {
 	}
 
 	/**
-	 * Gets the current value of the auto increment
+	 * Gets the next value of the auto increment for the calling thread
 	 */
 	public static int getCurrentInc() {
-		return _nextInc.get();
+		final int stripe = stripe();
+		return (_nextInc.get(stripe * PAD) << STRIPE_BITS) | stripe;
 	}
 
 	final int _time;
@@ -367,8 +385,91 @@ public class ObjectID implements Comparable<ObjectID>, java.io.Serializable {
 		return z;
 	}
 
-	private static AtomicInteger _nextInc = new AtomicInteger(
-			(new java.util.Random()).nextInt());
+	// ---- hex ----
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Value of each hex digit, by character; -1 for anything else.
+	 */
+	private static final byte[] HEX_VALUES = new byte['f' + 1];
+	static {
+		Arrays.fill(HEX_VALUES, (byte) -1);
+		for (int i = 0; i < 10; i++)
+			HEX_VALUES['0' + i] = (byte) i;
+		for (int i = 0; i < 6; i++) {
+			HEX_VALUES['a' + i] = (byte) (10 + i);
+			HEX_VALUES['A' + i] = (byte) (10 + i);
+		}
+	}
+
+	/**
+	 * Parses the 8 hex digits at offset; the string is already validated.
+	 */
+	private static int parseHex(String s, int offset) {
+		int x = 0;
+		for (int i = offset; i < offset + 8; i++)
+			x = (x << 4) | HEX_VALUES[s.charAt(i)];
+		return x;
+	}
+
+	private static void putHex(char[] dst, int offset, int x) {
+		for (int i = offset + 7; i >= offset; i--) {
+			dst[i] = HEX_DIGITS[x & 0xF];
+			x >>>= 4;
+		}
+	}
+
+	private static void putHex(byte[] dst, int offset, int x) {
+		for (int i = offset + 7; i >= offset; i--) {
+			dst[i] = (byte) HEX_DIGITS[x & 0xF];
+			x >>>= 4;
+		}
+	}
+
+	private static int getIntBE(byte[] b, int i) {
+		return (b[i] << 24) | ((b[i + 1] & 0xFF) << 16)
+				| ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+	}
+
+	private static void putIntBE(byte[] b, int i, int x) {
+		b[i] = (byte) (x >>> 24);
+		b[i + 1] = (byte) (x >>> 16);
+		b[i + 2] = (byte) (x >>> 8);
+		b[i + 3] = (byte) x;
+	}
+
+	// ---- generation ----
+
+	/*
+	 * Rather than every thread contending on one counter, there are STRIPES
+	 * counters and threads are spread across them by id. Each stripe hands
+	 * out increments with its own number in the low bits, so increments are
+	 * still unique across stripes (until a stripe wraps, after 2^28 ids).
+	 * Ids from one thread increase; ids from different threads no longer
+	 * interleave in creation order. Counters are PAD ints apart so that they
+	 * don't share a cache line.
+	 */
+	private static final int STRIPE_BITS = 4;
+	private static final int STRIPES = 1 << STRIPE_BITS;
+	private static final int PAD = 16;
+
+	private static final AtomicIntegerArray _nextInc = new AtomicIntegerArray(
+			STRIPES * PAD);
+	static {
+		final Random r = new Random();
+		for (int i = 0; i < STRIPES; i++)
+			_nextInc.set(i * PAD, r.nextInt());
+	}
+
+	private static int stripe() {
+		return (int) Thread.currentThread().getId() & (STRIPES - 1);
+	}
+
+	private static int nextInc() {
+		final int stripe = stripe();
+		return (_nextInc.getAndIncrement(stripe * PAD) << STRIPE_BITS) | stripe;
+	}
 
 	private static final int _genmachine;
 
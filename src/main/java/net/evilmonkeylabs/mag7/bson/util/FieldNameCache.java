@@ -0,0 +1,152 @@
+package net.evilmonkeylabs.mag7.bson.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Symbol table for field names. Maps the raw bytes of a field name to one
+ * canonical String, so that documents from the same collection share their key
+ * instances rather than each decoding their own.
+ *
+ * Lookups hash and compare the encoded bytes directly; nothing is decoded
+ * unless the name is missing. The table is a fixed number of direct mapped
+ * slots, and a newcomer simply replaces whatever shared its slot, so memory is
+ * bounded no matter what keys arrive. Names longer than the configured maximum
+ * are never cached.
+ *
+ * Entries are immutable, so one cache can safely be shared between threads;
+ * the worst a race does is lose an entry.
+ */
+public class FieldNameCache {
+
+	public static final int DEFAULT_SLOTS = 1024;
+	public static final int DEFAULT_MAX_NAME_LENGTH = 64;
+
+	public FieldNameCache() {
+		this(DEFAULT_SLOTS, DEFAULT_MAX_NAME_LENGTH);
+	}
+
+	/**
+	 * @param slots
+	 *            number of table slots, rounded up to a power of two
+	 * @param maxNameLength
+	 *            longest name, in encoded bytes, which will be cached
+	 * @throws IllegalArgumentException
+	 *             if slots is not between 1 and 2^30
+	 */
+	public FieldNameCache(int slots, int maxNameLength) {
+		if (slots <= 0 || slots > 1 << 30)
+			throw new IllegalArgumentException(
+					"Slots must be between 1 and 2^30, not " + slots);
+		int n = 1;
+		while (n < slots)
+			n <<= 1;
+		table = new Entry[n];
+		mask = n - 1;
+		this.maxNameLength = maxNameLength;
+	}
+
+	/**
+	 * @return the cache shared by readers which haven't been given their own
+	 */
+	public static FieldNameCache getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Looks up a field name by its encoded bytes.
+	 *
+	 * @param buf
+	 *            the buffer holding the name
+	 * @param offset
+	 *            index of the first byte of the name
+	 * @param length
+	 *            length of the name in bytes, not counting the NUL
+	 * @return the canonical String, or null if it isn't cached
+	 */
+	public String get(ByteBuffer buf, int offset, int length) {
+		if (length > maxNameLength)
+			return null;
+		final int h = hash(buf, offset, length);
+		final Entry e = table[h & mask];
+		if (e != null && e.hash == h && e.matches(buf, offset, length))
+			return e.name;
+		return null;
+	}
+
+	/**
+	 * Adds a newly decoded field name, replacing any name in the same slot.
+	 *
+	 * @param name
+	 *            the decoded form of the bytes at offset
+	 * @return the canonical String for the name
+	 */
+	public String put(ByteBuffer buf, int offset, int length, String name) {
+		if (length > maxNameLength)
+			return name;
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = buf.get(offset + i);
+		final int h = hash(buf, offset, length);
+		table[h & mask] = new Entry(h, bytes, name);
+		return name;
+	}
+
+	/**
+	 * Drops every cached name.
+	 */
+	public void clear() {
+		for (int i = 0; i < table.length; i++)
+			table[i] = null;
+	}
+
+	protected int hash(ByteBuffer buf, int offset, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++)
+			h = 31 * h + buf.get(offset + i);
+		return h ^ (h >>> 16);
+	}
+
+	static final class Entry {
+		Entry(int hash, byte[] bytes, String name) {
+			this.hash = hash;
+			this.bytes = bytes;
+			this.name = name;
+		}
+
+		boolean matches(ByteBuffer buf, int offset, int length) {
+			if (bytes.length != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (bytes[i] != buf.get(offset + i))
+					return false;
+			}
+			return true;
+		}
+
+		final int hash;
+		final byte[] bytes;
+		final String name;
+	}
+
+	private final Entry[] table;
+	private final int mask;
+	private final int maxNameLength;
+
+	private static final FieldNameCache DEFAULT = new FieldNameCache();
+}
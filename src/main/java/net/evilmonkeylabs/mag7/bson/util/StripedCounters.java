@@ -0,0 +1,104 @@
+package net.evilmonkeylabs.mag7.bson.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * A fixed set of counters which many threads can add to at once without
+ * contending on them. Each counter is kept as a number of stripes, and a
+ * thread adds to the stripe its id hashes to; get() sums the stripes. A
+ * stripe holds one copy of every counter, padded out to whole cache lines,
+ * so threads on different stripes never share a line, and a thread adding to
+ * several counters, as for one event, touches just one row.
+ *
+ * Sums are not atomic snapshots: adds made while get() runs may or may not be
+ * counted, as with any statistics read while they are being gathered.
+ */
+public final class StripedCounters {
+
+	/**
+	 * @param counters
+	 *            the number of counters, indexed from 0
+	 */
+	public StripedCounters(int counters) {
+		this.counters = counters;
+		// whole 64 byte lines per row, plus one to keep rows apart
+		row = ((counters + 7) & ~7) + 8;
+		int n = 1;
+		while (n < Runtime.getRuntime().availableProcessors() * 2 && n < MAX_STRIPES)
+			n <<= 1;
+		mask = n - 1;
+		cells = new AtomicLongArray(n * row);
+	}
+
+	/**
+	 * @return the calling thread's stripe, to hand to add() for a series of
+	 *         adds
+	 */
+	public int stripe() {
+		final long id = Thread.currentThread().getId();
+		return ((int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask) * row;
+	}
+
+	/**
+	 * Adds to a counter on the calling thread's stripe.
+	 */
+	public void add(int counter, long x) {
+		cells.getAndAdd(stripe() + counter, x);
+	}
+
+	/**
+	 * Adds to a counter on the given stripe.
+	 */
+	public void add(int stripe, int counter, long x) {
+		cells.getAndAdd(stripe + counter, x);
+	}
+
+	/**
+	 * @return the sum of a counter's stripes
+	 */
+	public long get(int counter) {
+		long sum = 0;
+		for (int i = counter; i < cells.length(); i += row)
+			sum += cells.get(i);
+		return sum;
+	}
+
+	/**
+	 * Zeroes every counter.
+	 */
+	public void reset() {
+		for (int i = 0; i < cells.length(); i++)
+			cells.set(i, 0);
+	}
+
+	/**
+	 * @return the number of counters
+	 */
+	public int size() {
+		return counters;
+	}
+
+	private static final int MAX_STRIPES = 64;
+
+	private final int counters;
+	/** Longs per stripe. */
+	private final int row;
+	private final int mask;
+	private final AtomicLongArray cells;
+}
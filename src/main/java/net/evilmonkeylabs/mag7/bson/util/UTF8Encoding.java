@@ -11,16 +11,27 @@ package net.evilmonkeylabs.mag7.bson.util;
  */
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
 
-class UTF8Encoding {
+/**
+ * UTF-8 decoder which reuses its scratch arrays between calls. Instances are
+ * not thread safe; keep one per thread (or per reader) rather than sharing.
+ *
+ * The scratch arrays grow to fit strings of up to MAX_SCRATCH bytes; longer
+ * strings get arrays of their own, so one huge string doesn't leave every
+ * thread that decoded it holding on to a huge array.
+ */
+public class UTF8Encoding {
 
 	private static final int MIN_2_BYTES = 0x80;
 	private static final int MIN_3_BYTES = 0x800;
 	private static final int MIN_4_BYTES = 0x10000;
 	private static final int MAX_CODE_POINT = 0x10ffff;
+	private static final int MAX_SCRATCH = 64 * 1024;
 
-	private char[] decoderArray = new char[1024];
+	private char[] decoderArray = new char[256];
+	private byte[] byteArray = new byte[256];
 
 	// helper for decode
 	private final static void checkByte(int ch, int pos, int len)
@@ -91,16 +102,27 @@ class UTF8Encoding {
 	 * @throws IOException
 	 *             if something goes wrong
 	 */
-	public synchronized String decode(byte[] data, int offset, int length)
+	public String decode(byte[] data, int offset, int length)
 			throws IOException {
 		char[] cdata = decoderArray;
-		if (cdata.length < length)
-			cdata = decoderArray = new char[length];
+		if (cdata.length < length) {
+			cdata = new char[length];
+			if (length <= MAX_SCRATCH)
+				decoderArray = cdata;
+		}
 
 		int in = offset;
 		int out = 0;
 		int end = length + offset;
 
+		// ASCII fast path: copy straight across until the first byte with the
+		// high bit set, then carry on from there with the full decoder.
+		while (in < end && data[in] >= 0)
+			cdata[out++] = (char) data[in++];
+
+		if (in == end)
+			return new String(cdata, 0, out);
+
 		try {
 			while (in < end) {
 				int ch = data[in++] & 0xff;
@@ -185,4 +207,37 @@ class UTF8Encoding {
 
 		return new String(cdata, 0, out);
 	}
+
+	/**
+	 * Decodes UTF-8 from any kind of ByteBuffer, without moving its position.
+	 * Heap buffers are decoded in place; direct, mapped and read only buffers
+	 * are first bulk copied into a reusable scratch array.
+	 * 
+	 * @param data
+	 *            the buffer containing UTF8-encoded data
+	 * @param offset
+	 *            the index of the first byte in <code>data</code> to decode
+	 * @param length
+	 *            the number of bytes to decode
+	 * @return a decoded string
+	 * @throws IOException
+	 *             if something goes wrong
+	 */
+	public String decode(ByteBuffer data, int offset, int length)
+			throws IOException {
+		if (data.hasArray())
+			return decode(data.array(), data.arrayOffset() + offset, length);
+
+		byte[] bytes = byteArray;
+		if (bytes.length < length) {
+			bytes = new byte[length];
+			if (length <= MAX_SCRATCH)
+				byteArray = bytes;
+		}
+
+		final ByteBuffer src = data.duplicate();
+		src.position(offset);
+		src.get(bytes, 0, length);
+		return decode(bytes, 0, length);
+	}
 }
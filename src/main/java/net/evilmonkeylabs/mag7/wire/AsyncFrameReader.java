@@ -0,0 +1,187 @@
+package net.evilmonkeylabs.mag7.wire;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Reads whole wire protocol messages from an asynchronous channel, usually an
+ * AsynchronousSocketChannel. Each readFrame() completes with one message,
+ * issuing as many channel reads as it takes to get all of it; a read which
+ * brings in more than one message leaves the rest buffered for the next
+ * readFrame(), which then completes without touching the channel.
+ *
+ * Frames are slices of the {@link FrameDecoder}'s buffer and are only good
+ * until the next readFrame() is issued, so a completion handler should decode
+ * what it needs, e.g. with {@link Reply}, before asking for the next one.
+ *
+ * Only one readFrame() may be outstanding at a time.
+ */
+public class AsyncFrameReader {
+
+	public AsyncFrameReader(AsynchronousByteChannel channel) {
+		this(channel, new FrameDecoder());
+	}
+
+	public AsyncFrameReader(AsynchronousByteChannel channel,
+			FrameDecoder decoder) {
+		this.channel = channel;
+		this.decoder = decoder;
+	}
+
+	/**
+	 * Reads the next message. The handler is given the whole message as a
+	 * little endian buffer indexed from 0, or null if the channel reached end
+	 * of stream cleanly between messages. End of stream part way through a
+	 * message fails with an EOFException, and an invalid message length with
+	 * a BSONException.
+	 *
+	 * If the message is already buffered, the handler is called on the
+	 * calling thread before this returns; otherwise on one of the channel
+	 * group's threads. A readFrame() from within such a handler returns
+	 * straight away, and its handler is called once the first has returned,
+	 * so a run of buffered messages doesn't deepen the stack.
+	 *
+	 * @throws ReadPendingException
+	 *             if the last readFrame() hasn't completed
+	 */
+	public <A> void readFrame(A attachment,
+			CompletionHandler<ByteBuffer, ? super A> handler) {
+		if (!reading.compareAndSet(false, true))
+			throw new ReadPendingException();
+		if (delivering == Thread.currentThread()) {
+			// completing a buffered frame further up this stack: leave it to
+			// the loop in next() rather than recursing
+			pendingAttachment = attachment;
+			pendingHandler = cast(handler);
+			return;
+		}
+		next(attachment, handler);
+	}
+
+	/**
+	 * @return the decoder buffering this reader's input
+	 */
+	public FrameDecoder getDecoder() {
+		return decoder;
+	}
+
+	private <A> void next(final A attachment,
+			final CompletionHandler<ByteBuffer, ? super A> handler) {
+		Object a = attachment;
+		CompletionHandler<ByteBuffer, Object> h = cast(handler);
+		for (;;) {
+			final ByteBuffer frame;
+			try {
+				frame = decoder.nextFrame();
+			} catch (RuntimeException e) {
+				fail(e, a, h);
+				return;
+			}
+			if (frame == null) {
+				read(a, h);
+				return;
+			}
+			boolean returned = false;
+			delivering = Thread.currentThread();
+			try {
+				reading.set(false);
+				h.completed(frame, a);
+				returned = true;
+			} finally {
+				delivering = null;
+				// a handler which asked for the next frame and then threw
+				// still gets it
+				if (!returned && pendingHandler != null)
+					next(pendingAttachment, takePending());
+			}
+			if (pendingHandler == null)
+				return;
+			a = pendingAttachment;
+			h = takePending();
+		}
+	}
+
+	private CompletionHandler<ByteBuffer, Object> takePending() {
+		final CompletionHandler<ByteBuffer, Object> h = pendingHandler;
+		pendingHandler = null;
+		pendingAttachment = null;
+		return h;
+	}
+
+	/**
+	 * Issues a channel read, continuing with next() once it completes.
+	 */
+	private <A> void read(final A attachment,
+			final CompletionHandler<ByteBuffer, ? super A> handler) {
+		final ByteBuffer into;
+		try {
+			into = decoder.readBuffer();
+		} catch (RuntimeException e) {
+			fail(e, attachment, handler);
+			return;
+		}
+		channel.read(into, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer n, Void ignored) {
+				if (n < 0) {
+					if (decoder.buffered() == 0) {
+						reading.set(false);
+						handler.completed(null, attachment);
+					} else
+						fail(new EOFException("End of stream with "
+								+ decoder.buffered()
+								+ " bytes of a message read"),
+								attachment, handler);
+					return;
+				}
+				next(attachment, handler);
+			}
+
+			@Override
+			public void failed(Throwable e, Void ignored) {
+				fail(e, attachment, handler);
+			}
+		});
+	}
+
+	private <A> void fail(Throwable e, A attachment,
+			CompletionHandler<ByteBuffer, ? super A> handler) {
+		reading.set(false);
+		handler.failed(e, attachment);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <A> CompletionHandler<ByteBuffer, Object> cast(
+			CompletionHandler<ByteBuffer, ? super A> handler) {
+		return (CompletionHandler<ByteBuffer, Object>) handler;
+	}
+
+	private final AsynchronousByteChannel channel;
+	private final FrameDecoder decoder;
+	private final AtomicBoolean reading = new AtomicBoolean();
+	/** The thread completing a buffered frame, if any. */
+	private volatile Thread delivering;
+	/** A readFrame() made while delivering, for next() to carry out. */
+	private Object pendingAttachment;
+	private CompletionHandler<ByteBuffer, Object> pendingHandler;
+}
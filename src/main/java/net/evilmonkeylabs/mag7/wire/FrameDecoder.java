@@ -0,0 +1,213 @@
+package net.evilmonkeylabs.mag7.wire;
+
+import net.evilmonkeylabs.mag7.bson.io.BSONException;
+import net.evilmonkeylabs.mag7.bson.io.BufferPool;
+import net.evilmonkeylabs.mag7.bson.io.PooledBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Splits a stream of bytes into wire protocol messages. Reads land in a single
+ * direct buffer belonging to the decoder, which is compacted rather than
+ * reallocated as messages are consumed, and only grows if one message won't
+ * fit. Each message comes back as a slice of that buffer, so nothing is
+ * copied between the socket and the BSONReader.
+ *
+ * A message may arrive in any number of reads, and one read may hold any
+ * number of messages, the last of them possibly incomplete:
+ *
+ * <pre>
+ * ByteBuffer frame;
+ * while (channel.read(d.readBuffer()) &gt;= 0)
+ *     while ((frame = d.nextFrame()) != null)
+ *         handle(frame);
+ * </pre>
+ *
+ * A frame is only good until the next call to readBuffer() or feed(), which
+ * may move the bytes beneath it. Like the readers, a decoder is confined to
+ * one thread at a time.
+ *
+ * Given a {@link BufferPool}, the decoder borrows its buffer from the pool,
+ * trading up to a bigger one as needed, and must be released once done with.
+ */
+public class FrameDecoder {
+
+	/** The server's largest message: 48MB. */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 48 * 1000 * 1000;
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	public FrameDecoder() {
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            initial size of the read buffer; it grows if a single
+	 *            message won't fit
+	 * @param maxMessageSize
+	 *            largest message accepted; a longer length in a header is
+	 *            taken as corrupt input rather than a reason to grow
+	 */
+	public FrameDecoder(int bufferSize, int maxMessageSize) {
+		this(null, bufferSize, maxMessageSize);
+	}
+
+	/**
+	 * @param pool
+	 *            the pool to borrow the read buffer from, or null to allocate
+	 *            it
+	 */
+	public FrameDecoder(BufferPool pool, int bufferSize, int maxMessageSize) {
+		this.pool = pool;
+		this.maxMessageSize = maxMessageSize;
+		in = allocate(Math.max(bufferSize, MessageHeader.SIZE));
+	}
+
+	/**
+	 * Makes room for more input, dropping the messages already handed out.
+	 *
+	 * @return the buffer to read into, positioned after the bytes already
+	 *         held, with at least enough room for the rest of the message
+	 *         being waited on
+	 */
+	public ByteBuffer readBuffer() {
+		compact();
+		final int want = Math.max(MIN_READ, wanted());
+		if (in.capacity() - end < want) {
+			final PooledBuffer old = pooled;
+			final ByteBuffer bigger = allocate(Math.max(in.capacity() * 2, end
+					+ want));
+			in.limit(end).position(0);
+			bigger.put(in);
+			in = bigger;
+			if (old != null)
+				old.release();
+		}
+		in.limit(in.capacity()).position(end);
+		return in;
+	}
+
+	/**
+	 * Copies all the remaining bytes of src in, for input which didn't come
+	 * through readBuffer().
+	 */
+	public void feed(ByteBuffer src) {
+		while (src.hasRemaining()) {
+			final ByteBuffer b = readBuffer();
+			final int n = Math.min(b.remaining(), src.remaining());
+			final ByteBuffer chunk = src.duplicate();
+			chunk.limit(chunk.position() + n);
+			b.put(chunk);
+			src.position(src.position() + n);
+			end = b.position();
+		}
+	}
+
+	/**
+	 * @return the next whole message, header included, as a little endian
+	 *         slice indexed from 0; or null if it hasn't all arrived
+	 * @throws BSONException
+	 *             if a message length is out of range
+	 */
+	public ByteBuffer nextFrame() {
+		// bytes read straight into readBuffer() end at its position
+		end = in.position();
+		if (end - cursor < MessageHeader.SIZE)
+			return null;
+		final int len = in.getInt(cursor);
+		if (len < MessageHeader.SIZE || len > maxMessageSize)
+			throw new BSONException("Invalid message length " + len
+					+ " at stream offset " + (base + cursor));
+		if (end - cursor < len)
+			return null;
+		final ByteBuffer frame = in.duplicate();
+		frame.limit(cursor + len).position(cursor);
+		cursor += len;
+		return frame.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return the number of bytes held which haven't been handed out as
+	 *         frames yet
+	 */
+	public int buffered() {
+		return end - cursor;
+	}
+
+	/**
+	 * Gives a pooled buffer back to the pool. The decoder, and any frames from
+	 * it, can't be used afterwards.
+	 */
+	public void release() {
+		if (pooled != null) {
+			pooled.release();
+			pooled = null;
+			in = null;
+		}
+	}
+
+	private ByteBuffer allocate(int size) {
+		if (pool == null)
+			return ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+		pooled = pool.acquire(size);
+		final ByteBuffer b = pooled.buffer();
+		b.limit(b.capacity());
+		return b;
+	}
+
+	/**
+	 * @return bytes still needed to complete the message being waited on
+	 */
+	private int wanted() {
+		if (end - cursor < MessageHeader.SIZE)
+			return MessageHeader.SIZE - (end - cursor);
+		final int len = in.getInt(cursor);
+		if (len < MessageHeader.SIZE || len > maxMessageSize)
+			return 0;
+		return len - (end - cursor);
+	}
+
+	private void compact() {
+		end = in.position();
+		if (cursor == 0)
+			return;
+		in.limit(end).position(cursor);
+		in.compact();
+		base += cursor;
+		end -= cursor;
+		cursor = 0;
+	}
+
+	/** Smallest read worth making room for. */
+	private static final int MIN_READ = 4096;
+
+	private final BufferPool pool;
+	private final int maxMessageSize;
+	private ByteBuffer in;
+	/** The pool's handle on in, if it was borrowed. */
+	private PooledBuffer pooled;
+	/** Stream offset of in[0], for error messages. */
+	private long base = 0;
+	/** Start of the next message. */
+	private int cursor = 0;
+	/** End of the bytes read. */
+	private int end = 0;
+}
@@ -0,0 +1,104 @@
+package net.evilmonkeylabs.mag7.wire;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * The 16 byte header which starts every wire protocol message: its total
+ * length, the sender's id for it, the id of the request it answers, and its
+ * OpCode. All four are little endian int32s.
+ */
+public final class MessageHeader {
+
+	/** Encoded size of a header. */
+	public static final int SIZE = 16;
+
+	public MessageHeader(int messageLength, int requestID, int responseTo,
+			int opCode) {
+		this.messageLength = messageLength;
+		this.requestID = requestID;
+		this.responseTo = responseTo;
+		this.opCode = opCode;
+	}
+
+	/**
+	 * Reads a header out of a buffer, whatever the buffer's byte order.
+	 *
+	 * @param offset
+	 *            index of the header's first byte
+	 */
+	public static MessageHeader read(ByteBuffer buf, int offset) {
+		final boolean swap = buf.order() != ByteOrder.LITTLE_ENDIAN;
+		return new MessageHeader(getInt(buf, offset, swap), getInt(buf,
+				offset + 4, swap), getInt(buf, offset + 8, swap), getInt(buf,
+				offset + 12, swap));
+	}
+
+	/**
+	 * Writes the header at the buffer's position, little endian whatever the
+	 * buffer's byte order, and moves the position past it.
+	 */
+	public void writeTo(ByteBuffer buf) {
+		final boolean swap = buf.order() != ByteOrder.LITTLE_ENDIAN;
+		buf.putInt(swap ? Integer.reverseBytes(messageLength) : messageLength);
+		buf.putInt(swap ? Integer.reverseBytes(requestID) : requestID);
+		buf.putInt(swap ? Integer.reverseBytes(responseTo) : responseTo);
+		buf.putInt(swap ? Integer.reverseBytes(opCode) : opCode);
+	}
+
+	/**
+	 * @return the length of the whole message, this header included
+	 */
+	public int getMessageLength() {
+		return messageLength;
+	}
+
+	public int getRequestID() {
+		return requestID;
+	}
+
+	/**
+	 * @return the requestID of the message this one answers; 0 for requests
+	 */
+	public int getResponseTo() {
+		return responseTo;
+	}
+
+	public int getOpCode() {
+		return opCode;
+	}
+
+	@Override
+	public String toString() {
+		final OpCode op = OpCode.forCode(opCode);
+		return "MessageHeader{length=" + messageLength + ", requestID="
+				+ requestID + ", responseTo=" + responseTo + ", opCode="
+				+ (op == null ? String.valueOf(opCode) : op.toString()) + "}";
+	}
+
+	private static int getInt(ByteBuffer buf, int i, boolean swap) {
+		final int v = buf.getInt(i);
+		return swap ? Integer.reverseBytes(v) : v;
+	}
+
+	private final int messageLength;
+	private final int requestID;
+	private final int responseTo;
+	private final int opCode;
+}
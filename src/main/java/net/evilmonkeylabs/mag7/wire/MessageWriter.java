@@ -0,0 +1,113 @@
+package net.evilmonkeylabs.mag7.wire;
+
+import net.evilmonkeylabs.mag7.bson.BSONWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Encodes request messages into a ByteBuffer, from its position, documents
+ * going through a {@link BSONWriter} on the same buffer. Each put writes a
+ * whole message, header included, with a requestID of 0 for the connection
+ * sending it to fill in.
+ *
+ * As with BSONWriter, running out of room raises a BufferOverflowException.
+ */
+public class MessageWriter {
+
+	/** Query flags for putQuery. */
+	public static final int TAILABLE_CURSOR = 2;
+	public static final int SLAVE_OK = 4;
+	public static final int NO_CURSOR_TIMEOUT = 16;
+	public static final int AWAIT_DATA = 32;
+	/**
+	 * Streams every batch without waiting for getMores. Not supported by
+	 * {@link PipelinedConnection}, which expects one reply per request.
+	 */
+	public static final int EXHAUST = 64;
+	public static final int PARTIAL = 128;
+
+	public MessageWriter(final ByteBuffer _buf) {
+		writer = new BSONWriter(_buf);
+		buf = writer.buffer();
+		swap = buf.order() != ByteOrder.LITTLE_ENDIAN;
+	}
+
+	/**
+	 * Writes an OP_QUERY.
+	 *
+	 * @param fullCollectionName
+	 *            "database.collection"
+	 * @param fieldSelector
+	 *            the fields to return, or null for all of them
+	 * @return the length of the message
+	 */
+	public int putQuery(String fullCollectionName, int flags,
+			int numberToSkip, int numberToReturn, Map<String, ?> query,
+			Map<String, ?> fieldSelector) {
+		final int start = startMessage(OpCode.QUERY);
+		buf.putInt(swap ? Integer.reverseBytes(flags) : flags);
+		writer.putCString(fullCollectionName);
+		buf.putInt(swap ? Integer.reverseBytes(numberToSkip) : numberToSkip);
+		buf.putInt(swap ? Integer.reverseBytes(numberToReturn) : numberToReturn);
+		writer.putDocument(query);
+		if (fieldSelector != null)
+			writer.putDocument(fieldSelector);
+		return endMessage(start);
+	}
+
+	/**
+	 * Writes an OP_GET_MORE, asking for the next batch from a cursor.
+	 *
+	 * @return the length of the message
+	 */
+	public int putGetMore(String fullCollectionName, int numberToReturn,
+			long cursorID) {
+		final int start = startMessage(OpCode.GET_MORE);
+		buf.putInt(0);
+		writer.putCString(fullCollectionName);
+		buf.putInt(swap ? Integer.reverseBytes(numberToReturn) : numberToReturn);
+		buf.putLong(swap ? Long.reverseBytes(cursorID) : cursorID);
+		return endMessage(start);
+	}
+
+	/**
+	 * @return the buffer being written to
+	 */
+	public ByteBuffer buffer() {
+		return buf;
+	}
+
+	private int startMessage(OpCode op) {
+		final int start = buf.position();
+		new MessageHeader(0, 0, 0, op.code()).writeTo(buf);
+		return start;
+	}
+
+	private int endMessage(int start) {
+		final int len = buf.position() - start;
+		buf.putInt(start, swap ? Integer.reverseBytes(len) : len);
+		return len;
+	}
+
+	private final BSONWriter writer;
+	private final ByteBuffer buf;
+	private final boolean swap;
+}
@@ -0,0 +1,65 @@
+package net.evilmonkeylabs.mag7.wire;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * The opCode field of a wire protocol message header.
+ */
+public enum OpCode {
+	REPLY(1), MSG(1000), UPDATE(2001), INSERT(2002), QUERY(2004), GET_MORE(
+			2005), DELETE(2006), KILL_CURSORS(2007);
+
+	OpCode(int code) {
+		this.code = code;
+	}
+
+	/**
+	 * @return the value sent on the wire
+	 */
+	public int code() {
+		return code;
+	}
+
+	/**
+	 * @return the OpCode for a value read off the wire, or null if it isn't
+	 *         one we know
+	 */
+	public static OpCode forCode(int code) {
+		switch (code) {
+		case 1:
+			return REPLY;
+		case 1000:
+			return MSG;
+		case 2001:
+			return UPDATE;
+		case 2002:
+			return INSERT;
+		case 2004:
+			return QUERY;
+		case 2005:
+			return GET_MORE;
+		case 2006:
+			return DELETE;
+		case 2007:
+			return KILL_CURSORS;
+		default:
+			return null;
+		}
+	}
+
+	private final int code;
+}
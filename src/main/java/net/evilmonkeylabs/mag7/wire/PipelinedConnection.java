@@ -0,0 +1,384 @@
+package net.evilmonkeylabs.mag7.wire;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * Keeps any number of requests in flight on one connection, rather than
+ * waiting out a round trip for each. Every request is given a fresh requestID
+ * and remembered until the reply with that responseTo comes back; replies may
+ * arrive in any order.
+ *
+ * Sends may come from any thread. Requests are queued, and whichever send
+ * finds the channel idle starts writing: everything queued by then goes out
+ * in one gathering write, as does everything queued while that write was in
+ * progress, and so on until the queue is empty. A single read loop, started
+ * by the constructor, takes replies off the channel with a
+ * {@link FrameDecoder} and hands each to whoever is waiting for it.
+ *
+ * A read or write failure, end of stream or close() fails every request
+ * waiting, and every request sent afterwards, and closes the channel.
+ *
+ * Requests don't time out: one the server never answers stays waiting, and
+ * counted by pending(), until the connection closes or fails. A caller which
+ * gives up on a reply, say when ReplyFuture.get() times out, and doesn't
+ * expect it ever to come should close the connection.
+ *
+ * Each request gets exactly one reply, so exhaust queries, which are answered
+ * with a stream of them, are refused.
+ */
+public class PipelinedConnection implements Closeable {
+
+	public PipelinedConnection(AsynchronousSocketChannel channel) {
+		this(channel, new FrameDecoder());
+	}
+
+	public PipelinedConnection(AsynchronousSocketChannel channel,
+			FrameDecoder decoder) {
+		this.channel = channel;
+		this.decoder = decoder;
+		read();
+	}
+
+	/**
+	 * Sends a request, returning a future for its reply. The reply owns a copy
+	 * of its message, so it stays good for as long as it is needed.
+	 *
+	 * @param message
+	 *            a whole request message, from its position to its limit, e.g.
+	 *            as encoded by {@link MessageWriter}; its requestID is
+	 *            overwritten. It must not be modified until the reply
+	 *            arrives.
+	 * @throws IllegalArgumentException
+	 *             if the message is an exhaust query
+	 */
+	public ReplyFuture send(ByteBuffer message) {
+		final int id = nextRequestID();
+		final ReplyFuture future = new ReplyFuture(id);
+		enqueue(id, message, new FutureWaiter(future));
+		return future;
+	}
+
+	/**
+	 * Sends a request, calling the handler with its reply. The handler is
+	 * called on the read loop's thread, with a Reply over the connection's
+	 * read buffer: nothing is copied, but the Reply and its documents are only
+	 * good until the handler returns. The handler shouldn't block, as no more
+	 * replies are read on the connection while it runs.
+	 *
+	 * @param message
+	 *            as for {@link #send(ByteBuffer)}
+	 * @return the requestID the request was sent with
+	 */
+	public <A> int send(ByteBuffer message, A attachment,
+			CompletionHandler<Reply, ? super A> handler) {
+		final int id = nextRequestID();
+		enqueue(id, message, new HandlerWaiter<A>(attachment, handler));
+		return id;
+	}
+
+	/**
+	 * @return the number of requests sent which are still waiting for their
+	 *         replies
+	 */
+	public int pending() {
+		return waiting.size();
+	}
+
+	/**
+	 * @return true until the connection is closed or fails
+	 */
+	public boolean isOpen() {
+		return failure.get() == null;
+	}
+
+	/**
+	 * Closes the channel, failing every request still waiting with an
+	 * AsynchronousCloseException.
+	 */
+	@Override
+	public void close() {
+		fail(new AsynchronousCloseException());
+	}
+
+	private int nextRequestID() {
+		int id;
+		// 0 is responseTo in messages which aren't replies
+		while ((id = requestIDs.incrementAndGet()) == 0)
+			;
+		return id;
+	}
+
+	private void enqueue(int id, ByteBuffer message, Waiter w) {
+		final int len = getIntLE(message, 0);
+		if (len != message.remaining())
+			throw new IllegalArgumentException("Message length " + len
+					+ " doesn't match the " + message.remaining()
+					+ " bytes remaining");
+		// replies after the first to an exhaust query would be dropped
+		if (len >= MessageHeader.SIZE + 4
+				&& getIntLE(message, 12) == OpCode.QUERY.code()
+				&& (getIntLE(message, MessageHeader.SIZE) & MessageWriter.EXHAUST) != 0)
+			throw new IllegalArgumentException(
+					"Exhaust queries aren't supported on a pipelined connection");
+		message.putInt(message.position() + 4,
+				message.order() == ByteOrder.LITTLE_ENDIAN ? id : Integer
+						.reverseBytes(id));
+		waiting.put(id, w);
+		// a failure after put() may have swept the map already
+		final Throwable e = failure.get();
+		if (e != null) {
+			if (waiting.remove(id) != null)
+				w.failed(e);
+			return;
+		}
+		outbox.add(message);
+		if (writing.compareAndSet(false, true))
+			flush();
+	}
+
+	/**
+	 * @return the little endian int at offset from the message's position,
+	 *         whatever the message's byte order
+	 */
+	private static int getIntLE(ByteBuffer message, int offset) {
+		final int i = message.getInt(message.position() + offset);
+		return message.order() == ByteOrder.LITTLE_ENDIAN ? i : Integer
+				.reverseBytes(i);
+	}
+
+	/**
+	 * Writes everything queued, or as much as one gathering write takes.
+	 * Called only by whoever set writing.
+	 */
+	private void flush() {
+		for (;;) {
+			ByteBuffer b;
+			int n = 0;
+			while (n < MAX_GATHER && (b = outbox.poll()) != null)
+				batch[n++] = b;
+			if (n > 0) {
+				batchEnd = n;
+				write(0);
+				return;
+			}
+			writing.set(false);
+			// a send may have queued after the poll but before the set
+			if (outbox.isEmpty() || !writing.compareAndSet(false, true))
+				return;
+		}
+	}
+
+	private void write(int from) {
+		if (failure.get() != null)
+			return;
+		channel.write(batch, from, batchEnd - from, 0L, TimeUnit.MILLISECONDS,
+				null, writeHandler);
+	}
+
+	private final CompletionHandler<Long, Void> writeHandler = new CompletionHandler<Long, Void>() {
+		@Override
+		public void completed(Long n, Void ignored) {
+			int i = 0;
+			while (i < batchEnd && !batch[i].hasRemaining())
+				i++;
+			if (i < batchEnd) {
+				write(i);
+				return;
+			}
+			for (i = 0; i < batchEnd; i++)
+				batch[i] = null;
+			flush();
+		}
+
+		@Override
+		public void failed(Throwable e, Void ignored) {
+			fail(e);
+		}
+	};
+
+	private void read() {
+		if (failure.get() != null)
+			return;
+		try {
+			channel.read(decoder.readBuffer(), null, readHandler);
+		} catch (RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+		@Override
+		public void completed(Integer n, Void ignored) {
+			if (n < 0) {
+				fail(new EOFException("Connection closed by the server"));
+				return;
+			}
+			try {
+				ByteBuffer frame;
+				while ((frame = decoder.nextFrame()) != null)
+					dispatch(frame);
+			} catch (RuntimeException e) {
+				fail(e);
+				return;
+			}
+			read();
+		}
+
+		@Override
+		public void failed(Throwable e, Void ignored) {
+			fail(e);
+		}
+	};
+
+	private void dispatch(ByteBuffer frame) {
+		final int responseTo = frame.getInt(8);
+		final Waiter w = waiting.remove(responseTo);
+		// nobody is waiting for a reply to an unknown request
+		if (w != null)
+			w.completed(frame);
+	}
+
+	private void fail(Throwable e) {
+		if (!failure.compareAndSet(null, e))
+			return;
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+		final Iterator<Waiter> it = waiting.values().iterator();
+		while (it.hasNext()) {
+			final Waiter w = it.next();
+			it.remove();
+			try {
+				w.failed(e);
+			} catch (RuntimeException x) {
+				// the rest must still hear of the failure
+				log.log(Level.WARNING, "Failing a waiter threw", x);
+			}
+		}
+	}
+
+	/**
+	 * Whoever is waiting for a reply.
+	 */
+	private interface Waiter {
+		void completed(ByteBuffer frame);
+
+		void failed(Throwable e);
+	}
+
+	private static final class FutureWaiter implements Waiter {
+
+		FutureWaiter(ReplyFuture future) {
+			this.future = future;
+		}
+
+		@Override
+		public void completed(ByteBuffer frame) {
+			// the frame is overwritten by later reads; the future keeps a copy
+			final ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+			copy.put(frame.duplicate()).flip();
+			try {
+				future.complete(new Reply(copy));
+			} catch (RuntimeException e) {
+				future.fail(e);
+			}
+		}
+
+		@Override
+		public void failed(Throwable e) {
+			future.fail(e);
+		}
+
+		private final ReplyFuture future;
+	}
+
+	private static final class HandlerWaiter<A> implements Waiter {
+
+		HandlerWaiter(A attachment, CompletionHandler<Reply, ? super A> handler) {
+			this.attachment = attachment;
+			this.handler = handler;
+		}
+
+		@Override
+		public void completed(ByteBuffer frame) {
+			final Reply r;
+			try {
+				r = new Reply(frame);
+			} catch (RuntimeException e) {
+				failed(e);
+				return;
+			}
+			try {
+				handler.completed(r, attachment);
+			} catch (RuntimeException e) {
+				// the handler's own failure has nowhere to go but the log; it
+				// mustn't stop the read loop for everyone else
+				log.log(Level.WARNING, "Reply handler threw", e);
+			}
+		}
+
+		@Override
+		public void failed(Throwable e) {
+			try {
+				handler.failed(e, attachment);
+			} catch (RuntimeException x) {
+				log.log(Level.WARNING, "Reply handler threw", x);
+			}
+		}
+
+		private final A attachment;
+		private final CompletionHandler<Reply, ? super A> handler;
+	}
+
+	private static final Logger log = Logger.getLogger("PipelinedConnection");
+
+	/** Most messages to hand a single gathering write. */
+	private static final int MAX_GATHER = 64;
+
+	private final AsynchronousSocketChannel channel;
+	private final FrameDecoder decoder;
+	private final AtomicInteger requestIDs = new AtomicInteger();
+	private final ConcurrentMap<Integer, Waiter> waiting = new ConcurrentHashMap<Integer, Waiter>();
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicBoolean writing = new AtomicBoolean();
+	/* The write in progress, touched only by whoever set writing. */
+	private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+	private int batchEnd;
+}
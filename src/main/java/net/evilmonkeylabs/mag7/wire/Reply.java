@@ -0,0 +1,233 @@
+package net.evilmonkeylabs.mag7.wire;
+
+import net.evilmonkeylabs.mag7.bson.BSONBatchDecoder;
+import net.evilmonkeylabs.mag7.bson.BSONLimits;
+import net.evilmonkeylabs.mag7.bson.BSONReader;
+import net.evilmonkeylabs.mag7.bson.DefaultBSONDocParser;
+import net.evilmonkeylabs.mag7.bson.doc.Document;
+import net.evilmonkeylabs.mag7.bson.io.BSONException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * An OP_REPLY message: after the header, the response flags, the cursor id,
+ * the cursor position of the first document, the number of documents, and
+ * then the documents themselves, back to back.
+ *
+ * Parsing only reads the fixed fields and walks the document length
+ * prefixes; documents() slices the batch into one buffer per document, each of
+ * which can go straight to a BSONReader. The slices share the frame's bytes,
+ * so they are only good for as long as the frame is.
+ */
+public final class Reply {
+
+	/** The cursor id given in a getMore no longer exists on the server. */
+	public static final int CURSOR_NOT_FOUND = 1;
+	/** The query failed; the single document returned holds $err. */
+	public static final int QUERY_FAILURE = 2;
+	public static final int SHARD_CONFIG_STALE = 4;
+	public static final int AWAIT_CAPABLE = 8;
+
+	/** Size of the fields between the header and the first document. */
+	static final int PREFIX = 20;
+
+	/**
+	 * Parses a reply, as returned by {@link FrameDecoder#nextFrame()}.
+	 *
+	 * @param frame
+	 *            the whole message, header included, from its position to its
+	 *            limit
+	 * @throws BSONException
+	 *             if the frame isn't an OP_REPLY, or its documents don't fill
+	 *             it exactly
+	 */
+	public Reply(ByteBuffer frame) {
+		this.frame = frame.slice().order(ByteOrder.LITTLE_ENDIAN);
+		header = MessageHeader.read(this.frame, 0);
+		if (header.getOpCode() != OpCode.REPLY.code())
+			throw new BSONException("Not a reply: " + header);
+		if (header.getMessageLength() != this.frame.limit())
+			throw new BSONException("Message length "
+					+ header.getMessageLength() + " doesn't match frame size "
+					+ this.frame.limit());
+		if (this.frame.limit() < MessageHeader.SIZE + PREFIX)
+			throw new BSONException("Reply of " + this.frame.limit()
+					+ " bytes is too short");
+		responseFlags = this.frame.getInt(MessageHeader.SIZE);
+		cursorID = this.frame.getLong(MessageHeader.SIZE + 4);
+		startingFrom = this.frame.getInt(MessageHeader.SIZE + 12);
+		numberReturned = this.frame.getInt(MessageHeader.SIZE + 16);
+		if (numberReturned < 0)
+			throw new BSONException("Invalid numberReturned " + numberReturned);
+		offsets = index();
+	}
+
+	public MessageHeader getHeader() {
+		return header;
+	}
+
+	public int getResponseFlags() {
+		return responseFlags;
+	}
+
+	/**
+	 * @return true if any of the given flags are set
+	 */
+	public boolean hasFlag(int flag) {
+		return (responseFlags & flag) != 0;
+	}
+
+	/**
+	 * @return the id to pass to getMore for the next batch, or 0 if the
+	 *         cursor is exhausted
+	 */
+	public long getCursorID() {
+		return cursorID;
+	}
+
+	public int getStartingFrom() {
+		return startingFrom;
+	}
+
+	public int getNumberReturned() {
+		return numberReturned;
+	}
+
+	/**
+	 * @return a little endian slice of each document in the batch, in order,
+	 *         each indexed from 0
+	 */
+	public List<ByteBuffer> documents() {
+		final List<ByteBuffer> docs = new ArrayList<ByteBuffer>(numberReturned);
+		for (int i = 0; i < numberReturned; i++)
+			docs.add(document(i));
+		return docs;
+	}
+
+	/**
+	 * @return a little endian slice of the i'th document, indexed from 0
+	 */
+	public ByteBuffer document(int i) {
+		if (i < 0 || i >= numberReturned)
+			throw new IndexOutOfBoundsException("Document " + i + " of "
+					+ numberReturned);
+		final int start = offsets[i];
+		final ByteBuffer doc = frame.duplicate();
+		doc.limit(start + frame.getInt(start)).position(start);
+		return doc.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Decodes every document in the batch with the parser kept by
+	 * {@link DefaultBSONDocParser#decode(ByteBuffer)} for the calling thread.
+	 * The documents aren't validated, so a malformed one may fail with any
+	 * runtime exception; use {@link #decodeDocuments(BSONLimits)} for replies
+	 * from servers that aren't trusted.
+	 */
+	public List<Document> decodeDocuments() {
+		final List<Document> docs = new ArrayList<Document>(numberReturned);
+		for (int i = 0; i < numberReturned; i++)
+			docs.add(DefaultBSONDocParser.decode(document(i)));
+		return docs;
+	}
+
+	/**
+	 * Decodes every document in the batch like {@link #decodeDocuments()},
+	 * but validating each against limits.
+	 * 
+	 * @throws BSONException
+	 *             if a document is malformed or exceeds the limits
+	 */
+	public List<Document> decodeDocuments(BSONLimits limits) {
+		final List<Document> docs = new ArrayList<Document>(numberReturned);
+		for (int i = 0; i < numberReturned; i++)
+			docs.add(DefaultBSONDocParser.decode(document(i), limits));
+		return docs;
+	}
+
+	/**
+	 * Decodes every document in the batch in parallel, unless it is too small
+	 * to be worth it.
+	 */
+	public List<Document> decodeDocuments(BSONBatchDecoder decoder) {
+		return decoder.decode(documents());
+	}
+
+	/**
+	 * Decodes every document in the batch with the given reader, resetting it
+	 * onto each one in turn.
+	 */
+	public <T> List<T> decodeDocuments(BSONReader<T> reader) {
+		final List<T> docs = new ArrayList<T>(numberReturned);
+		for (int i = 0; i < numberReturned; i++) {
+			reader.reset(document(i));
+			docs.add(reader.result());
+		}
+		return docs;
+	}
+
+	/**
+	 * Walks the length prefixes, checking that numberReturned documents fill
+	 * the rest of the frame exactly.
+	 */
+	private int[] index() {
+		final int end = frame.limit();
+		// each document takes at least 5 bytes
+		if (numberReturned > (end - MessageHeader.SIZE - PREFIX) / 5)
+			throw new BSONException("Reply claims " + numberReturned
+					+ " documents but has only "
+					+ (end - MessageHeader.SIZE - PREFIX) + " bytes for them");
+		final int[] starts = new int[numberReturned];
+		int pos = MessageHeader.SIZE + PREFIX;
+		for (int i = 0; i < numberReturned; i++) {
+			if (end - pos < 4)
+				throw new BSONException("Document " + i + " of "
+						+ numberReturned + " is missing");
+			final int len = frame.getInt(pos);
+			if (len < 5 || len > end - pos)
+				throw new BSONException("Invalid document length " + len
+						+ " at offset " + pos);
+			starts[i] = pos;
+			pos += len;
+		}
+		if (pos != end)
+			throw new BSONException((end - pos)
+					+ " trailing bytes after the last document");
+		return starts;
+	}
+
+	@Override
+	public String toString() {
+		return "Reply{" + header + ", responseFlags=" + responseFlags
+				+ ", cursorID=" + cursorID + ", startingFrom=" + startingFrom
+				+ ", numberReturned=" + numberReturned + "}";
+	}
+
+	private final ByteBuffer frame;
+	private final MessageHeader header;
+	private final int responseFlags;
+	private final long cursorID;
+	private final int startingFrom;
+	private final int numberReturned;
+	/** Offset of each document within the frame. */
+	private final int[] offsets;
+}
@@ -0,0 +1,120 @@
+package net.evilmonkeylabs.mag7.wire;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Copyright (c) 2008 - 2012 10gen, Inc. <http://10gen.com>
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/**
+ * The pending reply to a request sent on a {@link PipelinedConnection}. It
+ * completes when the reply arrives, or fails when the connection does, with
+ * the cause as the ExecutionException's.
+ *
+ * Cancelling only stops the future waiting: the request has already been
+ * queued, and its reply is discarded when it arrives.
+ */
+public final class ReplyFuture implements Future<Reply> {
+
+	ReplyFuture(int requestID) {
+		this.requestID = requestID;
+	}
+
+	/**
+	 * @return the requestID the request was sent with, which its reply
+	 *         carries as responseTo
+	 */
+	public int getRequestID() {
+		return requestID;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(null, null, true);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized Reply get() throws InterruptedException,
+			ExecutionException {
+		while (!done)
+			wait();
+		return result();
+	}
+
+	@Override
+	public synchronized Reply get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			final long left = deadline - System.nanoTime();
+			if (left <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return result();
+	}
+
+	boolean complete(Reply r) {
+		return finish(r, null, false);
+	}
+
+	boolean fail(Throwable e) {
+		return finish(null, e, false);
+	}
+
+	private synchronized boolean finish(Reply r, Throwable e, boolean cancel) {
+		if (done)
+			return false;
+		reply = r;
+		failure = e;
+		cancelled = cancel;
+		done = true;
+		notifyAll();
+		return true;
+	}
+
+	private Reply result() throws ExecutionException {
+		if (cancelled)
+			throw new CancellationException();
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return reply;
+	}
+
+	@Override
+	public String toString() {
+		return "ReplyFuture{requestID=" + requestID + "}";
+	}
+
+	private final int requestID;
+	private boolean done;
+	private boolean cancelled;
+	private Reply reply;
+	private Throwable failure;
+}
@@ -0,0 +1,136 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import net.evilmonkeylabs.mag7.bson.types._
+import net.evilmonkeylabs.mag7.bson.BSONEventReader.Event
+import net.evilmonkeylabs.mag7.bson.io.BSONException
+
+@RunWith(classOf[JUnitRunner])
+class BSONEventReaderTest extends Specification {
+  def is =
+
+    "This is a specification to test the streaming BSON event reader" ^
+      p ^
+      "A BSONEventReader should" ^
+      "Ask for input before it has any" ! needsInput ^
+      "Produce the same events whether fed whole or a byte at a time" ! byteAtATime ^
+      "Decode field values" ! hasValues ^
+      "Report embedded documents and arrays as nested events" ! nesting ^
+      "Skip embedded documents without producing their events" ! skips ^
+      "Read consecutive documents from a channel" ! fromChannel ^
+      "Refuse string lengths near Int.MaxValue rather than wait for them" ! hugeString ^
+      "Refuse DBRef lengths near Int.MaxValue rather than wait for them" ! hugeDBRef ^
+      end
+
+  def needsInput = new BSONEventReader().next() must be_==(Event.NEED_INPUT)
+
+  def byteAtATime = events(javaBSON, 1) must be_==(events(javaBSON, javaBSON.limit))
+
+  def hasValues = {
+    val r = new BSONEventReader
+    r.feed(javaBSON.duplicate)
+    val values = Iterator.continually(r.next()).takeWhile(_ != Event.NEED_INPUT).collect {
+      case Event.FIELD if r.depth == 1 => r.fieldName -> r.getValue
+    }.toList
+    values must contain("_id" -> new ObjectID(oid.toString()), "int1" -> 1, "str" -> "foobarbaz", "long5" -> 5L)
+  }
+
+  def nesting = events(javaBSON, 7).dropWhile(_ != "FIELD object").take(11) must be_==(List(
+    "FIELD object", "START_DOCUMENT", "FIELD foo", "FIELD x", "END_DOCUMENT",
+    "FIELD array", "START_DOCUMENT array", "FIELD 0", "FIELD 1", "FIELD 2", "END_DOCUMENT"))
+
+  def skips = {
+    val r = new BSONEventReader
+    r.feed(javaBSON.duplicate)
+    r.next()
+    val names = Iterator.continually(r.next()).takeWhile(_ == Event.FIELD).map { _ =>
+      if (r.`type` == BSON.DOCUMENT || r.`type` == BSON.ARRAY) r.skipValue()
+      r.fieldName
+    }.toList
+    names must be_==(List("_id", "int1", "str", "object", "array", "long5"))
+  }
+
+  def fromChannel = {
+    val bytes = new java.io.ByteArrayOutputStream
+    for (i <- 1 to 3) bytes.write(javaBSON.array)
+    val channel = java.nio.channels.Channels.newChannel(new java.io.ByteArrayInputStream(bytes.toByteArray))
+    val r = new BSONEventReader(64)
+    var docs = 0
+    var done = false
+    while (!done) r.next() match {
+      case Event.NEED_INPUT => done = r.fill(channel) < 0
+      case Event.END_DOCUMENT if r.depth == 0 => docs += 1
+      case _ =>
+    }
+    docs must be_==(3)
+  }
+
+  def hugeString = eventsAfterHeader(BSON.STRING, Int.MaxValue - 2) must throwA[BSONException]
+
+  def hugeDBRef = eventsAfterHeader(BSON.DBREF, Int.MaxValue - 10) must throwA[BSONException]
+
+  /**
+   * Feeds a document whose one field, named "s", claims a length of len, and
+   * reads events until the reader asks for more than it was given.
+   */
+  def eventsAfterHeader(t: Byte, len: Int) = {
+    val doc = java.nio.ByteBuffer.allocate(32).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+    doc.putInt(32).put(t).put('s'.toByte).put(0: Byte).putInt(len)
+    doc.clear()
+    val r = new BSONEventReader(64)
+    r.feed(doc)
+    Iterator.continually(r.next()).take(4).toList
+  }
+
+  /** Feeds the document in chunks, recording the events it produces. */
+  def events(doc: java.nio.ByteBuffer, chunk: Int) = {
+    val src = doc.duplicate
+    val r = new BSONEventReader(64)
+    val out = new scala.collection.mutable.ListBuffer[String]
+    var done = false
+    while (!done) r.next() match {
+      case Event.NEED_INPUT =>
+        val c = src.duplicate
+        c.limit(math.min(src.limit, src.position + chunk))
+        src.position(c.limit)
+        r.feed(c)
+      case Event.FIELD => out += "FIELD " + r.fieldName
+      case Event.START_DOCUMENT => out += (if (r.isArray) "START_DOCUMENT array" else "START_DOCUMENT")
+      case Event.END_DOCUMENT =>
+        out += "END_DOCUMENT"
+        done = r.depth == 0
+    }
+    out.toList
+  }
+
+  // -- Setup definitions
+
+  lazy val oid = new org.bson.types.ObjectId
+
+  lazy val javaBSON = {
+    val sub = new com.mongodb.BasicDBObject
+    sub.put("foo", "bar")
+    sub.put("x", 5.23)
+
+    val lst = new java.util.ArrayList[String]
+    lst.add("foo")
+    lst.add("bar")
+    lst.add("baz")
+
+    val b = com.mongodb.BasicDBObjectBuilder.start()
+    b.append("_id", oid)
+    b.append("int1", 1)
+    b.append("str", "foobarbaz")
+    b.append("object", sub)
+    b.append("array", lst)
+    b.append("long5", 5L)
+
+    val encoder = new org.bson.BasicBSONEncoder
+
+    java.nio.ByteBuffer.wrap(encoder.encode(b.get()))
+  }
+
+}
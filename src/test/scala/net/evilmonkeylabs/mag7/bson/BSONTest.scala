@@ -41,8 +41,11 @@ class BSONTest extends Specification {
       "scoped code, code" ! hasScopedCode_Code ^
       "scoped code, scope" ! hasScopedCode_Scope ^
       "str" ! hasStr ^
+      "multi byte UTF-8 str" ! hasUTF8Str ^
       "object" ! hasSubObj ^
+      "object within an object" ! hasNestedObj ^
       "array" ! hasArray ^
+      "objects within an array" ! hasDocArray ^
       "binary" ! hasBytes ^
       "uuid" ! hasUUID ^
       end
@@ -96,11 +99,21 @@ class BSONTest extends Specification {
   def hasScopedCode_Scope = parsedBSON.get("code_scoped").asInstanceOf[CodeWScope[Document]].getScope().asScala must havePairs("foo" -> "bar", "x"-> 5.23)
   
   def hasStr = parsedBSON.get("str").asInstanceOf[String] must be_==(testStr)
+
+  def hasUTF8Str = parsedBSON.get("utf8").asInstanceOf[String] must be_==(testUTF8Str)
   
   def hasSubObj = parsedBSON.get("object").asInstanceOf[Document].asScala must havePairs("foo" -> "bar", "x" -> 5.23)
       
+  def hasNestedObj = parsedBSON.get("nested").asInstanceOf[Document].get("inner").asInstanceOf[Document].asScala must havePairs("foo" -> "bar", "x" -> 5.23)
+
   def hasArray = parsedBSON.get("array").asInstanceOf[BSONList].asScala must contain("foo", "bar", "baz", "x", "y", "z")
   
+  def hasDocArray = {
+    val l = parsedBSON.get("docarr").asInstanceOf[BSONList]
+    (l.get(0).asInstanceOf[Document].asScala must havePairs("foo" -> "bar", "x" -> 5.23)) and
+      (l.get(1).asInstanceOf[Document].get("inner").asInstanceOf[Document].get("foo") must be_==("bar"))
+  }
+  
   def hasBytes = parsedBSON.get("binary").asInstanceOf[java.nio.ByteBuffer].array() must beEqualTo(testBin.getData())
   
   def hasUUID = parsedBSON.get("uuid").asInstanceOf[java.util.UUID] must beEqualTo(testUUID)
@@ -147,6 +160,8 @@ class BSONTest extends Specification {
   lazy val testCodeWScope = new org.bson.types.CodeWScope("return x * 500;", testDoc)
 
   lazy val testStr = "foobarbaz"
+
+  lazy val testUTF8Str = "h\u00e9llo w\u00f6rld \u20ac \ud834\udd1e"
    
     
   lazy val javaBSON = {
@@ -172,9 +187,12 @@ class BSONTest extends Specification {
     b.append("code", testCode);
     b.append("code_scoped", testCodeWScope);
     b.append("str", testStr);
+    b.append("utf8", testUTF8Str);
     //b.append("ref", new com.mongodb.DBRef(_db, "testRef", test_ref_id));
     b.append("object", testDoc);
+    b.append("nested", new com.mongodb.BasicDBObject("inner", testDoc));
     b.append("array", testList);
+    b.append("docarr", java.util.Arrays.asList(testDoc, new com.mongodb.BasicDBObject("inner", testDoc)));
     b.append("binary", testBin);
     b.append("uuid", testUUID);
     b.append("regex", testRE);
@@ -0,0 +1,142 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import scala.collection.JavaConverters._
+
+import net.evilmonkeylabs.mag7.bson.doc._
+import net.evilmonkeylabs.mag7.bson.types._
+import net.evilmonkeylabs.mag7.bson.io.BSONException
+
+@RunWith(classOf[JUnitRunner])
+class BSONWriterTest extends Specification {
+  def is =
+
+    "This is a specification to test the functionality of BSONWriter" ^
+      p ^
+      "Writing BSON should" ^
+      "Be readable by the old Java driver" ^
+      "_id" ! javaHasOID ^
+      "int" ! javaHasInt ^
+      "long" ! javaHasLong ^
+      "double" ! javaHasDouble ^
+      "UTF-8 str" ! javaHasUTF8Str ^
+      "object" ! javaHasSubObj ^
+      "array" ! javaHasArray ^
+      "uuid" ! javaHasUUID ^
+      p ^
+      "Round trip through BSONReader" ^
+      "_id" ! hasOID ^
+      "str" ! hasStr ^
+      "UTF-8 str" ! hasUTF8Str ^
+      "date" ! hasDate ^
+      "tsp" ! hasTsp ^
+      "object" ! hasSubObj ^
+      "array" ! hasArray ^
+      "uuid" ! hasUUID ^
+      "code" ! hasCode ^
+      "unpaired surrogates, replaced with U+FFFD" ! hasReplacedSurrogates ^
+      p ^
+      "Leave the buffer's byte order alone" ! keepsOrder ^
+      "Not reuse an array index after an element fails" ! forgetsIndex ^
+      end
+
+  def javaHasOID = javaDoc.get("_id").toString must be_==(oid.toString)
+
+  def javaHasInt = javaDoc.get("int1500") must be_==(1500)
+
+  def javaHasLong = javaDoc.get("long5") must be_==(5L)
+
+  def javaHasDouble = javaDoc.get("double245_6289") must be_==(245.6289)
+
+  def javaHasUTF8Str = javaDoc.get("utf8") must be_==(testUTF8)
+
+  def javaHasSubObj = javaDoc.get("object").asInstanceOf[org.bson.BSONObject].get("foo") must be_==("bar")
+
+  def javaHasArray = javaDoc.get("array").asInstanceOf[java.util.List[_]].size must be_==(12)
+
+  def javaHasUUID = javaDoc.get("uuid").asInstanceOf[org.bson.types.Binary].getType must be_==(BSON.BINARY_UUID)
+
+  def keepsOrder = (written.order must be_==(java.nio.ByteOrder.BIG_ENDIAN)) and
+    (written.duplicate.order(java.nio.ByteOrder.LITTLE_ENDIAN).getInt(0) must be_==(written.limit))
+
+  def forgetsIndex = {
+    val w = new BSONWriter(java.nio.ByteBuffer.allocate(256))
+    w.startDocument()
+    (w.put("a", java.util.Arrays.asList(new Object)) must throwA[BSONException]) and
+      (w.putString(null, "x") must throwA[BSONException])
+  }
+
+  def hasOID = parsedBSON.get("_id") must beEqualTo(oid)
+
+  def hasStr = parsedBSON.get("str") must be_==("foobarbaz")
+
+  def hasUTF8Str = parsedBSON.get("utf8") must be_==(testUTF8)
+
+  def hasDate = parsedBSON.get("date") must be_==(testDate)
+
+  def hasTsp = parsedBSON.get("tsp") must be_==(testTsp)
+
+  def hasSubObj = parsedBSON.get("object").asInstanceOf[Document].asScala must havePairs("foo" -> "bar", "x" -> 5.23)
+
+  def hasArray = parsedBSON.get("array").asInstanceOf[BSONList].asScala must contain(0, 5, 11)
+
+  def hasUUID = parsedBSON.get("uuid") must be_==(testUUID)
+
+  def hasCode = parsedBSON.get("code").asInstanceOf[Code].getCode must be_==("var x = 12345;")
+
+  def hasReplacedSurrogates = parsedBSON.get("surrogates") must be_==("a\ufffdb\ufffd\ud834\udd1e\ufffd")
+
+  // -- Setup definitions
+
+  lazy val oid = new ObjectID
+
+  lazy val testDate = new java.util.Date()
+
+  lazy val testTsp = new BSONTimestamp(3600, 42)
+
+  lazy val testUUID = java.util.UUID.randomUUID()
+
+  lazy val testUTF8 = "h\u00e9llo w\u00f6rld \u20ac"
+
+  lazy val testDoc = {
+    val d = new java.util.LinkedHashMap[String, Any]
+    d.put("_id", oid)
+    d.put("int1500", 1500)
+    d.put("long5", 5L)
+    d.put("double245_6289", 245.6289)
+    d.put("str", "foobarbaz")
+    d.put("utf8", testUTF8)
+    d.put("surrogates", "a\udd1eb\ud834\ud834\udd1e\ud834")
+    d.put("date", testDate)
+    d.put("tsp", testTsp)
+    val sub = new java.util.LinkedHashMap[String, Any]
+    sub.put("foo", "bar")
+    sub.put("x", 5.23)
+    d.put("object", sub)
+    val lst = new java.util.ArrayList[Any]
+    (0 until 12).foreach(i => lst.add(i))
+    d.put("array", lst)
+    d.put("uuid", testUUID)
+    d.put("code", new Code("var x = 12345;"))
+    d.asInstanceOf[java.util.Map[String, _]]
+  }
+
+  lazy val written = {
+    val buf = java.nio.ByteBuffer.allocate(1024)
+    new BSONWriter(buf).putDocument(testDoc)
+    buf.flip()
+    buf
+  }
+
+  lazy val javaDoc = {
+    val bytes = new Array[Byte](written.remaining)
+    written.duplicate.get(bytes)
+    new org.bson.BasicBSONDecoder().readObject(bytes)
+  }
+
+  lazy val parsedBSON: Document = new DefaultBSONDocParser(written.duplicate).result()
+
+}
@@ -0,0 +1,73 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ForkJoinPool
+
+import scala.collection.JavaConverters._
+
+import net.evilmonkeylabs.mag7.bson.io.BSONException
+
+@RunWith(classOf[JUnitRunner])
+class BatchDecodeTest extends Specification {
+  def is =
+
+    "This is a specification to test decoding batches in parallel" ^
+      p ^
+      "A BSONBatchDecoder should" ^
+      "Decode a buffer of concatenated documents in order" ! concatenated ^
+      "Decode a list of slices in order" ! slices ^
+      "Decode the same documents as a serial decode" ! sameAsSerial ^
+      "Leave the batch buffer's position alone" ! leavesPosition ^
+      "Refuse a truncated batch" ! truncated ^
+      end
+
+  def concatenated = parallel.decode(batch).asScala.map(_.get("i")).toList must be_==((0 until count).toList)
+
+  def slices = {
+    val docs = BSONBatchDecoder.split(batch)
+    parallel.decode(docs).asScala.map(_.get("i")).toList must be_==((0 until count).toList)
+  }
+
+  def sameAsSerial = parallel.decode(batch) must be_==(serial.decode(batch))
+
+  def leavesPosition = {
+    val b = batch.duplicate
+    parallel.decode(b)
+    b.position must be_==(0)
+  }
+
+  def truncated = {
+    val b = batch.duplicate
+    b.limit(b.limit - 1)
+    parallel.decode(b) must throwA[BSONException]
+  }
+
+  // -- Setup definitions
+
+  val count = 5000
+
+  lazy val pool = new ForkJoinPool(4)
+
+  lazy val parallel = new BSONBatchDecoder(pool, 1024)
+
+  /** Never forks. */
+  lazy val serial = new BSONBatchDecoder(pool, Int.MaxValue)
+
+  lazy val batch = {
+    val buf = ByteBuffer.allocate(1 << 20)
+    val w = new BSONWriter(buf)
+    for (i <- 0 until count) {
+      val doc = new java.util.LinkedHashMap[String, Object]
+      doc.put("i", Int.box(i))
+      doc.put("s", "x" * (i % 200))
+      w.putDocument(doc)
+    }
+    buf.flip()
+    buf
+  }
+
+}
@@ -0,0 +1,73 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.nio.ByteBuffer
+import java.util.UUID
+
+import net.evilmonkeylabs.mag7.bson.doc._
+import net.evilmonkeylabs.mag7.bson.types._
+
+@RunWith(classOf[JUnitRunner])
+class BinaryTest extends Specification {
+  def is =
+
+    "This is a specification to test decoding binary values" ^
+      p ^
+      "Binary values should" ^
+      "Decode to copies of their own by default" ! copies ^
+      "Decode to read only views of the reader's buffer when asked" ! readOnlyViews ^
+      "Drop the extra length header of old style binaries" ! oldPayload ^
+      "Leave the fields after an old style binary intact" ! afterOld ^
+      "Decode UUIDs and MD5s" ! uuidAndMD5 ^
+      end
+
+  def copies = {
+    val bin = decoded.get("generic").asInstanceOf[ByteBuffer]
+    (bin.isReadOnly must beFalse) and (bin.array.toSeq must be_==("xyz".getBytes("UTF-8").toSeq))
+  }
+
+  def readOnlyViews = {
+    val p = new DefaultBSONDocParser(written.duplicate)
+    p.setCopyBinary(false)
+    val bin = p.result().get("generic").asInstanceOf[ByteBuffer]
+    (bin.isReadOnly must beTrue) and (bytes(bin) must be_==("xyz"))
+  }
+
+  def oldPayload = bytes(decoded.get("old").asInstanceOf[ByteBuffer]) must be_==("abcdef")
+
+  def afterOld = decoded.get("after") must be_==(7)
+
+  def uuidAndMD5 = (decoded.get("uuid") must be_==(uuid)) and (decoded.get("md5") must be_==(md5))
+
+  // -- Setup definitions
+
+  def bytes(buf: ByteBuffer) = {
+    val b = new Array[Byte](buf.remaining)
+    buf.duplicate.get(b)
+    new String(b, "UTF-8")
+  }
+
+  lazy val uuid = UUID.randomUUID
+
+  lazy val md5 = new MD5(0x1234567890abcdefL, 0x0fedcba987654321L)
+
+  lazy val written = {
+    val buf = ByteBuffer.allocate(1024)
+    val w = new BSONWriter(buf)
+    w.startDocument()
+    w.putBinary("generic", ByteBuffer.wrap("xyz".getBytes("UTF-8")), BSON.BINARY_GENERIC)
+    w.putBinary("old", ByteBuffer.wrap("abcdef".getBytes("UTF-8")), BSON.BINARY_OLD)
+    w.putInteger("after", 7)
+    w.putUUID("uuid", uuid)
+    w.putMD5("md5", md5)
+    w.end()
+    buf.flip()
+    buf
+  }
+
+  lazy val decoded = DefaultBSONDocParser.decode(written.duplicate)
+
+}
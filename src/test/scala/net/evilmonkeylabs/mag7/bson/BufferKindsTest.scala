@@ -0,0 +1,88 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.nio.{ ByteBuffer, ByteOrder }
+
+import net.evilmonkeylabs.mag7.bson.doc._
+import net.evilmonkeylabs.mag7.bson.io.BSONByteBuffer
+
+@RunWith(classOf[JUnitRunner])
+class BufferKindsTest extends Specification {
+  def is =
+
+    "This is a specification to test reading from every kind of ByteBuffer" ^
+      p ^
+      "A document should decode the same from" ^
+      "A direct buffer" ! decodesFrom(direct) ^
+      "A read only buffer" ! decodesFrom(bytes.asReadOnlyBuffer) ^
+      "A read only direct buffer" ! decodesFrom(direct.asReadOnlyBuffer) ^
+      "A slice of a heap buffer" ! decodesFrom(slice(ByteBuffer.allocate(bytes.limit + 32))) ^
+      "A slice of a direct buffer" ! decodesFrom(slice(ByteBuffer.allocateDirect(bytes.limit + 32))) ^
+      "A heap buffer positioned part way in" ! decodesFrom(positioned) ^
+      "Lazily, from a direct buffer" ! lazilyFromDirect ^
+      p ^
+      "Reading should" ^
+      "Leave the caller's byte order and position alone" ! leavesBufferAlone ^
+      "Size the document at the buffer's position" ! sizesAtPosition ^
+      "Copy out the bytes of a direct buffer" ! copiesDirect ^
+      end
+
+  def decodesFrom(buf: => ByteBuffer) = DefaultBSONDocParser.decode(buf) must be_==(expected)
+
+  def lazilyFromDirect = new LazyBSONDocParser(direct).result().get("object") must be_==(expected.get("object"))
+
+  def leavesBufferAlone = {
+    val buf = positioned
+    DefaultBSONDocParser.decode(buf)
+    (buf.order must be_==(ByteOrder.BIG_ENDIAN)) and (buf.position must be_==(32))
+  }
+
+  def sizesAtPosition = new BSONByteBuffer(positioned).size must be_==(bytes.limit)
+
+  def copiesDirect = new BSONByteBuffer(direct).array.toSeq must be_==(bytes.array.toSeq)
+
+  // -- Setup definitions
+
+  lazy val bytes = {
+    val sub = new com.mongodb.BasicDBObject
+    sub.put("foo", "bar")
+    sub.put("x", 5.23)
+
+    val b = com.mongodb.BasicDBObjectBuilder.start()
+    b.append("_id", new org.bson.types.ObjectId)
+    b.append("str", "foobarbaz")
+    b.append("object", sub)
+    b.append("long5", 5L)
+
+    ByteBuffer.wrap(new org.bson.BasicBSONEncoder().encode(b.get()))
+  }
+
+  lazy val expected = DefaultBSONDocParser.decode(bytes.duplicate)
+
+  def direct = {
+    val buf = ByteBuffer.allocateDirect(bytes.limit)
+    buf.put(bytes.duplicate)
+    buf.flip()
+    buf
+  }
+
+  /** Copies the document 32 bytes into buf, and slices it from there. */
+  def slice(buf: ByteBuffer) = {
+    buf.position(32)
+    buf.put(bytes.duplicate)
+    buf.position(32)
+    buf.slice()
+  }
+
+  def positioned = {
+    val buf = ByteBuffer.allocate(bytes.limit + 32)
+    buf.position(32)
+    buf.put(bytes.duplicate)
+    buf.position(32)
+    buf
+  }
+
+}
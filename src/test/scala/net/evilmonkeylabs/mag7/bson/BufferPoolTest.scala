@@ -0,0 +1,108 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.io.IOException
+import java.nio.{ ByteBuffer, ByteOrder }
+
+import net.evilmonkeylabs.mag7.bson.io._
+
+@RunWith(classOf[JUnitRunner])
+class BufferPoolTest extends Specification {
+  def is =
+
+    "This is a specification to test pooled direct buffers" ^
+      p ^
+      "A BufferPool should" ^
+      "Round requests up to a size class" ! sizeClasses ^
+      "Hand out little endian direct buffers" ! direct ^
+      "Reuse a buffer once it is released" ! reuses ^
+      "Keep a buffer until it and its slices are all released" ! slices ^
+      "Refuse to release a buffer twice" ! doubleRelease ^
+      "Allocate requests too big to pool directly" ! unpooled ^
+      "Count buffers collected without being released" ! leaks ^
+      p ^
+      "A PooledOutputStream should" ^
+      "Grow past its first segment without copying" ! grows ^
+      "Release its segments when closed" ! releases ^
+      end
+
+  def sizeClasses = {
+    val pool = new BufferPool
+    (pool.acquire(1).buffer.capacity must be_==(512)) and
+      (pool.acquire(513).buffer.capacity must be_==(1024)) and
+      (pool.acquire(1 << 20).buffer.capacity must be_==(1 << 20))
+  }
+
+  def direct = {
+    val b = new BufferPool().acquire(100).buffer
+    (b.isDirect must beTrue) and (b.order must be_==(ByteOrder.LITTLE_ENDIAN)) and
+      (b.position must be_==(0)) and (b.limit must be_==(100))
+  }
+
+  def reuses = {
+    val pool = new BufferPool
+    val a = pool.acquire(1000)
+    a.buffer.put(0, 42: Byte)
+    a.release()
+    val b = pool.acquire(900)
+    (b.buffer.get(0) must be_==(42: Byte)) and (pool.getSlabs must be_==(1L))
+  }
+
+  def slices = {
+    val pool = new BufferPool
+    val b = pool.acquire(100)
+    val s = b.slice(10, 20)
+    b.release()
+    val heldBySlice = pool.getInUse
+    s.release()
+    (heldBySlice must be_==(1L)) and (pool.getInUse must be_==(0L)) and
+      (pool.getReleased must be_==(1L))
+  }
+
+  def doubleRelease = {
+    val b = new BufferPool().acquire(10)
+    b.release()
+    b.release() must throwA[IllegalStateException]
+  }
+
+  def unpooled = {
+    val pool = new BufferPool
+    pool.acquire(2 << 20).release()
+    (pool.getUnpooled must be_==(1L)) and (pool.getSlabs must be_==(0L))
+  }
+
+  def leaks = {
+    val pool = new BufferPool(BufferPool.DEFAULT_SLAB_SIZE, true)
+    for (i <- 0 until 10) pool.acquire(100)
+    var tries = 0
+    while (pool.getLeaked < 10 && tries < 50) {
+      System.gc()
+      Thread.sleep(20)
+      pool.acquire(1).release()
+      tries += 1
+    }
+    (pool.getLeaked must be_==(10L)) and (pool.getInUse must be_==(0L))
+  }
+
+  def grows = {
+    val pool = new BufferPool
+    val out = new PooledOutputStream(pool, 512)
+    val data = Array.tabulate[Byte](100000)(_.toByte)
+    data.grouped(333).foreach(out.write(_))
+    val all = ByteBuffer.allocate(out.size)
+    out.buffers.foreach(all.put(_))
+    (out.buffers.length must be_>(1)) and (all.array.toSeq must be_==(data.toSeq))
+  }
+
+  def releases = {
+    val pool = new BufferPool
+    val out = new PooledOutputStream(pool)
+    out.write(new Array[Byte](20000))
+    out.close()
+    (pool.getInUse must be_==(0L)) and (out.write(1) must throwA[IOException])
+  }
+
+}
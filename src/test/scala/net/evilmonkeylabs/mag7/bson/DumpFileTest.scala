@@ -0,0 +1,87 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{ Files, StandardOpenOption }
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.collection.JavaConverters._
+
+import net.evilmonkeylabs.mag7.bson.doc._
+import net.evilmonkeylabs.mag7.bson.io.BSONException
+
+@RunWith(classOf[JUnitRunner])
+class DumpFileTest extends Specification {
+  def is =
+
+    "This is a specification to test reading mapped dump files" ^
+      p ^
+      "A BSONDumpFile should" ^
+      "Count the documents in the file" ! counts ^
+      "Iterate over the documents in file order" ! inOrder ^
+      "Map across several windows, one document larger than a window" ! windowed ^
+      "Visit every document in parallel" ! parallel ^
+      "Refuse a truncated file" ! truncated ^
+      end
+
+  def counts = withDump(Int.MaxValue, 1 << 20)(_.documentCount must be_==(count))
+
+  def inOrder = withDump(Int.MaxValue, 1 << 20) { dump =>
+    dump.documents.asScala.map(_.get("i")).toList must be_==((0 until count).toList)
+  }
+
+  def windowed = withDump(1024, 256) { dump =>
+    dump.documents.asScala.map(_.get("i")).toList must be_==((0 until count).toList)
+  }
+
+  def parallel = withDump(4096, 512) { dump =>
+    val sum = new AtomicLong
+    dump.forEachDocument(new ForkJoinPool(4), new BSONDumpFile.Handler[Document] {
+      def handle(doc: Document) = sum.addAndGet(doc.get("i").asInstanceOf[Int])
+    })
+    sum.get must be_==(count.toLong * (count - 1) / 2)
+  }
+
+  def truncated = {
+    val file = Files.createTempFile("truncated", ".bson")
+    Files.write(file, java.util.Arrays.copyOf(written, written.length - 3))
+    try BSONDumpFile.open(file) must throwA[BSONException]
+    finally Files.delete(file)
+  }
+
+  // -- Setup definitions
+
+  val count = 1000
+
+  def withDump[R](window: Int, chunk: Int)(f: BSONDumpFile => R): R = {
+    val dump = new BSONDumpFile(FileChannel.open(file, StandardOpenOption.READ), window, chunk)
+    try f(dump) finally dump.close()
+  }
+
+  lazy val written = {
+    val buf = ByteBuffer.allocate(1 << 20)
+    val w = new BSONWriter(buf)
+    for (i <- 0 until count) {
+      val doc = new java.util.LinkedHashMap[String, Object]
+      doc.put("i", Int.box(i))
+      doc.put("s", "x" * (if (i == 500) 5000 else i % 97))
+      w.putDocument(doc)
+    }
+    buf.flip()
+    val bytes = new Array[Byte](buf.limit)
+    buf.get(bytes)
+    bytes
+  }
+
+  lazy val file = {
+    val f = Files.createTempFile("dump", ".bson")
+    f.toFile.deleteOnExit()
+    Files.write(f, written)
+  }
+
+}
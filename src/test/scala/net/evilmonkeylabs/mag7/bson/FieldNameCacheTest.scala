@@ -0,0 +1,101 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.nio.ByteBuffer
+
+import scala.collection.JavaConverters._
+
+import net.evilmonkeylabs.mag7.bson.util.FieldNameCache
+
+@RunWith(classOf[JUnitRunner])
+class FieldNameCacheTest extends Specification {
+  def is =
+
+    "This is a specification to test the field name cache" ^
+      p ^
+      "A FieldNameCache should" ^
+      "Miss on a name it hasn't seen" ! miss ^
+      "Return the identical String on a hit" ! hit ^
+      "Evict a name when another takes its slot" ! eviction ^
+      "Never cache names over the maximum length" ! tooLong ^
+      "Forget everything on clear" ! clear ^
+      "Refuse a table size it can't allocate" ! badSlots ^
+      p ^
+      "Readers using a FieldNameCache should" ^
+      "Share key instances between documents" ! sharedKeys ^
+      "Decode multi byte names as the uncached path does" ! multiByte ^
+      end
+
+  def miss = new FieldNameCache().get(bytes("name"), 0, 4) must beNull
+
+  def hit = {
+    val cache = new FieldNameCache()
+    val name = new String("name")
+    cache.put(bytes("name"), 0, 4, name)
+    cache.get(bytes("name"), 0, 4) must beTheSameAs(name)
+  }
+
+  def badSlots = (new FieldNameCache(0, 32) must throwA[IllegalArgumentException]) and
+    (new FieldNameCache((1 << 30) + 1, 32) must throwA[IllegalArgumentException])
+
+  def eviction = {
+    val cache = new FieldNameCache(1, 64)
+    cache.put(bytes("first"), 0, 5, "first")
+    cache.put(bytes("second"), 0, 6, "second")
+    (cache.get(bytes("first"), 0, 5) must beNull) and (cache.get(bytes("second"), 0, 6) must be_==("second"))
+  }
+
+  def tooLong = {
+    val cache = new FieldNameCache(16, 4)
+    cache.put(bytes("toolong"), 0, 7, "toolong")
+    (cache.get(bytes("toolong"), 0, 7) must beNull) and (cache.put(bytes("abcd"), 0, 4, "abcd") must be_==("abcd")) and
+      (cache.get(bytes("abcd"), 0, 4) must be_==("abcd"))
+  }
+
+  def clear = {
+    val cache = new FieldNameCache()
+    cache.put(bytes("name"), 0, 4, "name")
+    cache.clear()
+    cache.get(bytes("name"), 0, 4) must beNull
+  }
+
+  def sharedKeys = {
+    val cache = new FieldNameCache()
+    val a = decode(cache).keySet.asScala.toSeq
+    val b = decode(cache).keySet.asScala.toSeq
+    a.zip(b).forall { case (x, y) => x eq y } must beTrue
+  }
+
+  def multiByte = {
+    val cache = new FieldNameCache()
+    decode(cache)
+    (decode(cache).keySet.asScala must be_==(names.toSet)) and
+      (decode(cache).keySet.asScala must be_==(decode(null).keySet.asScala))
+  }
+
+  // -- Setup definitions
+
+  val names = Seq("_id", "naïve", "größe", "名前", "emoji😀")
+
+  def bytes(s: String) = ByteBuffer.wrap(s.getBytes("UTF-8"))
+
+  lazy val doc = {
+    val buf = ByteBuffer.allocate(1024)
+    val d = new java.util.LinkedHashMap[String, Object]
+    for ((n, i) <- names.zipWithIndex)
+      d.put(n, Int.box(i))
+    new BSONWriter(buf).putDocument(d)
+    buf.flip()
+    buf
+  }
+
+  def decode(cache: FieldNameCache): java.util.Map[String, Object] = {
+    val r = new DefaultBSONDocParser(doc.duplicate)
+    r.setFieldNameCache(cache)
+    r.result()
+  }
+
+}
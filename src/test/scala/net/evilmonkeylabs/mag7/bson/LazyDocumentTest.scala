@@ -0,0 +1,98 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import scala.collection.JavaConverters._
+
+import net.evilmonkeylabs.mag7.bson.doc._
+import net.evilmonkeylabs.mag7.bson.types._
+
+@RunWith(classOf[JUnitRunner])
+class LazyDocumentTest extends Specification {
+  def is =
+
+    "This is a specification to test lazily decoded BSON documents" ^
+      p ^
+      "A LazyDocument should" ^
+      "Return fields on demand" ! hasFields ^
+      "Return null for missing fields" ! missingField ^
+      "Decode embedded documents lazily" ! lazySubObj ^
+      "Decode arrays when accessed" ! hasArray ^
+      "Report its size" ! hasSize ^
+      "Match the eagerly parsed document" ! matchesEager ^
+      "Still decode other fields after a corrupt one throws" ! recovers ^
+      end
+
+  def hasFields = {
+    (lazyDoc.get("_id") must beEqualTo(new ObjectID(oid.toString()))) and
+      (lazyDoc.get("int1").asInstanceOf[Int] must be_==(1)) and
+      (lazyDoc.get("str") must be_==("foobarbaz"))
+  }
+
+  def missingField = (lazyDoc.get("nope") must beNull) and (lazyDoc.containsKey("nope") must beFalse)
+
+  def lazySubObj = {
+    val sub = lazyDoc.get("object")
+    (sub must haveClass[LazyDocument]) and
+      (sub.asInstanceOf[LazyDocument].asScala must havePairs("foo" -> "bar", "x" -> 5.23))
+  }
+
+  def hasArray = lazyDoc.get("array").asInstanceOf[BSONList].asScala must contain("foo", "bar", "baz")
+
+  def hasSize = lazyDoc.size must be_==(6)
+
+  def matchesEager = {
+    val eager = new DefaultBSONDocParser(javaBSON).result()
+    lazyDoc.get("long5") must be_==(eager.get("long5"))
+  }
+
+  def recovers = {
+    // { bad: [ [ 1, 2 ] ], good: [ [ 3, 4 ] ] }, with the innermost type of
+    // bad corrupted; each failure used to leave the parser two levels deeper
+    val d = new java.util.LinkedHashMap[String, Object]
+    d.put("bad", java.util.Arrays.asList(java.util.Arrays.asList(1, 2)))
+    d.put("good", java.util.Arrays.asList(java.util.Arrays.asList(3, 4)))
+    val buf = java.nio.ByteBuffer.allocate(128)
+    new BSONWriter(buf).putDocument(d)
+    buf.flip()
+    buf.put(20, 0x7e.toByte)
+    val p = new LazyBSONDocParser(buf)
+    p.setLimits(BSONLimits.DEFAULT.withMaxDepth(4))
+    val doc = p.result()
+    val failures = (0 until 3).map(_ => doc.get("bad") must throwA[Exception])
+    failures.reduce(_ and _) and
+      (doc.get("good").asInstanceOf[java.util.List[_]].get(0).toString must be_==("[3, 4]"))
+  }
+
+  // -- Setup definitions
+
+  lazy val oid = new org.bson.types.ObjectId
+
+  lazy val javaBSON = {
+    val sub = new com.mongodb.BasicDBObject
+    sub.put("foo", "bar")
+    sub.put("x", 5.23)
+
+    val lst = new java.util.ArrayList[String]
+    lst.add("foo")
+    lst.add("bar")
+    lst.add("baz")
+
+    val b = com.mongodb.BasicDBObjectBuilder.start()
+    b.append("_id", oid)
+    b.append("int1", 1)
+    b.append("str", "foobarbaz")
+    b.append("object", sub)
+    b.append("array", lst)
+    b.append("long5", 5L)
+
+    val encoder = new org.bson.BasicBSONEncoder
+
+    java.nio.ByteBuffer.wrap(encoder.encode(b.get()))
+  }
+
+  lazy val lazyDoc: LazyDocument = new LazyBSONDocParser(javaBSON).result()
+
+}
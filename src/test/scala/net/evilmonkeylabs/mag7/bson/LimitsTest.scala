@@ -0,0 +1,123 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import scala.collection.JavaConverters._
+
+import net.evilmonkeylabs.mag7.bson.doc._
+import net.evilmonkeylabs.mag7.bson.io.BSONException
+import net.evilmonkeylabs.mag7.bson.BSONEventReader.Event
+
+@RunWith(classOf[JUnitRunner])
+class LimitsTest extends Specification {
+  def is =
+
+    "This is a specification to test decoding untrusted BSON within limits" ^
+      p ^
+      "A validating BSONReader should" ^
+      "Decode valid documents as usual" ! decodesValid ^
+      "Reject a document larger than the limit" ! rejectsLargeDocument ^
+      "Reject a string length running past its document" ! rejectsStringOverrun ^
+      "Reject a binary length running past its document" ! rejectsBinaryOverrun ^
+      "Reject a field name with no NUL" ! rejectsUnterminatedName ^
+      "Reject an array too short for its first element" ! rejectsShortArray ^
+      "Reject strings and binaries over the limits" ! rejectsLongValues ^
+      "Reject nesting deeper than the limit" ! rejectsDeepNesting ^
+      p ^
+      "A validating BSONEventReader should" ^
+      "Reject a hostile length without waiting for it to arrive" ! eventReaderRejects ^
+      end
+
+  def decodesValid = decode(written, BSONLimits.DEFAULT).get("s") must be_==("hello")
+
+  def rejectsLargeDocument = decode(written, BSONLimits.DEFAULT.withMaxDocumentSize(16)) must throwA[BSONException]
+
+  def rejectsStringOverrun = decode(corrupt(stringLength, 0x7fffff00), BSONLimits.DEFAULT) must throwA[BSONException]
+
+  def rejectsBinaryOverrun = decode(corrupt(binaryLength, 1 << 30), BSONLimits.DEFAULT) must throwA[BSONException]
+
+  def rejectsUnterminatedName = {
+    val buf = corrupt(0, written.duplicate.order(java.nio.ByteOrder.LITTLE_ENDIAN).getInt(0))
+    for (i <- 5 until buf.limit - 1) buf.put(i, 'a'.toByte)
+    decode(buf, BSONLimits.DEFAULT) must throwA[BSONException]
+  }
+
+  def rejectsShortArray = {
+    // { a: [ <length 6>, type string, EOO ] }: the string's length would be
+    // read from past the end of the buffer
+    val buf = java.nio.ByteBuffer.allocate(14).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+    buf.putInt(14).put(BSON.ARRAY).put('a'.toByte).put(0: Byte)
+    buf.putInt(6).put(BSON.STRING).put(0: Byte).put(0: Byte)
+    buf.flip()
+    decode(buf, BSONLimits.DEFAULT) must throwA[BSONException]
+  }
+
+  def rejectsLongValues = (decode(written, BSONLimits.DEFAULT.withMaxStringLength(4)) must throwA[BSONException]) and
+    (decode(written, BSONLimits.DEFAULT.withMaxBinaryLength(2)) must throwA[BSONException]) and
+    (decode(written, BSONLimits.DEFAULT.withMaxStringLength(5).withMaxBinaryLength(3)).get("s") must be_==("hello"))
+
+  def rejectsDeepNesting = (decode(deep, BSONLimits.DEFAULT.withMaxDepth(10)) must throwA[BSONException]) and
+    (decode(deep, BSONLimits.DEFAULT.withMaxDepth(11)).get("d") must not beNull)
+
+  def eventReaderRejects = {
+    val r = new BSONEventReader(64)
+    r.setLimits(BSONLimits.DEFAULT)
+    // just the start of the document; its string's length is all we give it
+    val head = corrupt(stringLength, 0x7fffff00)
+    head.limit(stringLength + 4)
+    r.feed(head)
+    r.next() must be_==(Event.START_DOCUMENT) and (r.next() must throwA[BSONException])
+  }
+
+  // -- Setup definitions
+
+  def decode(buf: java.nio.ByteBuffer, limits: BSONLimits) = {
+    val p = new DefaultBSONDocParser(buf.duplicate)
+    p.setLimits(limits)
+    p.result()
+  }
+
+  /** A copy of the written document, with the int32 at offset replaced. */
+  def corrupt(offset: Int, value: Int) = {
+    val buf = java.nio.ByteBuffer.allocate(written.limit).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+    buf.put(written.duplicate)
+    buf.flip()
+    buf.putInt(offset, value)
+    buf
+  }
+
+  // length, then type 0x02 and "s"
+  val stringLength = 4 + 1 + 2
+
+  // the string "hello", then type 0x05 and "bin"
+  val binaryLength = stringLength + 4 + 6 + 1 + 4
+
+  lazy val written = {
+    val doc = new java.util.LinkedHashMap[String, Object]
+    doc.put("s", "hello")
+    doc.put("bin", Array[Byte](1, 2, 3))
+    doc.put("arr", Seq[AnyRef](Int.box(1), Int.box(2)).asJava)
+    write(doc)
+  }
+
+  lazy val deep = {
+    val doc = new java.util.LinkedHashMap[String, Object]
+    var cur = doc
+    for (i <- 1 to 10) {
+      val next = new java.util.LinkedHashMap[String, Object]
+      cur.put("d", next)
+      cur = next
+    }
+    write(doc)
+  }
+
+  def write(doc: java.util.Map[String, Object]) = {
+    val buf = java.nio.ByteBuffer.allocate(4096)
+    new BSONWriter(buf).putDocument(doc)
+    buf.flip()
+    buf
+  }
+
+}
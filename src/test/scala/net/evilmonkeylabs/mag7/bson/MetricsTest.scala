@@ -0,0 +1,129 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+
+@RunWith(classOf[JUnitRunner])
+class MetricsTest extends Specification {
+  def is =
+
+    "This is a specification to test decode metrics" ^
+      p ^
+      "A DecodeMetrics listening to a reader should" ^
+      "Count documents and bytes" ! documents ^
+      "Count fields by type, at every depth" ! fields ^
+      "Not count fields a projection skipped" ! projected ^
+      "Track the deepest nesting" ! depth ^
+      "Track the longest string and binary" ! longest ^
+      "Put each decode time in the histogram" ! histogram ^
+      "Zero everything on reset" ! reset ^
+      p ^
+      "The default decode listener should" ^
+      "Hear readers without a listener of their own" ! defaultListener ^
+      "Stop hearing them once cleared" ! cleared ^
+      p ^
+      "Registered over JMX, DecodeMetrics should" ^
+      "Publish its totals as attributes" ! jmx ^
+      end
+
+  def documents = {
+    val m = decodeWith(3)
+    (m.getDocuments must be_==(3L)) and (m.getBytes must be_==(3L * doc.remaining))
+  }
+
+  def fields = {
+    val m = decodeWith(1)
+    (m.getFields must be_==(8L)) and
+      (m.getFieldCount(BSON.INT32) must be_==(3L)) and
+      (m.getFieldCount(BSON.DOCUMENT) must be_==(2L)) and
+      (m.getFieldCounts.get("array").longValue must be_==(1L))
+  }
+
+  def projected = {
+    val m = new DecodeMetrics
+    val r = new DefaultBSONDocParser(doc.duplicate)
+    r.setDecodeListener(m)
+    r.setProjection(Projection.include("a", "n.m"))
+    r.result()
+    (m.getFields must be_==(6L)) and
+      (m.getFieldCount(BSON.STRING) must be_==(0L)) and (m.getFieldCount(BSON.BINARY) must be_==(0L))
+  }
+
+  def depth = decodeWith(1).getMaxDepth must be_==(4)
+
+  def longest = {
+    val m = decodeWith(1)
+    (m.getMaxStringLength must be_==(5)) and (m.getMaxBinaryLength must be_==(7))
+  }
+
+  def histogram = {
+    val m = decodeWith(10)
+    (m.getLatencyHistogram.sum must be_==(10L)) and
+      (m.getLatencyP999Nanos must be_>=(m.getLatencyP50Nanos))
+  }
+
+  def reset = {
+    val m = decodeWith(2)
+    m.reset()
+    (m.getDocuments must be_==(0L)) and (m.getFields must be_==(0L)) and (m.getMaxDepth must be_==(0))
+  }
+
+  def defaultListener = {
+    val m = new DecodeMetrics
+    BSONReader.setDefaultDecodeListener(m)
+    try DefaultBSONDocParser.decode(doc.duplicate)
+    finally BSONReader.setDefaultDecodeListener(null)
+    m.getDocuments must be_==(1L)
+  }
+
+  def cleared = {
+    val m = new DecodeMetrics
+    BSONReader.setDefaultDecodeListener(m)
+    BSONReader.setDefaultDecodeListener(null)
+    DefaultBSONDocParser.decode(doc.duplicate)
+    m.getDocuments must be_==(0L)
+  }
+
+  def jmx = {
+    val m = decodeWith(2)
+    val name = m.register("MetricsTest")
+    val server = ManagementFactory.getPlatformMBeanServer
+    val docs = try server.getAttribute(name, "Documents") finally m.unregister()
+    (docs must be_==(2L)) and (server.isRegistered(name) must beFalse)
+  }
+
+  // -- Setup definitions
+
+  /** Decodes the document n times with a new DecodeMetrics listening. */
+  def decodeWith(n: Int): DecodeMetrics = {
+    val m = new DecodeMetrics
+    for (i <- 0 until n) {
+      val r = new DefaultBSONDocParser(doc.duplicate)
+      r.setDecodeListener(m)
+      r.result()
+    }
+    m
+  }
+
+  /** { a: 1, s: "hello", n: { m: { k: [1, 2] } }, bin: <7 bytes> } */
+  lazy val doc = {
+    val buf = ByteBuffer.allocate(1024)
+    val k = new java.util.LinkedHashMap[String, Object]
+    k.put("k", java.util.Arrays.asList(Int.box(1), Int.box(2)))
+    val n = new java.util.LinkedHashMap[String, Object]
+    n.put("m", k)
+    val d = new java.util.LinkedHashMap[String, Object]
+    d.put("a", Int.box(1))
+    d.put("s", "hello")
+    d.put("n", n)
+    d.put("bin", new Array[Byte](7))
+    new BSONWriter(buf).putDocument(d)
+    buf.flip()
+    buf
+  }
+
+}
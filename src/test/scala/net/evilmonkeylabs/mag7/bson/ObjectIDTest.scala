@@ -0,0 +1,50 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import net.evilmonkeylabs.mag7.bson.types._
+
+@RunWith(classOf[JUnitRunner])
+class ObjectIDTest extends Specification {
+  def is =
+
+    "This is a specification to test ObjectIDs" ^
+      p ^
+      "An ObjectID should" ^
+      "Format as the same hex as the old Java driver" ! sameHex ^
+      "Parse the old Java driver's hex" ! parsesHex ^
+      "Parse upper case hex" ! parsesUpper ^
+      "Reject strings which aren't hex" ! rejectsBad ^
+      "Write its bytes big endian into any buffer" ! writesBigEndian ^
+      p ^
+      "Generated ObjectIDs should" ^
+      "Be unique across threads" ! uniqueAcrossThreads ^
+      end
+
+  def sameHex = new ObjectID(javaOid.toByteArray).toString must be_==(javaOid.toString)
+
+  def parsesHex = new ObjectID(javaOid.toString).toByteArray must be_==(javaOid.toByteArray)
+
+  def parsesUpper = new ObjectID(javaOid.toString.toUpperCase) must be_==(new ObjectID(javaOid.toString))
+
+  def rejectsBad = (ObjectID.isValid("5a1b2c3d4e5f60718293a4bg") must beFalse) and
+    (new ObjectID("zz") must throwA[IllegalArgumentException])
+
+  def writesBigEndian = {
+    val buf = java.nio.ByteBuffer.allocate(12).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+    new ObjectID(javaOid.toString).writeTo(buf)
+    buf.array must be_==(javaOid.toByteArray)
+  }
+
+  def uniqueAcrossThreads = {
+    val ids = (1 to 8).par.flatMap(_ => (1 to 10000).map(_ => new ObjectID)).toList
+    ids.distinct.size must be_==(80000)
+  }
+
+  // -- Setup definitions
+
+  lazy val javaOid = new org.bson.types.ObjectId
+
+}
@@ -0,0 +1,79 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import net.evilmonkeylabs.mag7.bson.types._
+import net.evilmonkeylabs.mag7.bson.io.BSONException
+
+@RunWith(classOf[JUnitRunner])
+class PathTest extends Specification {
+  def is =
+
+    "This is a specification to test extracting values by path" ^
+      p ^
+      "A BSONPath should" ^
+      "Read top level values" ! topLevel ^
+      "Read values in embedded documents" ! embedded ^
+      "Read array elements by index" ! arrays ^
+      "Widen int32s to longs and doubles" ! widens ^
+      "Return the default for missing paths" ! missing ^
+      "Refuse values of the wrong type" ! wrongType ^
+      "Leave the buffer's position alone" ! leavesPosition ^
+      "Be cached when compiled" ! cached ^
+      end
+
+  def topLevel = (BSONPath.compile("str").getString(javaBSON) must be_==("foobarbaz")) and
+    (BSONPath.compile("_id").getObjectID(javaBSON) must be_==(new ObjectID(oid.toString)))
+
+  def embedded = (BSONPath.compile("object.foo").getString(javaBSON) must be_==("bar")) and
+    (BSONPath.compile("object.x").getDouble(javaBSON, 0) must be_==(5.23))
+
+  def arrays = BSONPath.compile("array.2").getString(javaBSON) must be_==("baz")
+
+  def widens = (BSONPath.compile("int1").getLong(javaBSON, 0) must be_==(1L)) and
+    (BSONPath.compile("int1").getDouble(javaBSON, 0) must be_==(1.0))
+
+  def missing = (BSONPath.compile("object.nope").getInt(javaBSON, -1) must be_==(-1)) and
+    (BSONPath.compile("str.length").getString(javaBSON) must beNull) and
+    (BSONPath.compile("nope").exists(javaBSON) must beFalse)
+
+  def wrongType = BSONPath.compile("str").getInt(javaBSON, 0) must throwA[BSONException]
+
+  def leavesPosition = {
+    val buf = javaBSON.duplicate
+    BSONPath.compile("long5").getLong(buf, 0)
+    buf.position must be_==(0)
+  }
+
+  def cached = BSONPath.compile("object.foo") must beTheSameAs(BSONPath.compile("object.foo"))
+
+  // -- Setup definitions
+
+  lazy val oid = new org.bson.types.ObjectId
+
+  lazy val javaBSON = {
+    val sub = new com.mongodb.BasicDBObject
+    sub.put("foo", "bar")
+    sub.put("x", 5.23)
+
+    val lst = new java.util.ArrayList[String]
+    lst.add("foo")
+    lst.add("bar")
+    lst.add("baz")
+
+    val b = com.mongodb.BasicDBObjectBuilder.start()
+    b.append("_id", oid)
+    b.append("int1", 1)
+    b.append("str", "foobarbaz")
+    b.append("object", sub)
+    b.append("array", lst)
+    b.append("long5", 5L)
+
+    val encoder = new org.bson.BasicBSONEncoder
+
+    java.nio.ByteBuffer.wrap(encoder.encode(b.get()))
+  }
+
+}
@@ -0,0 +1,139 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.nio.ByteBuffer
+import java.util.Date
+
+import net.evilmonkeylabs.mag7.bson.doc._
+import net.evilmonkeylabs.mag7.bson.io.BSONException
+
+@RunWith(classOf[JUnitRunner])
+class PrimitiveDocumentTest extends Specification {
+  def is =
+
+    "This is a specification to test unboxed PrimitiveDocuments" ^
+      p ^
+      "The typed getters should" ^
+      "Return each primitive type unboxed" ! typed ^
+      "Widen int32 to int64, and int32 and int64 to double" ! widening ^
+      "Return the default for missing or mistyped fields" ! defaults ^
+      "Throw a BSONException for a missing field" ! missing ^
+      "Throw a BSONException for a field of the wrong type" ! wrongType ^
+      p ^
+      "A PrimitiveDocument should" ^
+      "Replace a field with one of a different kind" ! replaced ^
+      "Keep fields in the order they were put" ! ordered ^
+      "Find every field once past the hash index threshold" ! indexed ^
+      "Grow from a capacity of zero" ! zeroCapacity ^
+      p ^
+      "Decoded by PrimitiveBSONDocParser, a document should" ^
+      "Equal the Document decoded from the same bytes" ! sameAsDocument ^
+      "Keep numbers unboxed" ! unboxed ^
+      end
+
+  def typed =
+    (prims.getInt("i") must be_==(42)) and
+      (prims.getLong("l") must be_==(1L << 40)) and
+      (prims.getDouble("d") must be_==(2.5)) and
+      (prims.getBoolean("b") must beTrue) and
+      (prims.getDateTime("t") must be_==(1000000L))
+
+  def widening =
+    (prims.getLong("i") must be_==(42L)) and
+      (prims.getDouble("i") must be_==(42.0)) and
+      (prims.getDouble("l") must be_==((1L << 40).toDouble))
+
+  def defaults =
+    (prims.getInt("nope", 7) must be_==(7)) and
+      (prims.getInt("l", 7) must be_==(7)) and
+      (prims.getLong("s", 7L) must be_==(7L)) and
+      (prims.getDouble("s", 7.5) must be_==(7.5)) and
+      (prims.getBoolean("i", false) must beFalse) and
+      (prims.getInt("i", 7) must be_==(42))
+
+  def missing = prims.getInt("nope") must throwA[BSONException]
+
+  def wrongType =
+    (prims.getInt("l") must throwA[BSONException]) and
+      (prims.getLong("d") must throwA[BSONException]) and
+      (prims.getDouble("s") must throwA[BSONException]) and
+      (prims.getDateTime("l") must throwA[BSONException])
+
+  def replaced = {
+    val d = new PrimitiveDocument
+    d.putObject("a", "text")
+    d.putInt("a", 1)
+    val asInt = (d.get("a") must be_==(1)) and (d.getType("a") must be_==(BSON.INT32))
+    d.putObject("a", "again")
+    asInt and (d.get("a") must be_==("again")) and (d.getInt("a", -1) must be_==(-1)) and (d.size must be_==(1))
+  }
+
+  def ordered = {
+    val d = new PrimitiveDocument
+    d.putInt("z", 1)
+    d.putObject("a", "x")
+    d.putDouble("m", 1.0)
+    d.keySet.toArray.toSeq must be_==(Seq("z", "a", "m"))
+  }
+
+  def indexed = {
+    val d = new PrimitiveDocument
+    for (i <- 0 until 100)
+      d.putInt("f" + i, i)
+    d.putInt("f50", -50)
+    ((0 until 100).filter(_ != 50).forall(i => d.getInt("f" + i) == i) must beTrue) and
+      (d.getInt("f50") must be_==(-50)) and (d.size must be_==(100)) and (d.containsKey("f100") must beFalse)
+  }
+
+  def zeroCapacity = {
+    val d = new PrimitiveDocument(0)
+    d.putLong("a", 1L)
+    d.getLong("a") must be_==(1L)
+  }
+
+  def sameAsDocument = {
+    val doc = new DefaultBSONDocParser(encoded.duplicate).result()
+    (decoded must be_==(doc)) and (doc must be_==(decoded))
+  }
+
+  def unboxed = (decoded.getType("i") must be_==(BSON.INT32)) and (decoded.getInt("i") must be_==(42))
+
+  // -- Setup definitions
+
+  lazy val prims = {
+    val d = new PrimitiveDocument
+    d.putInt("i", 42)
+    d.putLong("l", 1L << 40)
+    d.putDouble("d", 2.5)
+    d.putBoolean("b", true)
+    d.putDateTime("t", 1000000L)
+    d.putObject("s", "str")
+    d
+  }
+
+  lazy val encoded = {
+    val buf = ByteBuffer.allocate(1024)
+    val sub = new java.util.LinkedHashMap[String, Object]
+    sub.put("x", Double.box(5.23))
+    val d = new java.util.LinkedHashMap[String, Object]
+    d.put("i", Int.box(42))
+    d.put("l", Long.box(1L << 40))
+    d.put("d", Double.box(2.5))
+    d.put("b", Boolean.box(true))
+    d.put("t", new Date(1000000L))
+    d.put("s", "str")
+    d.put("sub", sub)
+    d.put("arr", java.util.Arrays.asList(Int.box(1), "two"))
+    for (i <- 0 until 10)
+      d.put("extra" + i, Int.box(i))
+    new BSONWriter(buf).putDocument(d)
+    buf.flip()
+    buf
+  }
+
+  lazy val decoded = new PrimitiveBSONDocParser(encoded.duplicate).result()
+
+}
@@ -0,0 +1,92 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import scala.collection.JavaConverters._
+
+import net.evilmonkeylabs.mag7.bson.doc._
+
+@RunWith(classOf[JUnitRunner])
+class PrimitiveListTest extends Specification {
+  def is =
+
+    "This is a specification to test decoding arrays into compact lists" ^
+      p ^
+      "With compact arrays off, arrays should" ^
+      "Decode to BSONLists" ! boxedByDefault ^
+      "Keep their elements in order" ! boxedInOrder ^
+      p ^
+      "With compact arrays on, arrays should" ^
+      "Decode all int32 arrays to int[] backed lists" ! int32s ^
+      "Decode all int64 arrays to long[] backed lists" ! int64s ^
+      "Decode all double arrays to double[] backed lists" ! doubles ^
+      "Fall back to BSONLists for mixed arrays" ! mixed ^
+      "Still decode empty arrays" ! empty ^
+      p ^
+      "Without validation, an array whose length is inflated should" ^
+      "Be sized by the bytes present, not by its length" ! inflated ^
+      end
+
+  def boxedByDefault = boxed.get("ints") must haveClass[BSONList]
+
+  def boxedInOrder = boxed.get("ints").asInstanceOf[BSONList].asScala must be_==((0 until 1000).map(_ * 7))
+
+  def int32s = {
+    val l = compact.get("ints").asInstanceOf[PrimitiveList]
+    (l.elementType must be_==(BSON.INT32)) and (l.getInt(999) must be_==(6993)) and (l.size must be_==(1000))
+  }
+
+  def int64s = compact.get("longs").asInstanceOf[PrimitiveList].getLong(3) must be_==(3L << 33)
+
+  def doubles = {
+    val l = compact.get("vector").asInstanceOf[PrimitiveList]
+    (l.elementType must be_==(BSON.DOUBLE)) and (l.getDouble(2) must be_==(2 / 3.0)) and (l must be_==(boxed.get("vector")))
+  }
+
+  def mixed = compact.get("mixed").asInstanceOf[BSONList].asScala must be_==(Seq(1, 2, 3.5, "x"))
+
+  def empty = compact.get("empty").asInstanceOf[java.util.List[_]].isEmpty must beTrue
+
+  def inflated = {
+    // { a: [ 1, 2, 3 ] } with the array claiming 0x7fffffff bytes
+    val doc = new java.util.LinkedHashMap[String, Object]
+    doc.put("a", Seq(Int.box(1), Int.box(2), Int.box(3)).asJava)
+    val buf = java.nio.ByteBuffer.allocate(64).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+    new BSONWriter(buf).putDocument(doc)
+    buf.flip()
+    buf.putInt(4 + 1 + 2, 0x7fffffff)
+    def decode(compact: Boolean) = {
+      val p = new DefaultBSONDocParser(buf.duplicate)
+      p.setCompactArrays(compact)
+      p.result().get("a").asInstanceOf[java.util.List[_]].asScala
+    }
+    (decode(false) must be_==(Seq(1, 2, 3))) and (decode(true) must be_==(Seq(1, 2, 3)))
+  }
+
+  // -- Setup definitions
+
+  lazy val written = {
+    val doc = new java.util.LinkedHashMap[String, Object]
+    doc.put("ints", (0 until 1000).map(i => Int.box(i * 7)).asJava)
+    doc.put("longs", (0 until 10).map(i => Long.box(i.toLong << 33)).asJava)
+    doc.put("vector", (0 until 1000).map(i => Double.box(i / 3.0)).asJava)
+    doc.put("mixed", Seq[AnyRef](Int.box(1), Int.box(2), Double.box(3.5), "x").asJava)
+    doc.put("empty", new java.util.ArrayList[Object])
+
+    val buf = java.nio.ByteBuffer.allocate(64 * 1024)
+    new BSONWriter(buf).putDocument(doc)
+    buf.flip()
+    buf
+  }
+
+  lazy val boxed: Document = new DefaultBSONDocParser(written.duplicate).result()
+
+  lazy val compact: Document = {
+    val p = new DefaultBSONDocParser(written.duplicate)
+    p.setCompactArrays(true)
+    p.result()
+  }
+
+}
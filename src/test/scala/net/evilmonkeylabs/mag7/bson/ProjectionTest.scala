@@ -0,0 +1,71 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import scala.collection.JavaConverters._
+
+import net.evilmonkeylabs.mag7.bson.doc._
+import net.evilmonkeylabs.mag7.bson.types._
+
+@RunWith(classOf[JUnitRunner])
+class ProjectionTest extends Specification {
+  def is =
+
+    "This is a specification to test projected parsing of BSON" ^
+      p ^
+      "Parsing with a projection should" ^
+      "Keep included top level fields" ! keepsTopLevel ^
+      "Drop everything else" ! dropsOthers ^
+      "Keep only the projected fields of a subdocument" ! keepsDotted ^
+      "Keep included arrays whole" ! keepsArray ^
+      "Drop scalars when only a path beneath them is included" ! dropsScalarPrefix ^
+      end
+
+  def keepsTopLevel = (projected.get("_id") must beEqualTo(new ObjectID(oid.toString()))) and
+    (projected.get("str") must be_==("foobarbaz"))
+
+  def dropsOthers = projected.keySet.asScala must haveTheSameElementsAs(Seq("_id", "str", "object", "array"))
+
+  def keepsDotted = projected.get("object").asInstanceOf[Document].asScala must haveTheSameElementsAs(Seq("x" -> 5.23))
+
+  def keepsArray = projected.get("array").asInstanceOf[BSONList].asScala must contain("foo", "bar", "baz")
+
+  def dropsScalarPrefix = projected.containsKey("int1") must beFalse
+
+  // -- Setup definitions
+
+  lazy val oid = new org.bson.types.ObjectId
+
+  lazy val javaBSON = {
+    val sub = new com.mongodb.BasicDBObject
+    sub.put("foo", "bar")
+    sub.put("x", 5.23)
+
+    val lst = new java.util.ArrayList[String]
+    lst.add("foo")
+    lst.add("bar")
+    lst.add("baz")
+
+    val b = com.mongodb.BasicDBObjectBuilder.start()
+    b.append("_id", oid)
+    b.append("int1", 1)
+    b.append("str", "foobarbaz")
+    b.append("skipped", "héllo wörld")
+    b.append("object", sub)
+    b.append("array", lst)
+    b.append("long5", 5L)
+
+    val encoder = new org.bson.BasicBSONEncoder
+
+    java.nio.ByteBuffer.wrap(encoder.encode(b.get()))
+  }
+
+  lazy val projected: Document = {
+    val p = new DefaultBSONDocParser(javaBSON)
+    p.setProjection(Projection.include("_id", "str", "object.x", "array", "int1.nope"))
+    p.result()
+  }
+
+}
@@ -0,0 +1,103 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.nio.ByteBuffer
+
+import net.evilmonkeylabs.mag7.bson.doc._
+import net.evilmonkeylabs.mag7.bson.types._
+
+@RunWith(classOf[JUnitRunner])
+class RawPassthroughTest extends Specification {
+  def is =
+
+    "This is a specification to test passing values through undecoded" ^
+      p ^
+      "With raw embedded values on, a reader should" ^
+      "Still decode the outermost fields" ! decodesTopLevel ^
+      "Keep embedded documents as RawBSONDocuments" ! keepsDocuments ^
+      "Keep arrays as raw arrays" ! keepsArrays ^
+      "Keep binaries, with their subtypes, as slices" ! keepsBinaries ^
+      "Decode documents a projection only partly includes" ! projectsBeneath ^
+      p ^
+      "A builder should" ^
+      "Be able to choose which fields to keep raw" ! choosesFields ^
+      p ^
+      "Writing raw values back should" ^
+      "Reproduce the original document" ! roundTrips ^
+      end
+
+  def decodesTopLevel = raw.get("int1") must be_==(1)
+
+  def keepsDocuments = {
+    val sub = raw.get("object").asInstanceOf[RawBSONDocument]
+    (sub.isArray must beFalse) and (DefaultBSONDocParser.decode(sub.getBuffer) must be_==(decoded.get("object")))
+  }
+
+  def keepsArrays = raw.get("array").asInstanceOf[RawBSONDocument].isArray must beTrue
+
+  def keepsBinaries = {
+    val bin = raw.get("uuid").asInstanceOf[Binary]
+    (bin.getSubType must be_==(BSON.BINARY_UUID)) and (bin.getData.isReadOnly must beTrue) and (bin.length must be_==(16))
+  }
+
+  def projectsBeneath = {
+    val p = new DefaultBSONDocParser(written.duplicate)
+    p.setRawEmbedded(true)
+    p.setProjection(Projection.include("object.x", "array"))
+    val doc = p.result()
+    (doc.get("object").asInstanceOf[java.util.Map[_, _]].keySet.toArray.toSeq must be_==(Seq("x"))) and
+      (doc.get("array") must haveClass[RawBSONDocument])
+  }
+
+  def choosesFields = {
+    val reader = new BSONReader[Document](written.duplicate) {
+      b = newBuilder()
+      def newBuilder(): BSONDocumentBuilder[Document] = new BSONDocumentBuilder[Document] {
+        val doc = new Document
+        def put(key: String, value: AnyRef): Unit = doc.put(key, value)
+        def result(): Document = doc
+        override def keepsRaw(key: String, t: Byte) = key == "object"
+      }
+    }
+    val doc = reader.result()
+    (doc.get("object") must haveClass[RawBSONDocument]) and (doc.get("array") must be_==(decoded.get("array")))
+  }
+
+  def roundTrips = {
+    val buf = ByteBuffer.allocate(1024)
+    new BSONWriter(buf).putDocument(raw)
+    buf.flip()
+    DefaultBSONDocParser.decode(buf) must be_==(decoded)
+  }
+
+  // -- Setup definitions
+
+  lazy val written = {
+    val sub = new java.util.LinkedHashMap[String, Object]
+    sub.put("foo", "bar")
+    sub.put("x", Double.box(5.23))
+
+    val doc = new java.util.LinkedHashMap[String, Object]
+    doc.put("int1", Int.box(1))
+    doc.put("object", sub)
+    doc.put("array", java.util.Arrays.asList("foo", "bar", "baz"))
+    doc.put("uuid", java.util.UUID.randomUUID)
+
+    val buf = ByteBuffer.allocate(1024)
+    new BSONWriter(buf).putDocument(doc)
+    buf.flip()
+    buf
+  }
+
+  lazy val decoded = DefaultBSONDocParser.decode(written.duplicate)
+
+  lazy val raw = {
+    val p = new DefaultBSONDocParser(written.duplicate)
+    p.setRawEmbedded(true)
+    p.result()
+  }
+
+}
@@ -0,0 +1,58 @@
+package net.evilmonkeylabs.mag7.bson
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import scala.collection.JavaConverters._
+
+import net.evilmonkeylabs.mag7.bson.doc._
+
+@RunWith(classOf[JUnitRunner])
+class ReaderReuseTest extends Specification {
+  def is =
+
+    "This is a specification to test reusing readers across documents" ^
+      p ^
+      "A reset reader should" ^
+      "Decode the next document" ! decodesNext ^
+      "Leave documents it already returned alone" ! keepsEarlier ^
+      "Not share embedded documents between results" ! freshEmbedded ^
+      p ^
+      "The thread's parser should" ^
+      "Decode each document it is given" ! threadLocal ^
+      end
+
+  def decodesNext = second.get("n") must be_==(2)
+
+  def keepsEarlier = (first.get("n") must be_==(1)) and
+    (first.get("object").asInstanceOf[Document].asScala must havePairs("n" -> 1))
+
+  def freshEmbedded = first.get("object") must not be (second.get("object"))
+
+  def threadLocal = (1 to 3).map(i => DefaultBSONDocParser.decode(encode(i)).get("n")) must be_==(Seq(1, 2, 3))
+
+  // -- Setup definitions
+
+  def encode(n: Int) = {
+    val sub = new java.util.LinkedHashMap[String, Object]
+    sub.put("n", Int.box(n))
+    val doc = new java.util.LinkedHashMap[String, Object]
+    doc.put("n", Int.box(n))
+    doc.put("object", sub)
+
+    val buf = java.nio.ByteBuffer.allocate(256)
+    new BSONWriter(buf).putDocument(doc)
+    buf.flip()
+    buf
+  }
+
+  lazy val parser = new DefaultBSONDocParser(encode(1))
+
+  lazy val (first, second) = {
+    val a = parser.result()
+    parser.reset(encode(2))
+    (a, parser.result())
+  }
+
+}
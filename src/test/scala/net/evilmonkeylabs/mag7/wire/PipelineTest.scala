@@ -0,0 +1,177 @@
+package net.evilmonkeylabs.mag7.wire
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.net.{ InetAddress, InetSocketAddress }
+import java.nio.{ ByteBuffer, ByteOrder }
+import java.nio.channels.{ AsynchronousCloseException, AsynchronousServerSocketChannel, AsynchronousSocketChannel, CompletionHandler }
+import java.util.concurrent.{ CountDownLatch, ExecutionException, TimeUnit }
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.collection.mutable.ListBuffer
+
+@RunWith(classOf[JUnitRunner])
+class PipelineTest extends Specification {
+  def is =
+
+    "This is a specification to test pipelined requests on one connection" ^
+      p ^
+      "A PipelinedConnection should" ^
+      "Match replies arriving out of order to their requests" ! outOfOrder ^
+      "Keep requests from many threads in flight at once" ! manyThreads ^
+      "Call a handler with each reply" ! handlers ^
+      "Fail waiting requests when closed" ! closeFails ^
+      "Fail them all even if a handler's failed() throws" ! failedThrows ^
+      "Fail requests sent after it is closed" ! sendAfterClose ^
+      "Refuse exhaust queries" ! refusesExhaust ^
+      "Keep reading replies after a handler throws" ! handlerThrows ^
+      end
+
+  def outOfOrder = withStub(true) { conn =>
+    val futures = (0 until 10).map(i => conn.send(query(i)))
+    futures.map(n(_)).toList must be_==((0 until 10).toList)
+  }
+
+  def manyThreads = withStub(true) { conn =>
+    val futures = new ListBuffer[(Int, ReplyFuture)]
+    val threads = (0 until 4).map { t =>
+      new Thread {
+        override def run(): Unit =
+          for (i <- 0 until 250) {
+            val f = conn.send(query(t * 1000 + i))
+            futures.synchronized(futures += ((t * 1000 + i, f)))
+          }
+      }
+    }
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    (futures.size must be_==(1000)) and
+      (futures.forall { case (i, f) => n(f) == i } must beTrue) and
+      (conn.pending must be_==(0))
+  }
+
+  def handlers = withStub(true) { conn =>
+    val done = new CountDownLatch(20)
+    val matched = new AtomicInteger
+    for (i <- 0 until 20)
+      conn.send(query(i), Int.box(i), new CompletionHandler[Reply, Integer] {
+        def completed(r: Reply, i: Integer): Unit = {
+          if (r.decodeDocuments.get(0).get("n") == i) matched.incrementAndGet()
+          done.countDown()
+        }
+        def failed(e: Throwable, i: Integer): Unit = done.countDown()
+      })
+    done.await(10, TimeUnit.SECONDS)
+    matched.get must be_==(20)
+  }
+
+  def closeFails = withStub(false) { conn =>
+    val f = conn.send(query(1))
+    conn.close()
+    f.get(10, TimeUnit.SECONDS) must throwA[ExecutionException].like {
+      case e => e.getCause must beAnInstanceOf[AsynchronousCloseException]
+    }
+  }
+
+  def failedThrows = withStub(false) { conn =>
+    conn.send(query(1), null, new CompletionHandler[Reply, AnyRef] {
+      def completed(r: Reply, a: AnyRef): Unit = ()
+      def failed(e: Throwable, a: AnyRef): Unit = throw new IllegalStateException("handler bug")
+    })
+    val f = conn.send(query(2))
+    conn.close()
+    f.get(10, TimeUnit.SECONDS) must throwA[ExecutionException]
+  }
+
+  def sendAfterClose = withStub(true) { conn =>
+    conn.close()
+    (conn.isOpen must beFalse) and (conn.send(query(1)).get must throwA[ExecutionException])
+  }
+
+  def refusesExhaust = withStub(true) { conn =>
+    (conn.send(query(1, MessageWriter.EXHAUST)) must throwA[IllegalArgumentException]) and
+      (conn.pending must be_==(0)) and (n(conn.send(query(2))) must be_==(2))
+  }
+
+  def handlerThrows = withStub(true) { conn =>
+    conn.send(query(1), null, new CompletionHandler[Reply, AnyRef] {
+      def completed(r: Reply, a: AnyRef): Unit = throw new IllegalStateException("handler bug")
+      def failed(e: Throwable, a: AnyRef): Unit = ()
+    })
+    (n(conn.send(query(2))) must be_==(2)) and (conn.isOpen must beTrue)
+  }
+
+  // -- Setup definitions
+
+  def query(i: Int, flags: Int = 0): ByteBuffer = {
+    val buf = ByteBuffer.allocate(256)
+    val q = new java.util.HashMap[String, Object]
+    q.put("n", Int.box(i))
+    new MessageWriter(buf).putQuery("db.coll", flags, 0, 1, q, null)
+    buf.flip()
+    buf
+  }
+
+  def n(f: ReplyFuture): Int =
+    f.get(10, TimeUnit.SECONDS).decodeDocuments.get(0).get("n").asInstanceOf[Int]
+
+  /**
+   * Answers each OP_QUERY with its own query document, swapping each pair of
+   * replies so that they come back out of order, or never answers at all.
+   */
+  def withStub[R](answer: Boolean)(f: PipelinedConnection => R): R = {
+    val server = AsynchronousServerSocketChannel.open.bind(
+      new InetSocketAddress(InetAddress.getLoopbackAddress, 0))
+    val client = AsynchronousSocketChannel.open
+    val connected = client.connect(server.getLocalAddress)
+    val socket = server.accept.get
+    connected.get
+    val stub = new Thread {
+      override def run(): Unit = try {
+        val decoder = new FrameDecoder
+        val held = new ListBuffer[ByteBuffer]
+        while (socket.read(decoder.readBuffer()).get >= 0) {
+          var frame = decoder.nextFrame()
+          while (frame != null) {
+            if (answer) held += reply(frame)
+            if (held.size == 2) {
+              held.reverse.foreach(write(socket, _))
+              held.clear()
+            }
+            frame = decoder.nextFrame()
+          }
+          held.foreach(write(socket, _))
+          held.clear()
+        }
+      } catch {
+        case e: Exception => // the client hung up
+      } finally socket.close()
+    }
+    stub.start()
+    val conn = new PipelinedConnection(client)
+    try f(conn) finally {
+      conn.close()
+      server.close()
+    }
+  }
+
+  def reply(query: ByteBuffer): ByteBuffer = {
+    // skip the flags, the collection name, skip and numberToReturn
+    var pos = MessageHeader.SIZE + 4
+    while (query.get(pos) != 0) pos += 1
+    pos += 9
+    val doc = query.duplicate
+    doc.limit(pos + query.getInt(pos)).position(pos)
+    val r = ByteBuffer.allocate(MessageHeader.SIZE + 20 + doc.remaining).order(ByteOrder.LITTLE_ENDIAN)
+    new MessageHeader(r.capacity, 0, query.getInt(4), OpCode.REPLY.code).writeTo(r)
+    r.putInt(0).putLong(0L).putInt(0).putInt(1).put(doc)
+    r.flip()
+    r
+  }
+
+  def write(socket: AsynchronousSocketChannel, buf: ByteBuffer): Unit =
+    while (buf.hasRemaining) socket.write(buf).get
+
+}
@@ -0,0 +1,232 @@
+package net.evilmonkeylabs.mag7.wire
+
+import org.specs2._
+import org.junit.runner._
+import runner._
+
+import java.io.EOFException
+import java.net.{ InetAddress, InetSocketAddress }
+import java.nio.{ ByteBuffer, ByteOrder }
+import java.nio.channels.{ AsynchronousByteChannel, AsynchronousServerSocketChannel, AsynchronousSocketChannel, CompletionHandler }
+import java.util.concurrent.{ CountDownLatch, TimeUnit }
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
+
+import net.evilmonkeylabs.mag7.bson.{ BSONLimits, BSONWriter }
+import net.evilmonkeylabs.mag7.bson.io.BSONException
+
+@RunWith(classOf[JUnitRunner])
+class WireTest extends Specification {
+  def is =
+
+    "This is a specification to test wire protocol framing" ^
+      p ^
+      "A FrameDecoder should" ^
+      "Find every frame in a stream read in odd sized pieces" ! oddReads ^
+      "Grow its buffer for a frame larger than it" ! grows ^
+      "Refuse an invalid message length" ! badLength ^
+      p ^
+      "A Reply should" ^
+      "Read the fields after the header" ! replyFields ^
+      "Slice its batch into one buffer per document" ! replySlices ^
+      "Refuse a batch which doesn't fill the frame" ! replyShort ^
+      "Refuse a malformed document when decoding within limits" ! replyLimits ^
+      p ^
+      "An AsyncFrameReader should" ^
+      "Read every frame from a loopback socket" ! loopback ^
+      "Fail with EOFException at end of stream mid frame" ! truncated ^
+      "Complete a run of buffered frames without deepening the stack" ! buffered ^
+      end
+
+  def oddReads = {
+    val decoder = new FrameDecoder(64, FrameDecoder.DEFAULT_MAX_MESSAGE_SIZE)
+    val rnd = new scala.util.Random(1)
+    val ids = ListBuffer[Int]()
+    var pos = 0
+    while (pos < stream.length) {
+      val into = decoder.readBuffer()
+      val n = math.min(math.min(stream.length - pos, 1 + rnd.nextInt(3000)), into.remaining)
+      into.put(stream, pos, n)
+      pos += n
+      var frame = decoder.nextFrame()
+      while (frame != null) {
+        ids += new Reply(frame).getHeader.getResponseTo
+        frame = decoder.nextFrame()
+      }
+    }
+    (ids.toList must be_==((1 to replies).toList)) and (decoder.buffered must be_==(0))
+  }
+
+  def grows = {
+    val decoder = new FrameDecoder(16, FrameDecoder.DEFAULT_MAX_MESSAGE_SIZE)
+    decoder.feed(ByteBuffer.wrap(stream))
+    val frames = Iterator.continually(decoder.nextFrame()).takeWhile(_ != null).toList
+    frames.map(_.limit).max must be_>(100000)
+  }
+
+  def badLength = {
+    val decoder = new FrameDecoder
+    decoder.feed(ByteBuffer.wrap(new Array[Byte](MessageHeader.SIZE)))
+    decoder.nextFrame() must throwA[BSONException]
+  }
+
+  def replyFields = {
+    val r = new Reply(reply(3, 2, 1))
+    (r.getCursorID must be_==(77L)) and (r.getStartingFrom must be_==(5)) and
+      (r.getNumberReturned must be_==(2)) and (r.hasFlag(Reply.AWAIT_CAPABLE) must beTrue)
+  }
+
+  def replySlices = {
+    val docs = new Reply(reply(3, 4, 1)).decodeDocuments.asScala
+    docs.map(_.get("i")).toList must be_==((0 until 4).toList)
+  }
+
+  def replyShort = {
+    val frame = reply(3, 2, 1)
+    frame.putInt(32, 3)
+    new Reply(frame) must throwA[BSONException]
+  }
+
+  def replyLimits = {
+    val frame = reply(3, 2, 1)
+    // the first document's string length, after its length, "i" and "s"
+    frame.putInt(MessageHeader.SIZE + 20 + 4 + 7 + 3, 0x7fffff00)
+    new Reply(frame).decodeDocuments(BSONLimits.DEFAULT) must throwA[BSONException]
+  }
+
+  def loopback = {
+    val ids = ListBuffer[Int]()
+    val error = withServer(stream) { channel =>
+      val reader = new AsyncFrameReader(channel)
+      val done = new CountDownLatch(1)
+      var failure: Throwable = null
+      reader.readFrame(null, new CompletionHandler[ByteBuffer, AnyRef] {
+        def completed(frame: ByteBuffer, a: AnyRef): Unit =
+          if (frame == null) done.countDown()
+          else {
+            val reply = new Reply(frame)
+            reply.decodeDocuments
+            ids.synchronized(ids += reply.getHeader.getResponseTo)
+            reader.readFrame(null, this)
+          }
+        def failed(e: Throwable, a: AnyRef): Unit = { failure = e; done.countDown() }
+      })
+      done.await(10, TimeUnit.SECONDS)
+      failure
+    }
+    (error must beNull) and (ids.toList must be_==((1 to replies).toList))
+  }
+
+  def truncated = {
+    val error = withServer(java.util.Arrays.copyOf(stream, 100)) { channel =>
+      val reader = new AsyncFrameReader(channel)
+      val done = new CountDownLatch(1)
+      var failure: Throwable = null
+      reader.readFrame(null, new CompletionHandler[ByteBuffer, AnyRef] {
+        def completed(frame: ByteBuffer, a: AnyRef): Unit =
+          if (frame == null) done.countDown() else reader.readFrame(null, this)
+        def failed(e: Throwable, a: AnyRef): Unit = { failure = e; done.countDown() }
+      })
+      done.await(10, TimeUnit.SECONDS)
+      failure
+    }
+    error must beAnInstanceOf[EOFException]
+  }
+
+  def buffered = {
+    val n = 10000
+    val all = ByteBuffer.allocate(n * MessageHeader.SIZE).order(ByteOrder.LITTLE_ENDIAN)
+    for (i <- 0 until n) new MessageHeader(MessageHeader.SIZE, i, i, OpCode.REPLY.code).writeTo(all)
+    all.flip()
+    val decoder = new FrameDecoder
+    decoder.feed(all)
+    // every frame is buffered, so only end of stream is left to read
+    val atEnd = new AsynchronousByteChannel {
+      def read[A](dst: ByteBuffer, a: A, h: CompletionHandler[Integer, _ >: A]): Unit = h.completed(-1, a)
+      def read(dst: ByteBuffer) = throw new UnsupportedOperationException
+      def write[A](src: ByteBuffer, a: A, h: CompletionHandler[Integer, _ >: A]): Unit = throw new UnsupportedOperationException
+      def write(src: ByteBuffer) = throw new UnsupportedOperationException
+      def close(): Unit = {}
+      def isOpen = true
+    }
+    val reader = new AsyncFrameReader(atEnd, decoder)
+    val depths = ListBuffer[Int]()
+    var ended = false
+    reader.readFrame(null, new CompletionHandler[ByteBuffer, AnyRef] {
+      def completed(frame: ByteBuffer, a: AnyRef): Unit =
+        if (frame == null) ended = true
+        else {
+          depths += Thread.currentThread.getStackTrace.length
+          reader.readFrame(null, this)
+        }
+      def failed(e: Throwable, a: AnyRef): Unit = ()
+    })
+    (ended must beTrue) and (depths.size must be_==(n)) and (depths.distinct.size must be_==(1))
+  }
+
+  // -- Setup definitions
+
+  val replies = 20
+
+  /**
+   * An OP_REPLY answering request reqId, holding n documents, the first with
+   * a string of big characters.
+   */
+  def reply(reqId: Int, n: Int, big: Int): ByteBuffer = {
+    val buf = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN)
+    buf.position(MessageHeader.SIZE + 20)
+    val w = new BSONWriter(buf)
+    for (i <- 0 until n) {
+      val doc = new java.util.LinkedHashMap[String, Object]
+      doc.put("i", Int.box(i))
+      doc.put("s", if (i == 0) "x" * big else "y")
+      w.putDocument(doc)
+    }
+    val len = buf.position
+    buf.position(0)
+    new MessageHeader(len, reqId + 100, reqId, OpCode.REPLY.code).writeTo(buf)
+    buf.putInt(Reply.AWAIT_CAPABLE).putLong(77L).putInt(5).putInt(n)
+    buf.position(0)
+    buf.limit(len)
+    buf.slice.order(ByteOrder.LITTLE_ENDIAN)
+  }
+
+  lazy val stream: Array[Byte] = {
+    val frames = (1 to replies).map(r => reply(r, r % 5, if (r == 7) 200000 else 3))
+    val out = ByteBuffer.allocate(frames.map(_.remaining).sum)
+    frames.foreach(out.put(_))
+    out.array
+  }
+
+  /**
+   * Serves bytes to one client over loopback, a few at a time, then closes.
+   */
+  def withServer[R](bytes: Array[Byte])(f: AsynchronousSocketChannel => R): R = {
+    val server = AsynchronousServerSocketChannel.open.bind(
+      new InetSocketAddress(InetAddress.getLoopbackAddress, 0))
+    val writer = new Thread {
+      override def run(): Unit = {
+        val s = server.accept.get
+        val rnd = new scala.util.Random(2)
+        var pos = 0
+        while (pos < bytes.length) {
+          val chunk = ByteBuffer.wrap(bytes, pos, math.min(bytes.length - pos, 1 + rnd.nextInt(5000)))
+          pos += chunk.remaining
+          while (chunk.hasRemaining) s.write(chunk).get
+        }
+        s.close()
+      }
+    }
+    writer.start()
+    val client = AsynchronousSocketChannel.open
+    try {
+      client.connect(server.getLocalAddress).get
+      f(client)
+    } finally {
+      client.close()
+      server.close()
+    }
+  }
+
+}